@@ -0,0 +1,16 @@
+package com.b50.moo;
+
+/**
+ * A {@link ReceiveCallback} that decides what happens to each message instead of having it deleted as soon as the
+ * callback returns. Resolve the handle with ack() once the message is processed, or nack() it to have it redelivered
+ * after a backoff. A handle left unresolved stays in flight (and is still extended by a visibility heartbeat) so it
+ * can be resolved later from another thread; throwing nacks it. Moo doesn't call onReceive(String, String) on these,
+ * and they require an SQS created with an AmazonSQS client.
+ * <p/>
+ * A managed consumer counts a message against its processing threads and buffer only until onReceive returns, so
+ * handles kept unresolved beyond that don't slow its polling down. Bound how many your code holds at once, or it can
+ * accumulate messages (and their visibility extensions) without limit.
+ */
+public interface AcknowledgingReceiveCallback extends ReceiveCallback {
+    void onReceive(MessageHandle message) throws Exception;
+}
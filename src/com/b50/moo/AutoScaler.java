@@ -0,0 +1,76 @@
+package com.b50.moo;
+
+import com.b50.moo.metrics.QueueMetrics;
+import com.b50.moo.metrics.QueueMetricsRecorder;
+
+/**
+ * The control loop behind {@link AutoScalingOptions}: every interval, compares recent wait times to the target and
+ * resizes the consumer, growing multiplicatively and shrinking additively so it reacts quickly to a backlog but
+ * gives capacity back cautiously.
+ */
+class AutoScaler implements Runnable {
+    private final Consumer consumer;
+    private final AutoScalingOptions options;
+    private final double pollersPerThread;
+    private final QueueMetricsRecorder recent;
+    private long lastScaleUp = Long.MIN_VALUE / 2;
+    private long lastScaleDown = Long.MIN_VALUE / 2;
+
+    AutoScaler(final Consumer consumer, final ConsumerOptions consumerOptions, final AutoScalingOptions options) {
+        this.consumer = consumer;
+        this.options = options;
+        this.pollersPerThread = (double) consumerOptions.getPollers() / consumerOptions.getProcessingThreads();
+        this.recent = new QueueMetricsRecorder(options.getIntervalMillis() * 2, 4);
+    }
+
+    void record(final long waitTime) {
+        recent.record(waitTime);
+    }
+
+    public void run() {
+        try {
+            evaluate(recent.snapshot(), System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void evaluate(final QueueMetrics metrics, final long now) {
+        final long observed = metrics.getWaitTimePercentile(options.getPercentile());
+        final int current = consumer.getProcessingThreads();
+        final ScalingCallback callback = options.getScalingCallback();
+
+        if (observed > options.getTargetWaitMillis()) {
+            if (now - lastScaleUp < options.getScaleUpCooldownMillis()) {
+                return;
+            }
+            lastScaleUp = now;
+            if (current >= options.getMaxProcessingThreads()) {
+                if (callback != null) {
+                    callback.onCeilingReached(metrics);
+                }
+                return;
+            }
+            final int grown = Math.max(current + 1, (int) Math.ceil(current * options.getGrowthFactor()));
+            resize(Math.min(options.getMaxProcessingThreads(), grown));
+        } else if (observed < options.getTargetWaitMillis() * options.getShrinkBelow()) {
+            if (now - lastScaleUp < options.getScaleDownCooldownMillis()
+                    || now - lastScaleDown < options.getScaleDownCooldownMillis()) {
+                return;
+            }
+            lastScaleDown = now;
+            if (current <= options.getMinProcessingThreads()) {
+                if (callback != null) {
+                    callback.onFloorReached(metrics);
+                }
+                return;
+            }
+            resize(current - 1);
+        }
+    }
+
+    private void resize(final int processingThreads) {
+        final int pollers = (int) Math.round(processingThreads * pollersPerThread);
+        consumer.resize(processingThreads, Math.max(1, Math.min(options.getMaxPollers(), pollers)));
+    }
+}
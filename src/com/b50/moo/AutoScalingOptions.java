@@ -0,0 +1,154 @@
+package com.b50.moo;
+
+/**
+ * How a managed consumer adjusts its own size to keep time in queue near a target. When the chosen percentile of
+ * recent wait times is above the target, processing threads grow by a factor; when it stays well below, they shrink
+ * one at a time. Pollers scale in proportion to processing threads. Each direction has its own cooldown so a short
+ * burst doesn't whipsaw the pool.
+ */
+public class AutoScalingOptions {
+    private long targetWaitMillis = 1000;
+    private double percentile = 90;
+    private int minProcessingThreads = 1;
+    private int maxProcessingThreads = 100;
+    private int maxPollers = 10;
+    private double growthFactor = 1.5;
+    private double shrinkBelow = 0.5;
+    private long intervalMillis = 5000;
+    private long scaleUpCooldownMillis = 10000;
+    private long scaleDownCooldownMillis = 60000;
+    private ScalingCallback callback;
+
+    /**
+     * @param targetWaitMillis the time in queue to aim for
+     */
+    public AutoScalingOptions withTargetWaitMillis(final long targetWaitMillis) {
+        if (targetWaitMillis < 1) {
+            throw new IllegalArgumentException("targetWaitMillis must be at least 1");
+        }
+        this.targetWaitMillis = targetWaitMillis;
+        return this;
+    }
+
+    /**
+     * @param percentile which percentile of wait times is held to the target, defaults to 90
+     */
+    public AutoScalingOptions withPercentile(final double percentile) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be above 0 and at most 100");
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    public AutoScalingOptions withProcessingThreads(final int min, final int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("need 1 <= min <= max processing threads");
+        }
+        this.minProcessingThreads = min;
+        this.maxProcessingThreads = max;
+        return this;
+    }
+
+    /**
+     * @param maxPollers ceiling for the number of concurrent long polls
+     */
+    public AutoScalingOptions withMaxPollers(final int maxPollers) {
+        if (maxPollers < 1) {
+            throw new IllegalArgumentException("maxPollers must be at least 1");
+        }
+        this.maxPollers = maxPollers;
+        return this;
+    }
+
+    /**
+     * @param growthFactor processing threads are multiplied by this (adding at least one) when over target
+     */
+    public AutoScalingOptions withGrowthFactor(final double growthFactor) {
+        if (growthFactor <= 1) {
+            throw new IllegalArgumentException("growthFactor must be above 1");
+        }
+        this.growthFactor = growthFactor;
+        return this;
+    }
+
+    /**
+     * @param shrinkBelow fraction of the target the wait time must fall under before a thread is removed
+     */
+    public AutoScalingOptions withShrinkBelow(final double shrinkBelow) {
+        if (shrinkBelow <= 0 || shrinkBelow >= 1) {
+            throw new IllegalArgumentException("shrinkBelow must be between 0 and 1");
+        }
+        this.shrinkBelow = shrinkBelow;
+        return this;
+    }
+
+    /**
+     * @param intervalMillis how often the wait time is evaluated; it's measured over the last one to two intervals
+     */
+    public AutoScalingOptions withIntervalMillis(final long intervalMillis) {
+        if (intervalMillis < 2) {
+            throw new IllegalArgumentException("intervalMillis must be at least 2");
+        }
+        this.intervalMillis = intervalMillis;
+        return this;
+    }
+
+    public AutoScalingOptions withCooldowns(final long scaleUpMillis, final long scaleDownMillis) {
+        this.scaleUpCooldownMillis = scaleUpMillis;
+        this.scaleDownCooldownMillis = scaleDownMillis;
+        return this;
+    }
+
+    /**
+     * @param callback told when this process can't grow or shrink any further, e.g. to add or remove instances
+     */
+    public AutoScalingOptions withScalingCallback(final ScalingCallback callback) {
+        this.callback = callback;
+        return this;
+    }
+
+    public long getTargetWaitMillis() {
+        return targetWaitMillis;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public int getMinProcessingThreads() {
+        return minProcessingThreads;
+    }
+
+    public int getMaxProcessingThreads() {
+        return maxProcessingThreads;
+    }
+
+    public int getMaxPollers() {
+        return maxPollers;
+    }
+
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    public double getShrinkBelow() {
+        return shrinkBelow;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getScaleUpCooldownMillis() {
+        return scaleUpCooldownMillis;
+    }
+
+    public long getScaleDownCooldownMillis() {
+        return scaleDownCooldownMillis;
+    }
+
+    public ScalingCallback getScalingCallback() {
+        return callback;
+    }
+}
@@ -0,0 +1,158 @@
+package com.b50.moo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Measures time in queue in SQS's clock using the SentTimestamp, ApproximateFirstReceiveTimestamp and SenderId
+ * attributes. A sender stamps a message before SQS accepts it, so (stamp - SentTimestamp) never exceeds the
+ * sender's true offset from SQS; the largest such value seen recently is the offset estimate. Likewise
+ * (local receive time - ApproximateFirstReceiveTimestamp) never falls below the receiver's offset, so the smallest
+ * recent value estimates it. Estimates are kept over two rolling windows so they follow drift.
+ */
+class ClockSkewEstimator {
+    static final String SENT_TIMESTAMP = "SentTimestamp";
+    static final String FIRST_RECEIVE_TIMESTAMP = "ApproximateFirstReceiveTimestamp";
+    static final String RECEIVE_COUNT = "ApproximateReceiveCount";
+    static final String SENDER_ID = "SenderId";
+    static final long UNKNOWN = Long.MIN_VALUE;
+    private static final long DEFAULT_WINDOW_MILLIS = 5 * 60 * 1000;
+
+    private final long windowMillis;
+    private final ConcurrentMap<String, Offset> producers = new ConcurrentHashMap<String, Offset>();
+    private final Offset consumer = new Offset(false);
+
+    ClockSkewEstimator() {
+        this(DEFAULT_WINDOW_MILLIS);
+    }
+
+    ClockSkewEstimator(final long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @param producerTimestamp the sender's stamp, or Envelope.NO_TIMESTAMP
+     * @param attributes        the message's system attributes, possibly empty
+     * @param now               the local time the message was received
+     * @return the wait in milliseconds, or UNKNOWN if the source can't be applied to this message
+     */
+    long waitTime(final WaitTimeSource source, final long producerTimestamp, final Map<String, String> attributes,
+                  final long now) {
+        final long sent = attribute(attributes, SENT_TIMESTAMP);
+        if (sent != UNKNOWN && "1".equals(attributes.get(RECEIVE_COUNT))) {
+            final long firstReceive = attribute(attributes, FIRST_RECEIVE_TIMESTAMP);
+            if (firstReceive != UNKNOWN) {
+                consumer.sample(now - firstReceive, now);
+            }
+        }
+        if (sent != UNKNOWN && producerTimestamp >= 0) {
+            final String sender = attributes.get(SENDER_ID);
+            if (sender != null) {
+                producerOffset(sender).sample(producerTimestamp - sent, now);
+            }
+        }
+
+        switch (source) {
+            case SENT_TIMESTAMP:
+                if (sent == UNKNOWN) {
+                    return fromProducerClock(producerTimestamp, now);
+                }
+                return toSQSClock(now) - sent;
+            case SKEW_CORRECTED:
+                final String sender = attributes.get(SENDER_ID);
+                final Offset producer = sender == null ? null : producers.get(sender);
+                if (producer == null || producerTimestamp < 0) {
+                    return sent == UNKNOWN ? fromProducerClock(producerTimestamp, now) : toSQSClock(now) - sent;
+                }
+                return toSQSClock(now) - (producerTimestamp - producer.estimate());
+            default:
+                return fromProducerClock(producerTimestamp, now);
+        }
+    }
+
+    /**
+     * @return the estimated offset of the given sender's clock from SQS's, or UNKNOWN
+     */
+    long producerSkew(final String senderId) {
+        final Offset offset = producers.get(senderId);
+        return offset == null ? UNKNOWN : offset.estimate();
+    }
+
+    /**
+     * @return the estimated offset of this host's clock from SQS's, or UNKNOWN
+     */
+    long consumerSkew() {
+        return consumer.estimate();
+    }
+
+    private long toSQSClock(final long now) {
+        final long skew = consumer.estimate();
+        return skew == UNKNOWN ? now : now - skew;
+    }
+
+    private static long fromProducerClock(final long producerTimestamp, final long now) {
+        return producerTimestamp < 0 ? UNKNOWN : now - producerTimestamp;
+    }
+
+    private Offset producerOffset(final String sender) {
+        Offset offset = producers.get(sender);
+        if (offset == null) {
+            final Offset created = new Offset(true);
+            offset = producers.putIfAbsent(sender, created);
+            if (offset == null) {
+                offset = created;
+            }
+        }
+        return offset;
+    }
+
+    private static long attribute(final Map<String, String> attributes, final String name) {
+        final String value = attributes.get(name);
+        if (value == null) {
+            return UNKNOWN;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * the largest (or smallest) sample over the current and previous window
+     */
+    private class Offset {
+        private final boolean keepLargest;
+        private long current = UNKNOWN;
+        private long previous = UNKNOWN;
+        private long windowStart = UNKNOWN;
+
+        private Offset(final boolean keepLargest) {
+            this.keepLargest = keepLargest;
+        }
+
+        synchronized void sample(final long value, final long now) {
+            if (windowStart == UNKNOWN || now - windowStart >= windowMillis) {
+                previous = current;
+                current = UNKNOWN;
+                windowStart = now;
+            }
+            current = better(current, value);
+        }
+
+        synchronized long estimate() {
+            return better(current, previous);
+        }
+
+        private long better(final long a, final long b) {
+            if (a == UNKNOWN) {
+                return b;
+            }
+            if (b == UNKNOWN) {
+                return a;
+            }
+            return keepLargest ? Math.max(a, b) : Math.min(a, b);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.b50.moo.codec.Envelope;
+import com.b50.sqs.MessageReceivedCallback;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a number of long polls in flight and feeds what they receive to a separate processing pool. A poller
+ * only asks SQS for as many messages as there is room for in the processing pool (running plus buffered),
+ * so a saturated pool stops the polling rather than piling up messages whose visibility timeout is ticking.
+ */
+class Consumer {
+    private static final int MAX_BATCH = 10;
+    private static final long ERROR_BACKOFF_MILLIS = 1000;
+
+    private final SQS sqs;
+    private final MessageReceivedCallback callback;
+    private final ConsumerOptions options;
+    private final ResizableSemaphore permits;
+    private volatile int batchSize;
+    private volatile int processingThreads;
+    private final AtomicInteger pollerCount = new AtomicInteger();
+    private volatile int targetPollers;
+    private ExecutorService pollers;
+    private ExecutorService processors;
+    private KeyedExecutor lanes;
+    private volatile boolean running;
+
+    Consumer(final SQS sqs, final MessageReceivedCallback callback, final ConsumerOptions options) {
+        this.sqs = sqs;
+        this.callback = callback;
+        this.options = options;
+        this.processingThreads = options.getProcessingThreads();
+        this.targetPollers = options.getPollers();
+        final int capacity = options.getProcessingThreads() + options.getBufferedMessages();
+        this.permits = new ResizableSemaphore(capacity);
+        this.batchSize = batchSize(capacity, targetPollers);
+    }
+
+    void start() {
+        this.running = true;
+        final ExecutionStrategy execution = sqs.getExecutionStrategy();
+        this.pollers = execution.newExecutor("moo-poller", 0);
+        this.processors = execution.newExecutor("moo-processor", processingThreads);
+        if (options.getPartitionKey() != null) {
+            //lanes can't be added later without reordering keys, so make room for the most threads scaling allows
+            final AutoScalingOptions autoScaling = options.getAutoScaling();
+            this.lanes = new KeyedExecutor(this.processors, autoScaling == null ? processingThreads
+                    : Math.max(processingThreads, autoScaling.getMaxProcessingThreads()));
+        }
+        for (int i = 0; i < targetPollers; i++) {
+            this.addPoller();
+        }
+    }
+
+    /**
+     * Changes the number of processing threads and pollers of a running consumer. Room for buffered messages stays
+     * as configured; a shrinking pool finishes the callbacks it's running, and surplus pollers retire once their
+     * current poll returns. Partition key lanes were sized at start for the auto scaling maximum, so more than that
+     * many threads wouldn't add parallelism for keyed messages.
+     */
+    synchronized void resize(final int processingThreads, final int pollers) {
+        if (!running) {
+            return;
+        }
+        final int delta = processingThreads - this.processingThreads;
+        if (delta > 0) {
+            if (this.processors instanceof ThreadPoolExecutor) {
+                ((ThreadPoolExecutor) this.processors).setMaximumPoolSize(processingThreads);
+                ((ThreadPoolExecutor) this.processors).setCorePoolSize(processingThreads);
+            }
+            this.permits.release(delta);
+        } else if (delta < 0) {
+            this.permits.reducePermits(-delta);
+            if (this.processors instanceof ThreadPoolExecutor) {
+                ((ThreadPoolExecutor) this.processors).setCorePoolSize(processingThreads);
+                ((ThreadPoolExecutor) this.processors).setMaximumPoolSize(processingThreads);
+            }
+        }
+        this.processingThreads = processingThreads;
+        this.batchSize = batchSize(processingThreads + options.getBufferedMessages(), pollers);
+
+        this.targetPollers = pollers;
+        while (pollerCount.get() < pollers) {
+            this.addPoller();
+        }
+    }
+
+    /**
+     * each poller's share of the room, so every one of them can have a long poll in flight at once
+     */
+    static int batchSize(final int capacity, final int pollers) {
+        return Math.max(1, Math.min(MAX_BATCH, capacity / pollers));
+    }
+
+    int getProcessingThreads() {
+        return processingThreads;
+    }
+
+    int getPollers() {
+        return targetPollers;
+    }
+
+    private void addPoller() {
+        pollerCount.incrementAndGet();
+        try {
+            this.pollers.execute(new Poller());
+        } catch (RejectedExecutionException e) {
+            pollerCount.decrementAndGet();
+        }
+    }
+
+    void stop() throws InterruptedException {
+        this.running = false;
+        this.pollers.shutdownNow();
+        this.pollers.awaitTermination(options.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS);
+        this.processors.shutdown();
+        this.processors.awaitTermination(options.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private class Poller implements Runnable {
+        public void run() {
+            while (running && !retire()) {
+                final int wanted;
+                try {
+                    //one free slot is enough to poll; waiting for a whole batch would leave pollers idle
+                    permits.acquire();
+                    wanted = 1 + drainUpTo(batchSize - 1);
+                } catch (InterruptedException e) {
+                    pollerCount.decrementAndGet();
+                    return;
+                }
+                final List<Message> messages;
+                try {
+                    messages = sqs.fetch(wanted, options.getWaitTimeSeconds());
+                } catch (RuntimeException e) {
+                    permits.release(wanted);
+                    if (!running) {
+                        //stop() interrupted the long poll
+                        pollerCount.decrementAndGet();
+                        return;
+                    }
+                    e.printStackTrace();
+                    if (!pause()) {
+                        pollerCount.decrementAndGet();
+                        return;
+                    }
+                    continue;
+                }
+                permits.release(wanted - messages.size());
+                dispatch(messages);
+            }
+        }
+
+        private int drainUpTo(final int max) {
+            int taken = 0;
+            while (taken < max && permits.tryAcquire()) {
+                taken++;
+            }
+            return taken;
+        }
+
+        /**
+         * @return true if this poller is surplus to the target and has stopped counting itself
+         */
+        private boolean retire() {
+            int count;
+            while ((count = pollerCount.get()) > targetPollers) {
+                if (pollerCount.compareAndSet(count, count - 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void dispatch(final List<Message> messages) {
+            for (int i = 0; i < messages.size(); i++) {
+                try {
+                    if (!running) {
+                        throw new RejectedExecutionException("consumer stopped");
+                    }
+                    final Message message = messages.get(i);
+                    if (lanes != null) {
+                        //decoded here for the key, and handed on so the processor needn't decode it again
+                        final Envelope envelope = sqs.decode(message);
+                        lanes.execute(sqs.partitionKey(options.getPartitionKey(), message, envelope),
+                                new Processor(message, envelope));
+                    } else {
+                        processors.execute(new Processor(message, null));
+                    }
+                } catch (RejectedExecutionException e) {
+                    final List<Message> unprocessed = messages.subList(i, messages.size());
+                    permits.release(unprocessed.size());
+                    try {
+                        sqs.release(unprocessed);
+                    } catch (RuntimeException releaseFailure) {
+                        releaseFailure.printStackTrace();
+                    }
+                    return;
+                }
+            }
+        }
+
+        private boolean pause() {
+            try {
+                Thread.sleep(ERROR_BACKOFF_MILLIS);
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    private class Processor implements Runnable {
+        private final Message message;
+        private final Envelope envelope;
+
+        private Processor(final Message message, final Envelope envelope) {
+            this.message = message;
+            this.envelope = envelope;
+        }
+
+        public void run() {
+            try {
+                sqs.process(message, envelope, callback);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * exposes reducePermits so capacity can shrink without waiting for permits to come back
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private ResizableSemaphore(final int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(final int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final boolean daemon;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(final String prefix) {
+            this(prefix, false);
+        }
+
+        NamedThreadFactory(final String prefix, final boolean daemon) {
+            this.prefix = prefix;
+            this.daemon = daemon;
+        }
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(daemon);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.b50.moo;
+
+/**
+ * Sizing for a managed consumer started via {@link SQS#startConsuming(ReceiveCallback, ConsumerOptions)}.
+ */
+public class ConsumerOptions {
+    private int pollers = 2;
+    private int processingThreads = 10;
+    private int bufferedMessages = 10;
+    private int waitTimeSeconds = 20;
+    private long shutdownTimeoutMillis = 30000;
+    private AutoScalingOptions autoScaling;
+    private PartitionKeyExtractor partitionKey;
+
+    /**
+     * @param pollers number of concurrent long polls kept in flight; each asks for its share of the room for
+     *                messages (processing threads plus buffered, up to 10 per poll), so with more pollers than
+     *                that room some wait for a slot to free up
+     */
+    public ConsumerOptions withPollers(final int pollers) {
+        if (pollers < 1) {
+            throw new IllegalArgumentException("pollers must be at least 1");
+        }
+        this.pollers = pollers;
+        return this;
+    }
+
+    /**
+     * @param processingThreads number of threads invoking the ReceiveCallback
+     */
+    public ConsumerOptions withProcessingThreads(final int processingThreads) {
+        if (processingThreads < 1) {
+            throw new IllegalArgumentException("processingThreads must be at least 1");
+        }
+        this.processingThreads = processingThreads;
+        return this;
+    }
+
+    /**
+     * @param bufferedMessages how many received messages may wait for a free processing thread before polling pauses
+     */
+    public ConsumerOptions withBufferedMessages(final int bufferedMessages) {
+        if (bufferedMessages < 0) {
+            throw new IllegalArgumentException("bufferedMessages cannot be negative");
+        }
+        this.bufferedMessages = bufferedMessages;
+        return this;
+    }
+
+    /**
+     * @param waitTimeSeconds long poll duration, 0 to 20 seconds
+     */
+    public ConsumerOptions withWaitTimeSeconds(final int waitTimeSeconds) {
+        if (waitTimeSeconds < 0 || waitTimeSeconds > 20) {
+            throw new IllegalArgumentException("waitTimeSeconds must be between 0 and 20");
+        }
+        this.waitTimeSeconds = waitTimeSeconds;
+        return this;
+    }
+
+    /**
+     * @param shutdownTimeoutMillis how long stop() waits for in-flight callbacks
+     */
+    public ConsumerOptions withShutdownTimeoutMillis(final long shutdownTimeoutMillis) {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param autoScaling lets the consumer resize itself to hold time in queue near a target; the pollers and
+     *                    processing threads configured here are where it starts
+     */
+    public ConsumerOptions withAutoScaling(final AutoScalingOptions autoScaling) {
+        this.autoScaling = autoScaling;
+        return this;
+    }
+
+    /**
+     * @param partitionKey messages sharing a key are processed one at a time in the order received; others run in
+     *                     parallel as usual. It's called on the polling thread, with the message decoded there
+     *                     once for both the key and the callback
+     */
+    public ConsumerOptions withPartitionKey(final PartitionKeyExtractor partitionKey) {
+        this.partitionKey = partitionKey;
+        return this;
+    }
+
+    public int getPollers() {
+        return pollers;
+    }
+
+    public int getProcessingThreads() {
+        return processingThreads;
+    }
+
+    public int getBufferedMessages() {
+        return bufferedMessages;
+    }
+
+    public int getWaitTimeSeconds() {
+        return waitTimeSeconds;
+    }
+
+    public long getShutdownTimeoutMillis() {
+        return shutdownTimeoutMillis;
+    }
+
+    public AutoScalingOptions getAutoScaling() {
+        return autoScaling;
+    }
+
+    public PartitionKeyExtractor getPartitionKey() {
+        return partitionKey;
+    }
+}
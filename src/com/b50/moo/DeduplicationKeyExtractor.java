@@ -0,0 +1,17 @@
+package com.b50.moo;
+
+import java.util.Map;
+
+/**
+ * Picks the key that makes two messages duplicates of each other, for when the same content can arrive under
+ * different SQS message ids -- a producer that retried its send, say. See
+ * {@link SQS#enableDeduplication(int, long, DeduplicationKeyExtractor)}.
+ */
+public interface DeduplicationKeyExtractor {
+    /**
+     * @param body       the message as sent, envelope removed; null if it was offloaded to a PayloadStore
+     * @param attributes the message's string message attributes
+     * @return the key, or null if the message shouldn't be deduplicated
+     */
+    String keyOf(String body, Map<String, String> attributes);
+}
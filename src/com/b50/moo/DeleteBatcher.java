@@ -0,0 +1,156 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces receipt handles into DeleteMessageBatch requests of up to 10 entries. A batch goes out as soon as it
+ * is full or once the oldest pending handle has waited the linger time. Entries SQS reports as failed are retried
+ * a few times unless the failure is the caller's fault (e.g. an expired receipt handle). A handle may come with a
+ * task to run once SQS has confirmed its deletion, such as removing the message's stored payload.
+ */
+class DeleteBatcher {
+    static final int MAX_BATCH = 10;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final AmazonSQS sqs;
+    private final String queueURL;
+    private final ScheduledExecutorService scheduler;
+    private volatile long lingerMillis;
+    private List<PendingDelete> pending = new ArrayList<PendingDelete>();
+
+    DeleteBatcher(final AmazonSQS sqs, final String queueURL, final ScheduledExecutorService scheduler,
+                  final long lingerMillis) {
+        this.sqs = sqs;
+        this.queueURL = queueURL;
+        this.scheduler = scheduler;
+        this.lingerMillis = lingerMillis;
+    }
+
+    void setLingerMillis(final long lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+
+    void delete(final String receiptHandle) {
+        delete(receiptHandle, null);
+    }
+
+    /**
+     * @param onDeleted run on the thread that sent the batch once SQS reports the handle deleted; never run if the
+     *                  delete ultimately fails
+     */
+    void delete(final String receiptHandle, final Runnable onDeleted) {
+        enqueue(new PendingDelete(receiptHandle, onDeleted, 1));
+    }
+
+    /**
+     * sends everything pending right away
+     */
+    void flush() {
+        List<PendingDelete> batch;
+        while (!(batch = drain()).isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private void enqueue(final PendingDelete delete) {
+        List<PendingDelete> full = null;
+        boolean first;
+        synchronized (this) {
+            first = pending.isEmpty();
+            pending.add(delete);
+            if (pending.size() >= MAX_BATCH) {
+                full = pending;
+                pending = new ArrayList<PendingDelete>();
+            }
+        }
+        if (full != null) {
+            send(full);
+        } else if (first) {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized List<PendingDelete> drain() {
+        if (pending.size() <= MAX_BATCH) {
+            final List<PendingDelete> batch = pending;
+            pending = new ArrayList<PendingDelete>();
+            return batch;
+        }
+        final List<PendingDelete> head = pending.subList(0, MAX_BATCH);
+        final List<PendingDelete> batch = new ArrayList<PendingDelete>(head);
+        head.clear();
+        return batch;
+    }
+
+    private void send(final List<PendingDelete> batch) {
+        final List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), batch.get(i).receiptHandle));
+        }
+        try {
+            final DeleteMessageBatchResult result = sqs.deleteMessageBatch(queueURL, entries);
+            final boolean[] failures = new boolean[batch.size()];
+            for (final BatchResultErrorEntry error : result.getFailed()) {
+                final int index = Integer.parseInt(error.getId());
+                failures[index] = true;
+                if (!Boolean.TRUE.equals(error.getSenderFault())) {
+                    retry(batch.get(index));
+                }
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (!failures[i]) {
+                    deleted(batch.get(i));
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            for (final PendingDelete failed : batch) {
+                retry(failed);
+            }
+        }
+    }
+
+    private void deleted(final PendingDelete delete) {
+        if (delete.onDeleted != null) {
+            try {
+                delete.onDeleted.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void retry(final PendingDelete failed) {
+        if (failed.attempt < MAX_ATTEMPTS) {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    enqueue(new PendingDelete(failed.receiptHandle, failed.onDeleted, failed.attempt + 1));
+                }
+            }, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class PendingDelete {
+        final String receiptHandle;
+        final Runnable onDeleted;
+        final int attempt;
+
+        private PendingDelete(final String receiptHandle, final Runnable onDeleted, final int attempt) {
+            this.receiptHandle = receiptHandle;
+            this.onDeleted = onDeleted;
+            this.attempt = attempt;
+        }
+    }
+}
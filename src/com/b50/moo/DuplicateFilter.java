@@ -0,0 +1,165 @@
+package com.b50.moo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Remembers recently seen keys in a fixed amount of memory. Keys are hashed to 64 bits and kept in two generations
+ * of open-addressed tables of longs: new keys go into the current one, lookups check both, and once the current
+ * generation is a window old or holds capacity keys it becomes the previous one and the old previous is dropped. A
+ * key is therefore remembered for at least one window unless more than capacity keys arrive within it, and at most
+ * two. Lookups and inserts are lock-free: a probe of a few array slots, plus a compare-and-set to insert.
+ * <p/>
+ * Memory is two tables of the next power of two above 2 * capacity longs each. A false positive needs two keys with
+ * the same 64-bit hash.
+ */
+public class DuplicateFilter {
+    private static final int MAX_PROBES = 32;
+
+    private final int capacity;
+    private final long windowMillis;
+    private final AtomicReference<Generation> generation;
+
+    /**
+     * @param capacity     how many keys a generation holds; size it for the keys expected within one window
+     * @param windowMillis how long a generation lasts
+     */
+    public DuplicateFilter(final int capacity, final long windowMillis) {
+        if (capacity < 1 || capacity > 1 << 28) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^28");
+        }
+        if (windowMillis < 1) {
+            throw new IllegalArgumentException("windowMillis must be at least 1");
+        }
+        this.capacity = capacity;
+        this.windowMillis = windowMillis;
+        this.generation = new AtomicReference<Generation>(
+                new Generation(new Table(capacity), null, System.currentTimeMillis() + windowMillis));
+    }
+
+    /**
+     * @return whether the key was added within the last window or so
+     */
+    public boolean contains(final String key) {
+        return contains(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Remembers the key.
+     */
+    public void add(final String key) {
+        add(key, System.currentTimeMillis());
+    }
+
+    boolean contains(final String key, final long now) {
+        final long hash = hash(key);
+        final Generation current = current(now);
+        return current.table.contains(hash) || (current.previous != null && current.previous.contains(hash));
+    }
+
+    void add(final String key, final long now) {
+        final long hash = hash(key);
+        Generation current = current(now);
+        while (!current.table.add(hash)) {
+            //full: start a new generation early rather than forget keys at random
+            current = rotate(current, now);
+        }
+    }
+
+    private Generation current(final long now) {
+        final Generation current = generation.get();
+        return now < current.rotateAt ? current : rotate(current, now);
+    }
+
+    private Generation rotate(final Generation expected, final long now) {
+        //a current generation more than a window past its end holds nothing worth keeping
+        final Table previous = now < expected.rotateAt + windowMillis ? expected.table : null;
+        final Generation next = new Generation(new Table(capacity), previous, now + windowMillis);
+        return generation.compareAndSet(expected, next) ? next : generation.get();
+    }
+
+    /**
+     * FNV-1a over the chars, finished with MurmurHash3's mixer so every bit counts towards the slot; never 0, which
+     * marks an empty slot.
+     */
+    static long hash(final String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static class Generation {
+        final Table table;
+        final Table previous;
+        final long rotateAt;
+
+        Generation(final Table table, final Table previous, final long rotateAt) {
+            this.table = table;
+            this.previous = previous;
+            this.rotateAt = rotateAt;
+        }
+    }
+
+    private static class Table {
+        private final AtomicLongArray slots;
+        private final int mask;
+        private final int capacity;
+        private final AtomicInteger size = new AtomicInteger();
+
+        Table(final int capacity) {
+            this.capacity = capacity;
+            this.slots = new AtomicLongArray(Integer.highestOneBit(capacity * 2 - 1) << 1);
+            this.mask = slots.length() - 1;
+        }
+
+        boolean contains(final long hash) {
+            int slot = (int) hash & mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                final long seen = slots.get(slot);
+                if (seen == hash) {
+                    return true;
+                }
+                if (seen == 0) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        /**
+         * @return false if the table is too full to take the key
+         */
+        boolean add(final long hash) {
+            int slot = (int) hash & mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                final long seen = slots.get(slot);
+                if (seen == hash) {
+                    return true;
+                }
+                if (seen == 0) {
+                    if (size.get() >= capacity) {
+                        return false;
+                    }
+                    if (slots.compareAndSet(slot, 0, hash)) {
+                        size.incrementAndGet();
+                        return true;
+                    }
+                    //lost the slot to another key, or to this one; look again
+                    continue;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+    }
+}
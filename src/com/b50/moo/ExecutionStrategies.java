@@ -0,0 +1,101 @@
+package com.b50.moo;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Built-in execution strategies. {@link #PLATFORM} is a bounded pool of ordinary threads, which is what Moo has
+ * always used. {@link #virtualThreads()} starts a virtual thread per task on runtimes that have them (Java 21 and
+ * later), so a blocked 20 second long poll or a slow callback costs next to nothing and hundreds can be in flight
+ * without sizing pools; on older runtimes it falls back to PLATFORM.
+ */
+public class ExecutionStrategies {
+
+    public static final ExecutionStrategy PLATFORM = new ExecutionStrategy() {
+        public ExecutorService newExecutor(final String name, final int threads) {
+            if (threads <= 0) {
+                return Executors.newCachedThreadPool(new Consumer.NamedThreadFactory(name));
+            }
+            return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new Consumer.NamedThreadFactory(name));
+        }
+
+        public boolean isThreadPerTask() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "PLATFORM";
+        }
+    };
+
+    private static final ExecutionStrategy VIRTUAL = VirtualThreads.strategy();
+
+    private ExecutionStrategies() {
+    }
+
+    /**
+     * @return a virtual thread per task strategy, or PLATFORM if this runtime doesn't support virtual threads
+     */
+    public static ExecutionStrategy virtualThreads() {
+        return VIRTUAL != null ? VIRTUAL : PLATFORM;
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * Looks the Java 21 API up reflectively so Moo still builds and runs on older JDKs.
+     */
+    private static class VirtualThreads implements ExecutionStrategy {
+        private final Method ofVirtual;
+        private final Method name;
+        private final Method factory;
+        private final Method newThreadPerTaskExecutor;
+
+        private VirtualThreads() throws Exception {
+            this.ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            this.name = builder.getMethod("name", String.class, long.class);
+            this.factory = builder.getMethod("factory");
+            this.newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        }
+
+        static ExecutionStrategy strategy() {
+            try {
+                final VirtualThreads strategy = new VirtualThreads();
+                strategy.newExecutor("moo-probe", 0).shutdown();
+                return strategy;
+            } catch (Exception e) {
+                return null;
+            } catch (LinkageError e) {
+                return null;
+            }
+        }
+
+        public ExecutorService newExecutor(final String prefix, final int threads) {
+            try {
+                final Object builder = name.invoke(ofVirtual.invoke(null), prefix + "-", 1L);
+                return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory.invoke(builder));
+            } catch (Exception e) {
+                throw new IllegalStateException("unable to create virtual thread executor", e);
+            }
+        }
+
+        public boolean isThreadPerTask() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "VIRTUAL";
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.b50.moo;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Supplies the executors an SQS instance runs long polls, sends and callbacks on. See {@link ExecutionStrategies}
+ * for the built-in platform and virtual thread backends.
+ */
+public interface ExecutionStrategy {
+    /**
+     * @param name    prefix for thread names
+     * @param threads how many tasks need to run at once, or 0 if that varies (the executor must then never queue)
+     */
+    ExecutorService newExecutor(String name, int threads);
+
+    /**
+     * @return whether each task gets its own cheap thread, so concurrency is bounded only by what's submitted
+     */
+    boolean isThreadPerTask();
+}
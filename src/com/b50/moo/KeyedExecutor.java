@@ -0,0 +1,74 @@
+package com.b50.moo;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on a shared executor in lanes: a key always maps to the same lane and a lane runs its tasks one at a
+ * time in submission order, so tasks for one key never overlap or reorder while different lanes proceed in
+ * parallel. A lane only occupies a thread while it has work queued. Tasks without a key go straight to the executor.
+ */
+class KeyedExecutor {
+    private final Executor executor;
+    private final Lane[] lanes;
+
+    KeyedExecutor(final Executor executor, final int lanes) {
+        this.executor = executor;
+        this.lanes = new Lane[Math.max(1, lanes)];
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new Lane();
+        }
+    }
+
+    void execute(final String key, final Runnable task) {
+        if (key == null) {
+            executor.execute(task);
+        } else {
+            lanes[laneOf(key)].execute(task);
+        }
+    }
+
+    int laneOf(final String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    private class Lane implements Runnable {
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean scheduled;
+
+        synchronized void execute(final Runnable task) {
+            tasks.add(task);
+            if (!scheduled) {
+                scheduled = true;
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    tasks.clear();
+                    scheduled = false;
+                    throw e;
+                }
+            }
+        }
+
+        public void run() {
+            while (true) {
+                final Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
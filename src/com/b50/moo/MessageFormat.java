@@ -0,0 +1,21 @@
+package com.b50.moo;
+
+/**
+ * How a sent message carries the time it was enqueued. Receiving understands both, so a queue can be switched over
+ * while older messages are still on it.
+ */
+public enum MessageFormat {
+    /**
+     * the body is wrapped in an envelope (see {@link SQS#setEnvelopeCodec(com.b50.moo.codec.EnvelopeCodec)}); only
+     * Moo can read it, but it works for any SQS client or adapter
+     */
+    ENVELOPE,
+    /**
+     * the body is sent untouched and the timestamp travels as the {@link #TIMESTAMP_ATTRIBUTE} message attribute,
+     * so there's nothing to escape or parse and any SQS consumer can read the queue; requires an AmazonSQS client.
+     * Bodies SQS can't carry (empty or oversized ones stored in a PayloadStore) still go in an envelope
+     */
+    ATTRIBUTES;
+
+    public static final String TIMESTAMP_ATTRIBUTE = "MooTimestamp";
+}
@@ -0,0 +1,104 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.b50.moo.codec.Envelope;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A received message handed to an {@link AcknowledgingReceiveCallback}. It's resolved exactly once, by ack() or a
+ * nack(); later attempts return false. Safe to resolve from any thread.
+ */
+public class MessageHandle {
+    private final SQS sqs;
+    private final Message message;
+    private final Envelope envelope;
+    private final String body;
+    private final AtomicBoolean resolved = new AtomicBoolean();
+
+    /**
+     * @param body the envelope's message, or the stored payload it refers to
+     */
+    MessageHandle(final SQS sqs, final Message message, final Envelope envelope, final String body) {
+        this.sqs = sqs;
+        this.message = message;
+        this.envelope = envelope;
+        this.body = body;
+    }
+
+    public String getMessageId() {
+        return message.getMessageId();
+    }
+
+    /**
+     * @return the message as sent, envelope removed
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return how many times SQS has handed out this message, including this time
+     */
+    public int getReceiveCount() {
+        final String count = message.getAttributes().get(ClockSkewEstimator.RECEIVE_COUNT);
+        if (count == null) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * the message was processed; it's deleted along with the other acknowledged messages in the next batch
+     *
+     * @return false if the handle was already resolved
+     */
+    public boolean ack() {
+        if (!resolved.compareAndSet(false, true)) {
+            return false;
+        }
+        sqs.acknowledge(message, envelope);
+        return true;
+    }
+
+    /**
+     * the message couldn't be processed; it's redelivered after a backoff that grows with each failed receive (see
+     * {@link SQS#setNackBackoff(int, int)})
+     *
+     * @return false if the handle was already resolved
+     */
+    public boolean nack() {
+        return nack(sqs.nackDelaySeconds(getReceiveCount()));
+    }
+
+    /**
+     * @param delaySeconds how long before the message is redelivered; 0 makes it available right away
+     * @return false if the handle was already resolved
+     */
+    public boolean nack(final int delaySeconds) {
+        if (!resolved.compareAndSet(false, true)) {
+            return false;
+        }
+        sqs.changeVisibility(message.getReceiptHandle(), delaySeconds, true);
+        return true;
+    }
+
+    /**
+     * keeps the message invisible to other consumers for another visibilityTimeoutSeconds from now; the visibility
+     * heartbeat, if enabled, won't shorten it, and takes over again once its own extension would reach further
+     */
+    public void extend(final int visibilityTimeoutSeconds) {
+        if (resolved.get()) {
+            throw new IllegalStateException("message " + getMessageId() + " was already resolved");
+        }
+        sqs.changeVisibility(message.getReceiptHandle(), visibilityTimeoutSeconds, false);
+    }
+
+    public boolean isResolved() {
+        return resolved.get();
+    }
+}
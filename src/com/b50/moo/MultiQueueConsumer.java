@@ -0,0 +1,292 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.b50.sqs.MessageReceivedCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumes many queues with one set of pollers and one processing pool. Pollers pick the next queue by stride
+ * scheduling: each queue advances by 1/weight every time it's polled and the one furthest behind goes next, so over
+ * time queues are polled in proportion to their weights. A queue whose messages have been waiting longer than the
+ * target has its weight boosted (up to fourfold), steering capacity to where it's needed. A queue that comes back
+ * empty (or fails) is skipped for a backoff that doubles with each such poll and resets once it has messages again.
+ * Keep the wait time in the ConsumerOptions short, since a long poll of a quiet queue ties up a poller.
+ * <p>
+ * The pollers and processing pool are shared, but each SQS added still brings its own worker pool (up to 10
+ * threads) and scheduler thread unless it was created with {@link SQS#SQS(SQS, String)} from another one.
+ */
+public class MultiQueueConsumer {
+    private static final long STRIDE = 1L << 20;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+    private static final double MAX_BOOST = 4;
+    private static final long BOOST_REFRESH_MILLIS = 1000;
+
+    private final ConsumerOptions options;
+    private final ExecutionStrategy execution;
+    private final List<QueueState> queues = new ArrayList<QueueState>();
+    private final Semaphore permits;
+    private final int batchSize;
+    private volatile long targetWaitMillis;
+    private long virtualTime;
+    private ExecutorService pollers;
+    private ExecutorService processors;
+    private volatile boolean running;
+
+    public MultiQueueConsumer(final ConsumerOptions options) {
+        this(options, ExecutionStrategies.PLATFORM);
+    }
+
+    /**
+     * @param options   pollers, processing threads and buffering shared by all queues; auto scaling and partition
+     *                  keys aren't supported here
+     * @param execution what the pollers and processing threads run on
+     */
+    public MultiQueueConsumer(final ConsumerOptions options, final ExecutionStrategy execution) {
+        if (options.getAutoScaling() != null) {
+            throw new IllegalArgumentException("a MultiQueueConsumer doesn't auto scale");
+        }
+        if (options.getPartitionKey() != null) {
+            throw new IllegalArgumentException("a MultiQueueConsumer doesn't order messages by partition key");
+        }
+        this.options = options;
+        this.execution = execution;
+        final int capacity = options.getProcessingThreads() + options.getBufferedMessages();
+        this.permits = new Semaphore(capacity);
+        this.batchSize = Consumer.batchSize(capacity, options.getPollers());
+    }
+
+    /**
+     * @param sqs      must have been created with an AmazonSQS client
+     * @param callback invoked for each message from this queue
+     * @param weight   relative share of polls, at least 1
+     */
+    public synchronized MultiQueueConsumer addQueue(final SQS sqs, final ReceiveCallback callback, final int weight) {
+        if (!sqs.hasClient()) {
+            throw new IllegalArgumentException("consuming requires an SQS created with an AmazonSQS client");
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        final QueueState queue = new QueueState(sqs, sqs.wrap(callback), weight);
+        queue.pass = virtualTime;
+        this.queues.add(queue);
+        this.notifyAll();
+        return this;
+    }
+
+    /**
+     * @param targetWaitMillis queues whose p90 time in queue exceeds this get polled more often; 0 disables boosting
+     */
+    public MultiQueueConsumer setTargetWaitMillis(final long targetWaitMillis) {
+        this.targetWaitMillis = targetWaitMillis;
+        return this;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("already consuming; call stop() first");
+        }
+        this.running = true;
+        this.pollers = execution.newExecutor("moo-multi-poller", options.getPollers());
+        this.processors = execution.newExecutor("moo-multi-processor", options.getProcessingThreads());
+        for (int i = 0; i < options.getPollers(); i++) {
+            this.pollers.execute(new Poller());
+        }
+    }
+
+    /**
+     * Stops polling and waits for in-flight callbacks; received messages not yet handed to a callback are made
+     * visible again.
+     */
+    public void stop() throws InterruptedException {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            this.running = false;
+        }
+        this.pollers.shutdownNow();
+        this.pollers.awaitTermination(options.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS);
+        this.processors.shutdown();
+        this.processors.awaitTermination(options.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS);
+        for (final QueueState queue : snapshot()) {
+            queue.sqs.flush();
+        }
+    }
+
+    /**
+     * @return the queue to poll next, or null if every queue is backing off
+     */
+    synchronized QueueState next(final long now) {
+        QueueState next = null;
+        for (final QueueState queue : queues) {
+            if (queue.nextPollAt > now) {
+                continue;
+            }
+            if (queue.pass < virtualTime) {
+                //back from a backoff; don't let it make up for lost polls all at once
+                queue.pass = virtualTime;
+            }
+            if (next == null || queue.pass < next.pass) {
+                next = queue;
+            }
+        }
+        if (next != null) {
+            virtualTime = next.pass;
+            next.pass += (long) (STRIDE / (next.weight * next.boost(now)));
+        }
+        return next;
+    }
+
+    synchronized void polled(final QueueState queue, final int received, final long now) {
+        if (received > 0) {
+            queue.backoffMillis = 0;
+            queue.nextPollAt = 0;
+        } else {
+            queue.backoffMillis = queue.backoffMillis == 0 ? MIN_BACKOFF_MILLIS
+                    : Math.min(MAX_BACKOFF_MILLIS, queue.backoffMillis * 2);
+            queue.nextPollAt = now + queue.backoffMillis;
+        }
+    }
+
+    private synchronized QueueState awaitNext() throws InterruptedException {
+        while (running) {
+            final long now = System.currentTimeMillis();
+            final QueueState next = next(now);
+            if (next != null) {
+                return next;
+            }
+            long wake = Long.MAX_VALUE;
+            for (final QueueState queue : queues) {
+                wake = Math.min(wake, queue.nextPollAt);
+            }
+            this.wait(wake == Long.MAX_VALUE ? MAX_BACKOFF_MILLIS : Math.max(1, wake - now));
+        }
+        return null;
+    }
+
+    private synchronized List<QueueState> snapshot() {
+        return new ArrayList<QueueState>(queues);
+    }
+
+    class QueueState {
+        final SQS sqs;
+        final MessageReceivedCallback callback;
+        final int weight;
+        long pass;
+        long nextPollAt;
+        long backoffMillis;
+        private double boost = 1;
+        private long boostComputedAt = Long.MIN_VALUE;
+
+        private QueueState(final SQS sqs, final MessageReceivedCallback callback, final int weight) {
+            this.sqs = sqs;
+            this.callback = callback;
+            this.weight = weight;
+        }
+
+        private double boost(final long now) {
+            final long target = targetWaitMillis;
+            if (target <= 0) {
+                return 1;
+            }
+            if (now - boostComputedAt >= BOOST_REFRESH_MILLIS) {
+                final long p90 = sqs.getQueueMetrics().getP90();
+                boost = Math.max(1, Math.min(MAX_BOOST, (double) p90 / target));
+                boostComputedAt = now;
+            }
+            return boost;
+        }
+    }
+
+    private class Poller implements Runnable {
+        public void run() {
+            while (running) {
+                final QueueState queue;
+                try {
+                    //one free slot is enough to poll; waiting for a whole batch would leave pollers idle
+                    permits.acquire();
+                    queue = awaitNext();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (queue == null) {
+                    permits.release();
+                    return;
+                }
+                final int wanted = 1 + drainUpTo(batchSize - 1);
+                final List<Message> messages;
+                try {
+                    messages = queue.sqs.fetch(wanted, options.getWaitTimeSeconds());
+                } catch (RuntimeException e) {
+                    permits.release(wanted);
+                    if (!running) {
+                        //stop() interrupted the long poll
+                        return;
+                    }
+                    e.printStackTrace();
+                    polled(queue, 0, System.currentTimeMillis());
+                    continue;
+                }
+                permits.release(wanted - messages.size());
+                polled(queue, messages.size(), System.currentTimeMillis());
+                dispatch(queue, messages);
+            }
+        }
+
+        private int drainUpTo(final int max) {
+            int taken = 0;
+            while (taken < max && permits.tryAcquire()) {
+                taken++;
+            }
+            return taken;
+        }
+
+        private void dispatch(final QueueState queue, final List<Message> messages) {
+            for (int i = 0; i < messages.size(); i++) {
+                try {
+                    if (!running) {
+                        throw new RejectedExecutionException("consumer stopped");
+                    }
+                    processors.execute(new Processor(queue, messages.get(i)));
+                } catch (RejectedExecutionException e) {
+                    final List<Message> unprocessed = messages.subList(i, messages.size());
+                    permits.release(unprocessed.size());
+                    try {
+                        queue.sqs.release(unprocessed);
+                    } catch (RuntimeException releaseFailure) {
+                        releaseFailure.printStackTrace();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private class Processor implements Runnable {
+        private final QueueState queue;
+        private final Message message;
+
+        private Processor(final QueueState queue, final Message message) {
+            this.queue = queue;
+            this.message = message;
+        }
+
+        public void run() {
+            try {
+                queue.sqs.process(message, queue.callback);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.b50.moo.outbox.SegmentedLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Makes sends durable before they reach SQS. {@link #append} writes the message to a {@link SegmentedLog} and
+ * returns; a drainer reads the log in order, ships SendMessageBatch requests of up to 10 messages and 256KB, and
+ * checkpoints once every batch up to a point has been acknowledged. Whatever wasn't checkpointed when the process
+ * went away is sent again when the directory is next opened, so delivery is at least once.
+ * <p/>
+ * Batches that fail as a whole, and entries SQS failed on its side, are retried with backoff until they go through;
+ * entries it rejected as the sender's fault are reported to their SendFailureCallback and dropped. Appends block once
+ * maxUnsentBytes are waiting, so a producer can't outrun SQS indefinitely.
+ */
+class Outbox {
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+
+    private final AmazonSQS sqs;
+    private final String queueURL;
+    private final SegmentedLog log;
+    private final long maxUnsentBytes;
+    private final int maxInFlightBatches;
+    private final Semaphore batches;
+    private final ExecutorService pool;
+    private final ConcurrentMap<Long, SendCallback> callbacks = new ConcurrentHashMap<Long, SendCallback>();
+    private final ArrayDeque<InFlight> inFlight = new ArrayDeque<InFlight>();
+    //retry backoffs wait on this rather than the outbox, so appends and acknowledgements don't cut them short
+    private final Object closing = new Object();
+    private volatile boolean running = true;
+    private boolean idle;
+
+    Outbox(final AmazonSQS sqs, final String queueURL, final File directory, final ExecutionStrategy execution,
+           final OutboxOptions options) throws IOException {
+        this.sqs = sqs;
+        this.queueURL = queueURL;
+        this.log = new SegmentedLog(directory, options.getSegmentBytes());
+        this.maxUnsentBytes = options.getMaxUnsentBytes();
+        this.maxInFlightBatches = options.getMaxInFlightBatches();
+        this.batches = new Semaphore(maxInFlightBatches);
+        this.pool = execution.newExecutor("moo-outbox", maxInFlightBatches + 1);
+        this.pool.execute(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Logs a message for sending, waiting first if too much is already unsent.
+     *
+     * @param body       the encoded message body
+     * @param attributes message attributes with string values, or null
+     * @param callback   may be null; told about the message only if it's sent before this process exits
+     */
+    void append(final String body, final Map<String, MessageAttributeValue> attributes,
+                final SendCallback callback) throws IOException, InterruptedException {
+        final byte[] record = encode(body, attributes);
+        synchronized (this) {
+            //an oversized record still gets in once everything before it has gone
+            while (running && log.getUnconsumedBytes() > 0
+                    && log.getUnconsumedBytes() + record.length > maxUnsentBytes) {
+                wait();
+            }
+            if (!running) {
+                throw new IOException("outbox is closed");
+            }
+            final long offset = log.append(record);
+            if (callback != null) {
+                callbacks.put(offset, callback);
+            }
+            if (idle) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return bytes logged but not yet acknowledged by SQS
+     */
+    long getUnsentBytes() {
+        return log.getUnconsumedBytes();
+    }
+
+    /**
+     * Stops draining, waiting for outstanding batches. Anything unsent stays in the log for next time.
+     */
+    void close() throws InterruptedException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        synchronized (closing) {
+            closing.notifyAll();
+        }
+        batches.acquire(maxInFlightBatches);
+        pool.shutdown();
+        log.close();
+    }
+
+    private void drain() {
+        long cursor = log.getCheckpoint();
+        while (running) {
+            try {
+                batches.acquire();
+                synchronized (this) {
+                    idle = true;
+                    while (running && log.getWriteOffset() <= cursor) {
+                        wait();
+                    }
+                    idle = false;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!running) {
+                batches.release();
+                return;
+            }
+            final List<Entry> batch = new ArrayList<Entry>(SendBatcher.MAX_BATCH);
+            int bytes = 0;
+            SegmentedLog.Record record;
+            while (batch.size() < SendBatcher.MAX_BATCH && (record = log.read(cursor)) != null) {
+                //the record's length bounds what SQS will count, so a batch never runs over
+                if (!batch.isEmpty() && bytes + record.getData().length > SendBatcher.MAX_BATCH_BYTES) {
+                    break;
+                }
+                try {
+                    batch.add(decode(record));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    unreadable(record.getOffset(), e);
+                }
+                bytes += record.getData().length;
+                cursor = record.getNextOffset();
+            }
+            final InFlight flight = new InFlight(cursor);
+            synchronized (this) {
+                inFlight.add(flight);
+            }
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        ship(batch, flight);
+                    } finally {
+                        batches.release();
+                    }
+                }
+            });
+        }
+    }
+
+    private void ship(final List<Entry> sends, final InFlight flight) {
+        long backoffMillis = 100;
+        List<Entry> batch = sends;
+        while (!batch.isEmpty()) {
+            final List<SendMessageBatchRequestEntry> entries =
+                    new ArrayList<SendMessageBatchRequestEntry>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                final Entry entry = batch.get(i);
+                entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), entry.body)
+                        .withMessageAttributes(entry.attributes));
+            }
+            List<Entry> retry = batch;
+            try {
+                final SendMessageBatchResult result =
+                        sqs.sendMessageBatch(new SendMessageBatchRequest(queueURL, entries));
+                retry = new ArrayList<Entry>();
+                for (final SendMessageBatchResultEntry sent : result.getSuccessful()) {
+                    batch.get(Integer.parseInt(sent.getId())).messageId = sent.getMessageId();
+                }
+                for (final BatchResultErrorEntry error : result.getFailed()) {
+                    final Entry entry = batch.get(Integer.parseInt(error.getId()));
+                    if (error.isSenderFault()) {
+                        entry.errorCode = error.getCode();
+                        entry.errorMessage = error.getMessage();
+                    } else {
+                        retry.add(entry);
+                    }
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (!retry.isEmpty()) {
+                try {
+                    synchronized (closing) {
+                        if (running) {
+                            closing.wait(backoffMillis);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running) {
+                    //left unacknowledged, so it's sent again once the outbox is reopened
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            }
+            batch = retry;
+        }
+        acknowledge(flight);
+        for (final Entry entry : sends) {
+            final SendCallback callback = callbacks.remove(entry.offset);
+            if (callback == null) {
+                continue;
+            }
+            if (entry.messageId != null) {
+                callback.onSend(entry.messageId);
+            } else if (callback instanceof SendFailureCallback) {
+                ((SendFailureCallback) callback).onFailure(entry.errorCode, entry.errorMessage);
+            }
+        }
+    }
+
+    /**
+     * a record that can't be decoded is skipped, so its callback is told now rather than left registered forever
+     */
+    private void unreadable(final long offset, final IOException e) {
+        final SendCallback callback = callbacks.remove(offset);
+        if (callback instanceof SendFailureCallback) {
+            ((SendFailureCallback) callback).onFailure(e.getClass().getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Checkpoints past every batch that's done, up to the first that isn't; taking the lock also makes callbacks
+     * registered by append visible here.
+     */
+    private synchronized void acknowledge(final InFlight flight) {
+        flight.done = true;
+        long acknowledged = -1;
+        while (!inFlight.isEmpty() && inFlight.peek().done) {
+            acknowledged = inFlight.poll().end;
+        }
+        if (acknowledged >= 0) {
+            log.checkpoint(acknowledged);
+            notifyAll();
+        }
+    }
+
+    static byte[] encode(final String body, final Map<String, MessageAttributeValue> attributes) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length() + 64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(attributes == null ? 0 : attributes.size());
+        if (attributes != null) {
+            for (final Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+                out.writeUTF(attribute.getKey());
+                out.writeUTF(attribute.getValue().getDataType());
+                out.writeUTF(attribute.getValue().getStringValue());
+            }
+        }
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(final SegmentedLog.Record record) throws IOException {
+        final byte[] data = record.getData();
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        final DataInputStream in = new DataInputStream(bytes);
+        final int count = in.readUnsignedShort();
+        final Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>(count * 2);
+        for (int i = 0; i < count; i++) {
+            final String name = in.readUTF();
+            attributes.put(name, new MessageAttributeValue().withDataType(in.readUTF()).withStringValue(in.readUTF()));
+        }
+        final int remaining = bytes.available();
+        return new Entry(record.getOffset(), new String(data, data.length - remaining, remaining, "UTF-8"), attributes);
+    }
+
+    private static class Entry {
+        final long offset;
+        final String body;
+        final Map<String, MessageAttributeValue> attributes;
+        String messageId;
+        String errorCode;
+        String errorMessage;
+
+        Entry(final long offset, final String body, final Map<String, MessageAttributeValue> attributes) {
+            this.offset = offset;
+            this.body = body;
+            this.attributes = attributes;
+        }
+    }
+
+    private static class InFlight {
+        final long end;
+        boolean done;
+
+        InFlight(final long end) {
+            this.end = end;
+        }
+    }
+}
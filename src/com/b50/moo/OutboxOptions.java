@@ -0,0 +1,55 @@
+package com.b50.moo;
+
+/**
+ * Sizing for the send outbox; see {@link SQS#enableOutbox(java.io.File, OutboxOptions)}.
+ */
+public class OutboxOptions {
+    private int segmentBytes = 32 * 1024 * 1024;
+    private long maxUnsentBytes = 64 * 1024 * 1024;
+    private int maxInFlightBatches = 4;
+
+    /**
+     * @param segmentBytes size of each log file; must hold the largest message, so at least 512KB
+     */
+    public OutboxOptions withSegmentBytes(final int segmentBytes) {
+        if (segmentBytes < 512 * 1024) {
+            throw new IllegalArgumentException("segmentBytes must be at least 512KB");
+        }
+        this.segmentBytes = segmentBytes;
+        return this;
+    }
+
+    /**
+     * @param maxUnsentBytes how much may be logged but not yet acknowledged by SQS before send blocks
+     */
+    public OutboxOptions withMaxUnsentBytes(final long maxUnsentBytes) {
+        if (maxUnsentBytes < 1) {
+            throw new IllegalArgumentException("maxUnsentBytes must be at least 1");
+        }
+        this.maxUnsentBytes = maxUnsentBytes;
+        return this;
+    }
+
+    /**
+     * @param maxInFlightBatches how many SendMessageBatch requests may be outstanding at once
+     */
+    public OutboxOptions withMaxInFlightBatches(final int maxInFlightBatches) {
+        if (maxInFlightBatches < 1) {
+            throw new IllegalArgumentException("maxInFlightBatches must be at least 1");
+        }
+        this.maxInFlightBatches = maxInFlightBatches;
+        return this;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public long getMaxUnsentBytes() {
+        return maxUnsentBytes;
+    }
+
+    public int getMaxInFlightBatches() {
+        return maxInFlightBatches;
+    }
+}
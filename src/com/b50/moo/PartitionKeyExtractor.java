@@ -0,0 +1,16 @@
+package com.b50.moo;
+
+import java.util.Map;
+
+/**
+ * Picks the key that orders a message relative to others: messages with the same key are processed one after
+ * another in the order received, while messages with different keys are processed in parallel.
+ */
+public interface PartitionKeyExtractor {
+    /**
+     * @param body       the message as sent, envelope removed; null if it was offloaded to a PayloadStore
+     * @param attributes the message's string message attributes
+     * @return the key, or null if the message can run in any order
+     */
+    String keyOf(String body, Map<String, String> attributes);
+}
@@ -0,0 +1,107 @@
+package com.b50.moo;
+
+/**
+ * Sizing for a {@link PrefetchingConsumer}.
+ */
+public class PrefetchOptions {
+    private int maxMessages = 100;
+    private long maxBytes = 16 * 1024 * 1024;
+    private int pollers = 1;
+    private int waitTimeSeconds = 20;
+    private int visibilityTimeoutSeconds = 30;
+    private long releaseMarginMillis = 5000;
+
+    /**
+     * @param maxMessages how many received messages may wait in the buffer
+     */
+    public PrefetchOptions withMaxMessages(final int maxMessages) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("maxMessages must be at least 1");
+        }
+        this.maxMessages = maxMessages;
+        return this;
+    }
+
+    /**
+     * @param maxBytes roughly how much memory buffered message bodies may take; polling pauses above it, so the
+     *                 buffer can overshoot by one batch
+     */
+    public PrefetchOptions withMaxBytes(final long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be at least 1");
+        }
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param pollers number of concurrent long polls refilling the buffer
+     */
+    public PrefetchOptions withPollers(final int pollers) {
+        if (pollers < 1) {
+            throw new IllegalArgumentException("pollers must be at least 1");
+        }
+        this.pollers = pollers;
+        return this;
+    }
+
+    /**
+     * @param waitTimeSeconds long poll duration, 0 to 20 seconds
+     */
+    public PrefetchOptions withWaitTimeSeconds(final int waitTimeSeconds) {
+        if (waitTimeSeconds < 0 || waitTimeSeconds > 20) {
+            throw new IllegalArgumentException("waitTimeSeconds must be between 0 and 20");
+        }
+        this.waitTimeSeconds = waitTimeSeconds;
+        return this;
+    }
+
+    /**
+     * @param visibilityTimeoutSeconds the visibility timeout messages are received with; prefetched messages are
+     *                                 requested with it explicitly
+     */
+    public PrefetchOptions withVisibilityTimeoutSeconds(final int visibilityTimeoutSeconds) {
+        if (visibilityTimeoutSeconds < 1) {
+            throw new IllegalArgumentException("visibilityTimeoutSeconds must be at least 1");
+        }
+        this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+        return this;
+    }
+
+    /**
+     * @param releaseMarginMillis a buffered message is made visible again once it's this close to its visibility
+     *                            timeout running out, rather than handed to a worker with no time left;
+     *                            must be less than the visibility timeout
+     */
+    public PrefetchOptions withReleaseMarginMillis(final long releaseMarginMillis) {
+        if (releaseMarginMillis < 0) {
+            throw new IllegalArgumentException("releaseMarginMillis cannot be negative");
+        }
+        this.releaseMarginMillis = releaseMarginMillis;
+        return this;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getPollers() {
+        return pollers;
+    }
+
+    public int getWaitTimeSeconds() {
+        return waitTimeSeconds;
+    }
+
+    public int getVisibilityTimeoutSeconds() {
+        return visibilityTimeoutSeconds;
+    }
+
+    public long getReleaseMarginMillis() {
+        return releaseMarginMillis;
+    }
+}
@@ -0,0 +1,279 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.b50.moo.codec.Envelope;
+import com.b50.moo.codec.MalformedEnvelopeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a bounded buffer of received, decoded messages topped up by background long polls, so workers pulling
+ * from it with {@link #take()} don't wait out a round trip to SQS between batches. The buffer is a ring
+ * (ArrayBlockingQueue) bounded by message count, and polling also pauses while the buffered bodies exceed a memory
+ * budget. A buffered message that gets close to its visibility timeout is made visible again instead of being
+ * handed out, so another consumer can have it.
+ */
+public class PrefetchingConsumer {
+    private static final int MAX_BATCH = 10;
+    private static final long ERROR_BACKOFF_MILLIS = 1000;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final SQS sqs;
+    private final PrefetchOptions options;
+    private final BlockingQueue<Prefetched> buffer;
+    private final Semaphore slots;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final Object space = new Object();
+    private ExecutorService pollers;
+    private ScheduledFuture<?> sweeper;
+    private volatile boolean running;
+
+    /**
+     * @param sqs must have been created with an AmazonSQS client
+     */
+    public PrefetchingConsumer(final SQS sqs, final PrefetchOptions options) {
+        if (!sqs.hasClient()) {
+            throw new IllegalArgumentException("prefetching requires an SQS created with an AmazonSQS client");
+        }
+        if (options.getReleaseMarginMillis() >= options.getVisibilityTimeoutSeconds() * 1000L) {
+            throw new IllegalArgumentException("releaseMarginMillis must be less than the visibility timeout, or "
+                    + "every message would be released as soon as it's received");
+        }
+        this.sqs = sqs;
+        this.options = options;
+        this.buffer = new ArrayBlockingQueue<Prefetched>(options.getMaxMessages());
+        this.slots = new Semaphore(options.getMaxMessages());
+    }
+
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("already prefetching; call stop() first");
+        }
+        this.running = true;
+        this.pollers = sqs.getExecutionStrategy().newExecutor("moo-prefetch", options.getPollers());
+        for (int i = 0; i < options.getPollers(); i++) {
+            this.pollers.execute(new Poller());
+        }
+        this.sweeper = sqs.getScheduler().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the next buffered message, waiting for one if necessary; resolve it with ack() or nack()
+     */
+    public MessageHandle take() throws InterruptedException {
+        while (true) {
+            final MessageHandle handle = handOut(buffer.take());
+            if (handle != null) {
+                return handle;
+            }
+        }
+    }
+
+    /**
+     * @return the next buffered message, or null if none arrived within the timeout
+     */
+    public MessageHandle poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            final Prefetched prefetched = buffer.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (prefetched == null) {
+                return null;
+            }
+            final MessageHandle handle = handOut(prefetched);
+            if (handle != null) {
+                return handle;
+            }
+        }
+    }
+
+    /**
+     * Stops polling and makes every message still in the buffer visible again.
+     */
+    public void stop() throws InterruptedException {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            this.running = false;
+        }
+        this.sweeper.cancel(false);
+        this.pollers.shutdownNow();
+        this.pollers.awaitTermination(30, TimeUnit.SECONDS);
+        final List<Prefetched> remaining = new ArrayList<Prefetched>();
+        buffer.drainTo(remaining);
+        final List<Message> messages = new ArrayList<Message>(remaining.size());
+        for (final Prefetched prefetched : remaining) {
+            removed(prefetched);
+            messages.add(prefetched.message);
+        }
+        release(messages);
+    }
+
+    public int getBufferedMessages() {
+        return buffer.size();
+    }
+
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * Hands out a buffered message, tracking it with the SQS instance's visibility heartbeat (if enabled) until
+     * its handle is resolved.
+     *
+     * @return null if the message was about to become visible again and got released instead, or was a duplicate
+     *         of one already processed and got deleted
+     */
+    private MessageHandle handOut(final Prefetched prefetched) {
+        removed(prefetched);
+        if (System.currentTimeMillis() >= prefetched.releaseAt) {
+            final List<Message> expired = new ArrayList<Message>(1);
+            expired.add(prefetched.message);
+            release(expired);
+            return null;
+        }
+        if (sqs.discardIfDuplicate(prefetched.message, prefetched.envelope)) {
+            return null;
+        }
+        final MessageHandle handle = sqs.handle(prefetched.message, prefetched.envelope);
+        final VisibilityExtender extender = sqs.getVisibilityExtender();
+        if (extender != null) {
+            extender.track(prefetched.message.getReceiptHandle());
+        }
+        return handle;
+    }
+
+    /**
+     * releases buffered messages whose visibility timeout is about to run out; they're at the head since the buffer
+     * is in arrival order
+     */
+    void sweep(final long now) {
+        final List<Message> expired = new ArrayList<Message>();
+        Prefetched head;
+        while ((head = buffer.peek()) != null && now >= head.releaseAt) {
+            if (buffer.remove(head)) {
+                removed(head);
+                expired.add(head.message);
+            }
+        }
+        release(expired);
+    }
+
+    private void removed(final Prefetched prefetched) {
+        slots.release();
+        if (bufferedBytes.addAndGet(-prefetched.size) + prefetched.size >= options.getMaxBytes()) {
+            synchronized (space) {
+                space.notifyAll();
+            }
+        }
+    }
+
+    private void release(final List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        try {
+            sqs.release(messages);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private class Poller implements Runnable {
+        public void run() {
+            while (running) {
+                final int wanted;
+                try {
+                    synchronized (space) {
+                        while (bufferedBytes.get() >= options.getMaxBytes()) {
+                            space.wait(SWEEP_INTERVAL_MILLIS);
+                        }
+                    }
+                    slots.acquire();
+                    wanted = 1 + drainUpTo(MAX_BATCH - 1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                final List<Message> messages;
+                try {
+                    messages = sqs.fetch(wanted, options.getWaitTimeSeconds(), options.getVisibilityTimeoutSeconds());
+                } catch (RuntimeException e) {
+                    slots.release(wanted);
+                    if (!running) {
+                        //stop() interrupted the long poll
+                        return;
+                    }
+                    e.printStackTrace();
+                    try {
+                        Thread.sleep(ERROR_BACKOFF_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    continue;
+                }
+                slots.release(wanted - messages.size());
+                final long receivedAt = System.currentTimeMillis();
+                final long releaseAt = receivedAt + options.getVisibilityTimeoutSeconds() * 1000L
+                        - options.getReleaseMarginMillis();
+                for (final Message message : messages) {
+                    buffer(message, receivedAt, releaseAt);
+                }
+            }
+        }
+
+        private int drainUpTo(final int max) {
+            int taken = 0;
+            while (taken < max && slots.tryAcquire()) {
+                taken++;
+            }
+            return taken;
+        }
+
+        private void buffer(final Message message, final long receivedAt, final long releaseAt) {
+            final Envelope envelope;
+            try {
+                envelope = SQS.unwrap(message);
+            } catch (MalformedEnvelopeException e) {
+                //left alone; it becomes visible again when its timeout runs out
+                e.printStackTrace();
+                slots.release();
+                return;
+            }
+            sqs.recordWaitTime(envelope, message.getAttributes(), receivedAt);
+            final Prefetched prefetched = new Prefetched(message, envelope, releaseAt);
+            bufferedBytes.addAndGet(prefetched.size);
+            //a slot was reserved for it, so this never has to wait
+            buffer.offer(prefetched);
+        }
+    }
+
+    private static class Prefetched {
+        final Message message;
+        final Envelope envelope;
+        final long releaseAt;
+        final long size;
+
+        private Prefetched(final Message message, final Envelope envelope, final long releaseAt) {
+            this.message = message;
+            this.envelope = envelope;
+            this.releaseAt = releaseAt;
+            this.size = 2L * message.getBody().length();
+        }
+    }
+}
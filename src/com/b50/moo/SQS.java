@@ -1,18 +1,49 @@
 package com.b50.moo;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.b50.moo.codec.EncodedSize;
+import com.b50.moo.codec.Envelope;
+import com.b50.moo.codec.EnvelopeCodec;
+import com.b50.moo.codec.EnvelopeCodecs;
+import com.b50.moo.codec.JsonEnvelopeCodec;
+import com.b50.moo.codec.JsonEnvelopeWriter;
+import com.b50.moo.codec.JsonObjectCodec;
+import com.b50.moo.codec.TypedEnvelope;
+import com.b50.moo.codec.MalformedEnvelopeException;
 import com.b50.moo.exceptions.SQSException;
 import com.b50.moo.exceptions.SQSMessageLengthException;
+import com.b50.moo.metrics.QueueMetrics;
+import com.b50.moo.metrics.QueueMetricsRecorder;
+import com.b50.moo.payload.PayloadStore;
+import com.b50.sqs.MessageReceivedCallback;
 import com.b50.sqs.SQSAdapter;
-import org.codehaus.jackson.annotate.JsonAutoDetect;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Created with IntelliJ IDEA.
@@ -21,20 +52,60 @@ import java.util.List;
  * Time: 1:52 PM
  */
 public class SQS {
+    private static final long DEFAULT_DELETE_LINGER_MILLIS = 100;
+    private static final int MAX_MESSAGE_SIZE = 262144;
+    private static final int MAX_VISIBILITY_TIMEOUT_SECONDS = 43200;
+    private static final JsonEnvelopeWriter REFERENCE_WRITER = new JsonEnvelopeWriter();
+
     private SQSAdapter adapter;
-    private List<QueueWaitTimeCallbackWrapper> waitTimeCallbacks;
+    private AmazonSQS sqs;
+    private String queueURL;
+    private final WaitTimeThresholds waitTimeCallbacks = new WaitTimeThresholds();
+    private Consumer consumer;
+    private volatile AutoScaler scaler;
+    private ScheduledFuture<?> scaling;
+    private ExecutionStrategy execution = ExecutionStrategies.PLATFORM;
+    private ExecutorService pool;
+    private ScheduledExecutorService scheduler;
+    private DeleteBatcher deletes;
+    private volatile SendBatcher sends;
+    private volatile Outbox outbox;
+    private volatile VisibilityExtender visibility;
+    private volatile int nackBaseSeconds = 2;
+    private volatile int nackMaxSeconds = 900;
+    private volatile EnvelopeCodec codec = EnvelopeCodecs.JSON;
+    private volatile JsonObjectCodec objects = new JsonObjectCodec();
+    private volatile PayloadStore payloadStore;
+    private final QueueMetricsRecorder metrics = new QueueMetricsRecorder();
+    private final ClockSkewEstimator skew = new ClockSkewEstimator();
+    private volatile WaitTimeSource waitTimeSource = WaitTimeSource.PRODUCER_CLOCK;
+    private volatile MessageFormat messageFormat = MessageFormat.ENVELOPE;
+    private volatile DuplicateFilter duplicates;
+    private volatile DeduplicationKeyExtractor deduplicationKey;
 
     private SQS() {
-        this.waitTimeCallbacks = new ArrayList<QueueWaitTimeCallbackWrapper>();
     }
 
     public SQS(final AmazonSQS sqs, final String queueURL) {
+        this(sqs, queueURL, ExecutionStrategies.PLATFORM);
+    }
+
+    /**
+     * @param execution what runs receives, sends and consumer threads; with
+     *                  {@link ExecutionStrategies#virtualThreads()} a consumer's pollers and callbacks each get a
+     *                  virtual thread, so its processing threads plus buffered messages may all run at once
+     */
+    public SQS(final AmazonSQS sqs, final String queueURL, final ExecutionStrategy execution) {
         this();
-        adapter = new SQSAdapter(sqs, queueURL);
+        this.execution = execution;
+        this.init(sqs, queueURL);
     }
 
     /**
-     * Assumes east coast region!
+     * Assumes east coast region! The client and the queue's URL come from {@link SQSClientRegistry#getDefault()}, so
+     * instances for the same credentials share one connection pool and each queue is only looked up once. Each
+     * instance still starts its own worker pool and scheduler thread, so keep one per queue rather than one per use,
+     * or create the rest with {@link #SQS(SQS, String)}.
      *
      * @param awsKey
      * @param awsSecret
@@ -42,7 +113,25 @@ public class SQS {
      */
     public SQS(final String awsKey, final String awsSecret, final String queueName) {
         this();
-        adapter = new SQSAdapter(awsKey, awsSecret, queueName);
+        final SQSClientRegistry registry = SQSClientRegistry.getDefault();
+        this.init(registry.client(awsKey, awsSecret),
+                registry.queueUrl(awsKey, awsSecret, SQSClientRegistry.DEFAULT_REGION, queueName));
+    }
+
+    /**
+     * Another queue on the same client, sharing this instance's execution strategy, worker pool and scheduler thread
+     * rather than starting its own; meant for the many queues of a {@link MultiQueueConsumer}.
+     *
+     * @param shared   an instance created with a client
+     * @param queueURL the other queue
+     */
+    public SQS(final SQS shared, final String queueURL) {
+        this();
+        if (shared.sqs == null) {
+            throw new IllegalStateException("sharing executors requires an SQS created with an AmazonSQS client");
+        }
+        this.execution = shared.execution;
+        this.init(shared.sqs, queueURL, shared.pool, shared.scheduler);
     }
 
     protected SQS(final SQSAdapter adapter) {
@@ -50,47 +139,929 @@ public class SQS {
         this.adapter = adapter;
     }
 
+    private void init(final AmazonSQS sqs, final String queueURL) {
+        this.init(sqs, queueURL, this.execution.newExecutor("moo-worker", 10),
+                Executors.newSingleThreadScheduledExecutor(new Consumer.NamedThreadFactory("moo-scheduler", true)));
+    }
+
+    private void init(final AmazonSQS sqs, final String queueURL, final ExecutorService pool,
+                      final ScheduledExecutorService scheduler) {
+        this.sqs = sqs;
+        this.queueURL = queueURL;
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.deletes = new DeleteBatcher(sqs, queueURL, this.scheduler, DEFAULT_DELETE_LINGER_MILLIS);
+    }
+
     public void send(final String message) throws SQSMessageLengthException, SQSException {
         this.send(message, null);
     }
 
     public void send(final String message, final SendCallback callback) throws SQSMessageLengthException, SQSException {
-        if (message.length() > (262144 - 31)) { /*need 29 + 2 bytes for time*/
-            throw new SQSMessageLengthException("Message length needs to be less than 256KB");
+        final long timestamp = System.currentTimeMillis();
+        if (this.messageFormat == MessageFormat.ATTRIBUTES && message.length() > 0) {
+            final long size = EncodedSize.utf8(message) + timestampAttributeSize(timestamp);
+            if (size <= MAX_MESSAGE_SIZE) {
+                dispatch(message, size, timestampAttribute(timestamp), callback);
+                return;
+            }
+        }
+        final EnvelopeCodec codec = this.codec;
+        long size = codec.encodedSize(message, timestamp);
+        String body = null;
+        if (size <= MAX_MESSAGE_SIZE) {
+            body = encode(codec, message, timestamp);
+            if (size < 0) {
+                size = EncodedSize.utf8(body);
+                if (size > MAX_MESSAGE_SIZE) {
+                    body = null;
+                }
+            }
+        }
+        if (body == null) {
+            final PayloadStore store = this.payloadStore;
+            if (store == null) {
+                throw new SQSMessageLengthException(size, MAX_MESSAGE_SIZE);
+            }
+            body = offload(store, message, timestamp);
+            size = EncodedSize.utf8(body);
+        }
+        dispatch(body, size, null, callback);
+    }
+
+    public void send(final Object message) throws SQSMessageLengthException, SQSException {
+        this.send(message, null);
+    }
+
+    /**
+     * Sends an object as JSON. With the default JSON envelope the object is embedded as a raw JSON value rather than
+     * as an escaped string, so it's serialized once and nothing is escaped; consumers using
+     * {@link #receive(Class, TypedReceiveCallback)} bind it straight back, while a plain ReceiveCallback gets the JSON
+     * text. Other formats carry the serialized JSON as their message. Strings are sent as with send(String).
+     *
+     * @param message  serialized with a Jackson ObjectWriter cached per class; see {@link #setObjectMapper(ObjectMapper)}
+     * @param callback
+     */
+    public void send(final Object message, final SendCallback callback) throws SQSMessageLengthException, SQSException {
+        if (message instanceof String) {
+            this.send((String) message, callback);
+            return;
+        }
+        final JsonObjectCodec objects = this.objects;
+        final long timestamp = System.currentTimeMillis();
+        try {
+            if (this.messageFormat == MessageFormat.ATTRIBUTES) {
+                this.send(objects.write(message), callback);
+                return;
+            }
+            if (this.codec instanceof JsonEnvelopeCodec) {
+                final String body = objects.writeEnvelope(message, timestamp);
+                final long size = EncodedSize.utf8(body);
+                if (size <= MAX_MESSAGE_SIZE) {
+                    dispatch(body, size, null, callback);
+                    return;
+                }
+            }
+            //too big to embed: let send(String) apply the payload store or report the overage
+            this.send(objects.write(message), callback);
+        } catch (IOException e) {
+            throw new SQSException(e);
+        }
+    }
+
+    private void dispatch(final String body, final long size, final Map<String, MessageAttributeValue> attributes,
+                          final SendCallback callback) throws SQSException {
+        final Outbox outbox = this.outbox;
+        if (outbox != null) {
+            try {
+                outbox.append(body, attributes, callback);
+            } catch (IOException e) {
+                throw new SQSException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQSException(e);
+            }
+            return;
+        }
+        final SendBatcher batcher = this.sends;
+        if (batcher != null) {
+            batcher.send(body, (int) size, attributes, callback);
+        } else if (this.sqs != null) {
+            this.pool.execute(new SingleSend(body, attributes, callback));
+        } else {
+            this.adapter.send(body, callback);
+        }
+    }
+
+    private static Map<String, MessageAttributeValue> timestampAttribute(final long timestamp) {
+        return Collections.singletonMap(MessageFormat.TIMESTAMP_ATTRIBUTE,
+                new MessageAttributeValue().withDataType("Number").withStringValue(Long.toString(timestamp)));
+    }
+
+    /**
+     * SQS counts an attribute's name, type and value against the message size
+     */
+    private static int timestampAttributeSize(final long timestamp) {
+        return MessageFormat.TIMESTAMP_ATTRIBUTE.length() + "Number".length() + Long.toString(timestamp).length();
+    }
+
+    private String encode(final EnvelopeCodec codec, final String message, final long timestamp) throws SQSException {
+        try {
+            return codec.encode(message, timestamp);
+        } catch (IOException e) {
+            throw new SQSException(e);
         }
+    }
+
+    private String offload(final PayloadStore store, final String message, final long timestamp) throws SQSException {
         try {
-            this.adapter.send(convertIntoJSON(message), callback);
+            return REFERENCE_WRITER.writeReference(store.store(message), timestamp);
         } catch (IOException e) {
-            throw new SQSException();
+            throw new SQSException(e);
+        }
+    }
+
+    /**
+     * Messages too big for SQS are written to the store and only a pointer to them is enqueued, rather than being
+     * rejected with an SQSMessageLengthException. Receivers need the same store configured; they read the payload
+     * back (streaming it to a {@link StreamingReceiveCallback}) and delete it once SQS has confirmed the message
+     * itself is deleted, so a redelivered message can still find its payload.
+     *
+     * @param store where oversized bodies go, or null to reject them again
+     */
+    public void setPayloadStore(final PayloadStore store) {
+        this.payloadStore = store;
+    }
+
+    /**
+     * Chooses how messages are wrapped on send. The default, {@link EnvelopeCodecs#JSON}, is readable by every Moo
+     * client; {@link EnvelopeCodecs#COMPACT} (or a configured {@link com.b50.moo.codec.CompactEnvelopeCodec}) avoids
+     * escaping and compresses large bodies. Receiving always understands both built-in formats.
+     *
+     * @param codec
+     */
+    public void setEnvelopeCodec(final EnvelopeCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Sets the Jackson configuration send(Object) and typed receives use. Readers and writers are cached per class,
+     * so configure the mapper fully before handing it over.
+     *
+     * @param mapper
+     */
+    public void setObjectMapper(final ObjectMapper mapper) {
+        this.objects = new JsonObjectCodec(mapper);
+    }
+
+    /**
+     * Chooses how sent messages carry their enqueue time. The default, {@link MessageFormat#ENVELOPE}, wraps the body;
+     * {@link MessageFormat#ATTRIBUTES} sends it untouched with the timestamp in a message attribute. Receiving reads
+     * both regardless of this setting.
+     *
+     * @param format
+     */
+    public void setMessageFormat(final MessageFormat format) {
+        if (format == MessageFormat.ATTRIBUTES && this.sqs == null) {
+            throw new IllegalStateException("attribute timestamps require an AmazonSQS client");
+        }
+        this.messageFormat = format;
+    }
+
+    /**
+     * Batches subsequent sends into SendMessageBatch requests of up to 10 messages and 256KB in total. A partial
+     * batch is sent once its oldest message has waited lingerMillis. Each message's SendCallback is still invoked
+     * with its own message id; use a {@link SendFailureCallback} to hear about messages SQS rejected.
+     *
+     * @param lingerMillis how long a message may wait for others to join its batch
+     */
+    public synchronized void enableSendBatching(final long lingerMillis) {
+        if (this.sqs == null) {
+            throw new IllegalStateException("batching requires an AmazonSQS client");
+        }
+        this.flush();
+        this.sends = new SendBatcher(this.sqs, this.queueURL, this.pool, this.scheduler, lingerMillis);
+    }
+
+    public void enableOutbox(final File directory) throws SQSException {
+        this.enableOutbox(directory, new OutboxOptions());
+    }
+
+    /**
+     * Makes sends durable: send appends the message to a memory-mapped log in the directory and returns, and a
+     * background drainer ships the log to SQS in batches of up to 10, checkpointing what SQS acknowledged. Messages
+     * still unsent when the process dies go out once the directory is opened again, so a message may occasionally
+     * be delivered twice. Send blocks while maxUnsentBytes are waiting. Takes precedence over send batching.
+     *
+     * @param directory holds the log; only one SQS instance may use it at a time
+     * @param options
+     */
+    public synchronized void enableOutbox(final File directory, final OutboxOptions options) throws SQSException {
+        if (this.sqs == null) {
+            throw new IllegalStateException("the outbox requires an AmazonSQS client");
+        }
+        if (this.outbox != null) {
+            throw new IllegalStateException("the outbox is already enabled");
+        }
+        try {
+            this.outbox = new Outbox(this.sqs, this.queueURL, directory, this.execution, options);
+        } catch (IOException e) {
+            throw new SQSException(e);
+        }
+    }
+
+    /**
+     * Stops the outbox's drainer, waiting for batches in flight; anything unsent stays in the log until it's
+     * enabled again. Sends go straight to SQS afterwards.
+     */
+    public synchronized void disableOutbox() throws InterruptedException {
+        final Outbox outbox = this.outbox;
+        if (outbox != null) {
+            this.outbox = null;
+            outbox.close();
+        }
+    }
+
+    /**
+     * @return bytes sent to the outbox but not yet acknowledged by SQS, or 0 without one
+     */
+    public long getOutboxBacklogBytes() {
+        final Outbox outbox = this.outbox;
+        return outbox == null ? 0 : outbox.getUnsentBytes();
+    }
+
+    /**
+     * Keeps extending the visibility of messages while they wait for and run in their callbacks, so slow processing
+     * doesn't let a message reappear and get processed twice. Messages are received with the given visibility
+     * timeout and extended by it every half timeout, including while buffered in a consumer, until the callback
+     * returns or throws (or an AcknowledgingReceiveCallback's handle is resolved), or until maxExtensionMillis have
+     * passed.
+     *
+     * @param visibilityTimeoutSeconds
+     * @param maxExtensionMillis       how long a single message may be kept invisible in total
+     */
+    public synchronized void enableVisibilityHeartbeat(final int visibilityTimeoutSeconds, final long maxExtensionMillis) {
+        if (this.sqs == null) {
+            throw new IllegalStateException("visibility heartbeats require an AmazonSQS client");
+        }
+        if (visibilityTimeoutSeconds < 2) {
+            throw new IllegalArgumentException("visibilityTimeoutSeconds must be at least 2");
+        }
+        if (this.visibility != null) {
+            this.visibility.stop();
+        }
+        final VisibilityExtender extender = new VisibilityExtender(this.sqs, this.queueURL, visibilityTimeoutSeconds,
+                maxExtensionMillis);
+        extender.start(this.scheduler);
+        this.visibility = extender;
+    }
+
+    /**
+     * Sets the backoff applied by {@link MessageHandle#nack()}: a message is hidden for baseSeconds after its first
+     * failure, doubling with every redelivery up to maxSeconds. Defaults to 2 seconds and 15 minutes.
+     *
+     * @param baseSeconds
+     * @param maxSeconds  at most 43200 (12 hours), SQS's limit
+     */
+    public void setNackBackoff(final int baseSeconds, final int maxSeconds) {
+        if (baseSeconds < 1 || maxSeconds < baseSeconds || maxSeconds > MAX_VISIBILITY_TIMEOUT_SECONDS) {
+            throw new IllegalArgumentException("need 1 <= baseSeconds <= maxSeconds <= " + MAX_VISIBILITY_TIMEOUT_SECONDS);
+        }
+        this.nackBaseSeconds = baseSeconds;
+        this.nackMaxSeconds = maxSeconds;
+    }
+
+    public void enableDeduplication(final int capacity, final long windowMillis) {
+        this.enableDeduplication(capacity, windowMillis, null);
+    }
+
+    /**
+     * Drops redeliveries of messages that were already processed: a message whose key was seen within roughly the
+     * last window is deleted without invoking the callback. A key is remembered once its message was processed --
+     * when the callback returns, or when an AcknowledgingReceiveCallback acks it -- so a message whose processing
+     * failed is still redelivered, while two copies processed at the same time both run. Checks and drops show up
+     * in {@link #getQueueMetrics()}.
+     *
+     * @param capacity     how many keys to remember per window; see {@link DuplicateFilter}
+     * @param windowMillis how long keys are remembered, at least, while fewer than capacity arrive
+     * @param key          picks each message's key; null keys by SQS message id, which catches SQS's own
+     *                     redeliveries but not a producer sending the same thing twice
+     */
+    public void enableDeduplication(final int capacity, final long windowMillis, final DeduplicationKeyExtractor key) {
+        if (this.sqs == null) {
+            throw new IllegalStateException("deduplication requires an AmazonSQS client");
+        }
+        this.deduplicationKey = key;
+        this.duplicates = new DuplicateFilter(capacity, windowMillis);
+    }
+
+    /**
+     * Sends any batched messages and deletes that are still waiting out their linger time.
+     */
+    public void flush() {
+        if (this.sends != null) {
+            this.sends.flush();
+        }
+        if (this.deletes != null) {
+            this.deletes.flush();
         }
     }
 
     public void receive(final ReceiveCallback callback) {
-        this.adapter.receive(new ReceiveCallbackWrapper(callback));
+        final MessageReceivedCallback wrapper = new ReceiveCallbackWrapper(callback);
+        if (this.sqs == null) {
+            if (callback instanceof AcknowledgingReceiveCallback) {
+                throw new IllegalStateException("acknowledging callbacks require an AmazonSQS client");
+            }
+            this.adapter.receive(wrapper);
+            return;
+        }
+        this.pool.execute(new Runnable() {
+            public void run() {
+                for (final Message message : fetch(10, 20)) {
+                    try {
+                        process(message, wrapper);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Like {@link #receive(ReceiveCallback)}, but each message is bound to an object of the given type, straight from
+     * the body's JSON tokens when it was sent with send(Object). Messages whose JSON was sent as a String, in the
+     * compact envelope or with an attribute timestamp are bound too.
+     *
+     * @param type
+     * @param callback
+     */
+    public <T> void receive(final Class<T> type, final TypedReceiveCallback<T> callback) {
+        this.receive(new TypedCallback<T>(type, callback));
+    }
+
+    /**
+     * Like {@link #receive(ReceiveCallback)}, but the received batch is processed in parallel: messages with
+     * different partition keys run at the same time, while messages sharing a key run one after another in the order
+     * received. Requires an SQS instance created with an AmazonSQS client.
+     *
+     * @param callback
+     * @param partitionKey extracts each message's key
+     */
+    public void receive(final ReceiveCallback callback, final PartitionKeyExtractor partitionKey) {
+        if (this.sqs == null) {
+            throw new IllegalStateException("partitioned receives require an AmazonSQS client");
+        }
+        final MessageReceivedCallback wrapper = new ReceiveCallbackWrapper(callback);
+        final KeyedExecutor lanes = new KeyedExecutor(this.pool, 10);
+        this.pool.execute(new Runnable() {
+            public void run() {
+                for (final Message message : fetch(10, 20)) {
+                    final Envelope envelope = decode(message);
+                    lanes.execute(partitionKey(partitionKey, message, envelope), new Runnable() {
+                        public void run() {
+                            process(message, envelope, wrapper);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a managed consumer that keeps polling the queue until {@link #stop()} is called. Unlike
+     * {@link #receive(ReceiveCallback)}, which does a single long poll, this keeps several long polls in flight
+     * and hands messages to a separate processing pool; polling pauses while that pool is saturated.
+     *
+     * @param callback invoked for each message received
+     * @param options  poller and processing pool sizing
+     */
+    public synchronized void startConsuming(final ReceiveCallback callback, final ConsumerOptions options) {
+        if (this.sqs == null) {
+            throw new IllegalStateException("consuming requires an AmazonSQS client");
+        }
+        if (this.consumer != null) {
+            throw new IllegalStateException("already consuming; call stop() first");
+        }
+        this.consumer = new Consumer(this, new ReceiveCallbackWrapper(callback), options);
+        this.consumer.start();
+        final AutoScalingOptions autoScaling = options.getAutoScaling();
+        if (autoScaling != null) {
+            this.scaler = new AutoScaler(this.consumer, options, autoScaling);
+            this.scaling = this.scheduler.scheduleWithFixedDelay(this.scaler, autoScaling.getIntervalMillis(),
+                    autoScaling.getIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Like {@link #startConsuming(ReceiveCallback, ConsumerOptions)}, with messages bound to objects as in
+     * {@link #receive(Class, TypedReceiveCallback)}.
+     */
+    public <T> void startConsuming(final Class<T> type, final TypedReceiveCallback<T> callback,
+                                   final ConsumerOptions options) {
+        this.startConsuming(new TypedCallback<T>(type, callback), options);
+    }
+
+    /**
+     * Stops the consumer started via {@link #startConsuming(ReceiveCallback, ConsumerOptions)}, waiting for
+     * in-flight callbacks to finish. Does nothing if no consumer is running.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (this.scaling != null) {
+            this.scaling.cancel(false);
+            this.scaling = null;
+            this.scaler = null;
+        }
+        if (this.consumer != null) {
+            this.consumer.stop();
+            this.consumer = null;
+        }
+        this.flush();
+    }
+
+    /**
+     * Received messages are deleted in batches of up to 10; a partial batch is sent once its oldest message has
+     * waited this long. Defaults to 100 milliseconds.
+     *
+     * @param lingerMillis
+     */
+    public void setDeleteLingerMillis(final long lingerMillis) {
+        if (this.deletes != null) {
+            this.deletes.setLingerMillis(lingerMillis);
+        }
     }
 
     public void addQueueWaitTimeCallback(final long maxDiff, final QueueWaitTimeCallback callback) {
-        this.waitTimeCallbacks.add(new QueueWaitTimeCallbackWrapper(maxDiff, callback));
+        this.addQueueWaitTimeCallback(maxDiff, callback, 0);
     }
 
-    private String convertIntoJSON(final String rawMsg) throws IOException {
-        final ObjectMapper mapper = getJacksonMapper();
-        return mapper.writeValueAsString(new SQSMessage(rawMsg));
+    /**
+     * Like {@link #addQueueWaitTimeCallback(long, QueueWaitTimeCallback)}, but the callback fires at most once per
+     * interval no matter how many messages exceed maxDiff -- handy during a backlog, when every message would.
+     *
+     * @param maxDiff           in milliseconds
+     * @param callback
+     * @param minIntervalMillis quiet period after each invocation; 0 fires for every message
+     */
+    public void addQueueWaitTimeCallback(final long maxDiff, final QueueWaitTimeCallback callback,
+                                         final long minIntervalMillis) {
+        this.waitTimeCallbacks.add(maxDiff, callback, minIntervalMillis);
     }
 
-    private ObjectMapper getJacksonMapper() {
-        final ObjectMapper mapper = new ObjectMapper();
-        mapper.setVisibilityChecker(mapper.getVisibilityChecker().withFieldVisibility(JsonAutoDetect.Visibility.ANY));
-        return mapper;
+    /**
+     * QueueWaitTimeCallbacks are invoked off the receiving thread, by default on a single daemon thread in the
+     * order thresholds were exceeded. Invocations the executor rejects are dropped, as are those beyond 1000 waiting
+     * for the default thread.
+     *
+     * @param executor where to invoke them instead, or null for the default
+     */
+    public void setQueueWaitTimeExecutor(final Executor executor) {
+        this.waitTimeCallbacks.setExecutor(executor);
     }
 
-    private static class SQSMessage {
-        String msg;
-        String ts;
+    /**
+     * Chooses the clocks time in queue is measured with. The default, {@link WaitTimeSource#PRODUCER_CLOCK}, trusts
+     * that senders' and receivers' clocks agree; the other sources ask SQS for its own timestamps on receive and
+     * correct for skew between hosts. They require an SQS instance created with an AmazonSQS client.
+     *
+     * @param source
+     */
+    public void setWaitTimeSource(final WaitTimeSource source) {
+        if (source != WaitTimeSource.PRODUCER_CLOCK && this.sqs == null) {
+            throw new IllegalStateException(source + " requires an AmazonSQS client");
+        }
+        this.waitTimeSource = source;
+    }
 
-        public SQSMessage(final String message) {
-            this.msg = message;
-            this.ts = Long.toString(System.currentTimeMillis());
+    /**
+     * How long messages received over roughly the last minute waited in the queue: percentiles, max, mean and rate.
+     * Every received message carrying a timestamp is recorded, whether or not any QueueWaitTimeCallback is attached.
+     */
+    public QueueMetrics getQueueMetrics() {
+        return this.metrics.snapshot();
+    }
+
+    /**
+     * Publishes {@link #getQueueMetrics()} as an MXBean named com.b50.moo:type=QueueMetrics,name=&lt;name&gt; on the
+     * platform MBean server.
+     *
+     * @param name typically the queue name
+     * @return the name registered, for unregistering later
+     */
+    public ObjectName registerQueueMetrics(final String name) throws SQSException {
+        try {
+            final ObjectName objectName = new ObjectName("com.b50.moo:type=QueueMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new SQSException(e);
+        }
+    }
+
+    boolean hasClient() {
+        return this.sqs != null;
+    }
+
+    /**
+     * @return the callback as this instance's receives invoke it: unwrapping envelopes and recording wait times
+     */
+    MessageReceivedCallback wrap(final ReceiveCallback callback) {
+        return new ReceiveCallbackWrapper(callback);
+    }
+
+    ExecutionStrategy getExecutionStrategy() {
+        return this.execution;
+    }
+
+    /**
+     * receives messages, tracking them with the visibility heartbeat (if any) until they're processed or released
+     */
+    List<Message> fetch(final int maxMessages, final int waitTimeSeconds) {
+        final VisibilityExtender extender = this.visibility;
+        if (extender == null) {
+            return fetch(maxMessages, waitTimeSeconds, 0);
+        }
+        final List<Message> messages = fetch(maxMessages, waitTimeSeconds, extender.getVisibilityTimeoutSeconds());
+        for (final Message message : messages) {
+            extender.track(message.getReceiptHandle());
+        }
+        return messages;
+    }
+
+    /**
+     * @param visibilityTimeoutSeconds 0 for the queue's default
+     */
+    List<Message> fetch(final int maxMessages, final int waitTimeSeconds, final int visibilityTimeoutSeconds) {
+        final ReceiveMessageRequest request = new ReceiveMessageRequest(this.queueURL)
+                .withMaxNumberOfMessages(maxMessages).withWaitTimeSeconds(waitTimeSeconds);
+        if (visibilityTimeoutSeconds > 0) {
+            request.withVisibilityTimeout(visibilityTimeoutSeconds);
+        }
+        request.withAttributeNames(ClockSkewEstimator.RECEIVE_COUNT).withMessageAttributeNames("All");
+        if (this.waitTimeSource != WaitTimeSource.PRODUCER_CLOCK) {
+            request.withAttributeNames(ClockSkewEstimator.SENT_TIMESTAMP, ClockSkewEstimator.FIRST_RECEIVE_TIMESTAMP,
+                    ClockSkewEstimator.SENDER_ID);
+        }
+        return this.sqs.receiveMessage(request).getMessages();
+    }
+
+    void process(final Message message, final MessageReceivedCallback callback) {
+        process(message, null, callback);
+    }
+
+    /**
+     * @param envelope the message already decoded, or null to have it decoded here
+     */
+    void process(final Message message, final Envelope envelope, final MessageReceivedCallback callback) {
+        final DuplicateFilter filter = this.duplicates;
+        Envelope decoded = envelope;
+        String key = null;
+        if (filter != null && callback instanceof ReceiveCallbackWrapper) {
+            //the wrapper needs it decoded anyway, so the key costs no second decode
+            if (decoded == null) {
+                decoded = decode(message);
+            }
+            key = deduplicationKey(message, decoded);
+            if (discardIfDuplicate(filter, message, key)) {
+                return;
+            }
+        }
+        final VisibilityExtender extender = this.visibility;
+        Envelope delivered = null;
+        boolean autoDelete = true;
+        try {
+            if (callback instanceof ReceiveCallbackWrapper) {
+                delivered = ((ReceiveCallbackWrapper) callback).onReceive(message, decoded);
+                autoDelete = delivered != null;
+            } else {
+                callback.onReceive(message.getMessageId(), message.getBody());
+            }
+        } finally {
+            //a MessageHandle stops the heartbeat itself once it's resolved
+            if (extender != null && autoDelete) {
+                extender.untrack(message.getReceiptHandle());
+            }
+        }
+        if (autoDelete) {
+            this.deletes.delete(message.getReceiptHandle(),
+                    delivered == null ? null : payloadCleanup(delivered.getReference()));
+            if (key != null) {
+                filter.add(key);
+            }
+        }
+    }
+
+    /**
+     * feeds a received message's time in queue to the metrics, the auto scaler and the wait time callbacks
+     */
+    void recordWaitTime(final Envelope envelope, final Map<String, String> attributes, final long receivedAt) {
+        final long diff = this.skew.waitTime(this.waitTimeSource, envelope.getTimestamp(), attributes, receivedAt);
+        if (diff != ClockSkewEstimator.UNKNOWN) {
+            this.metrics.record(diff);
+            final AutoScaler autoScaler = this.scaler;
+            if (autoScaler != null) {
+                autoScaler.record(diff);
+            }
+            this.waitTimeCallbacks.fire(diff);
+        }
+    }
+
+    MessageHandle handle(final Message message, final Envelope envelope) {
+        final String pointer = envelope.getReference();
+        final String body = pointer == null ? envelope.getMessage() : readStoredPayload(message.getMessageId(), pointer);
+        return new MessageHandle(this, message, envelope, body);
+    }
+
+    private String readStoredPayload(final String id, final String pointer) {
+        final PayloadStore store = this.payloadStore;
+        if (store == null) {
+            throw new RuntimeException("message " + id + " refers to a stored payload but no PayloadStore is set");
+        }
+        try {
+            return store.read(pointer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("unable to obtain stored payload of SQS message!");
+        }
+    }
+
+    /**
+     * @return a task deleting the stored payload, to run once SQS has deleted the message that points to it (a
+     *         redelivery still needs the payload); null if there's nothing to delete
+     */
+    private Runnable payloadCleanup(final String pointer) {
+        final PayloadStore store = this.payloadStore;
+        if (pointer == null || store == null) {
+            return null;
+        }
+        return new Runnable() {
+            public void run() {
+                try {
+                    store.delete(pointer);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the message as sent, whether its timestamp is in an attribute or an envelope
+     */
+    static Envelope unwrap(final Message message) throws MalformedEnvelopeException {
+        final MessageAttributeValue timestamp = message.getMessageAttributes().get(MessageFormat.TIMESTAMP_ATTRIBUTE);
+        if (timestamp == null) {
+            return EnvelopeCodecs.decode(message.getBody());
+        }
+        try {
+            return new Envelope(message.getBody(), Long.parseLong(timestamp.getStringValue()));
+        } catch (NumberFormatException e) {
+            throw new MalformedEnvelopeException("bad " + MessageFormat.TIMESTAMP_ATTRIBUTE + " attribute: "
+                    + timestamp.getStringValue());
+        }
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    VisibilityExtender getVisibilityExtender() {
+        return this.visibility;
+    }
+
+    /**
+     * @return the decoded message, to be handed on to process so it's only decoded once; null if it's malformed,
+     *         which process reports
+     */
+    Envelope decode(final Message message) {
+        try {
+            return unwrap(message);
+        } catch (MalformedEnvelopeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param envelope the decoded message, or null if it couldn't be decoded
+     * @return the message's key, or null (letting it run unordered) if it has none or it couldn't be extracted
+     */
+    String partitionKey(final PartitionKeyExtractor extractor, final Message message, final Envelope envelope) {
+        if (envelope == null) {
+            return null;
+        }
+        try {
+            return extractor.keyOf(envelope.getMessage(), stringAttributes(message));
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the message without delivering it if deduplication is enabled and it was already processed.
+     *
+     * @param envelope the decoded message
+     * @return true if it was a duplicate
+     */
+    boolean discardIfDuplicate(final Message message, final Envelope envelope) {
+        final DuplicateFilter filter = this.duplicates;
+        return filter != null && discardIfDuplicate(filter, message, deduplicationKey(message, envelope));
+    }
+
+    private boolean discardIfDuplicate(final DuplicateFilter filter, final Message message, final String key) {
+        if (key == null) {
+            return false;
+        }
+        final boolean duplicate = filter.contains(key);
+        this.metrics.recordDeduplication(duplicate);
+        if (duplicate) {
+            final VisibilityExtender extender = this.visibility;
+            if (extender != null) {
+                extender.untrack(message.getReceiptHandle());
+            }
+            this.deletes.delete(message.getReceiptHandle());
+        }
+        return duplicate;
+    }
+
+    /**
+     * @param envelope the decoded message, or null if it couldn't be decoded
+     * @return the message's key for the duplicate filter, or null to let it through unchecked
+     */
+    private String deduplicationKey(final Message message, final Envelope envelope) {
+        final DeduplicationKeyExtractor extractor = this.deduplicationKey;
+        if (extractor == null) {
+            return message.getMessageId();
+        }
+        if (envelope == null) {
+            return null;
+        }
+        try {
+            return extractor.keyOf(envelope.getMessage(), stringAttributes(message));
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Map<String, String> stringAttributes(final Message message) {
+        final Map<String, String> attributes = new HashMap<String, String>();
+        for (final Map.Entry<String, MessageAttributeValue> attribute : message.getMessageAttributes().entrySet()) {
+            if (attribute.getValue().getStringValue() != null) {
+                attributes.put(attribute.getKey(), attribute.getValue().getStringValue());
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * @param envelope the message as decoded when it was received
+     */
+    void acknowledge(final Message message, final Envelope envelope) {
+        final String receiptHandle = message.getReceiptHandle();
+        final VisibilityExtender extender = this.visibility;
+        if (extender != null) {
+            extender.untrack(receiptHandle);
+        }
+        this.deletes.delete(receiptHandle, payloadCleanup(envelope.getReference()));
+        final DuplicateFilter filter = this.duplicates;
+        if (filter != null) {
+            final String key = deduplicationKey(message, envelope);
+            if (key != null) {
+                filter.add(key);
+            }
+        }
+    }
+
+    void changeVisibility(final String receiptHandle, final int visibilityTimeoutSeconds, final boolean resolved) {
+        final int seconds = Math.max(0, Math.min(MAX_VISIBILITY_TIMEOUT_SECONDS, visibilityTimeoutSeconds));
+        final VisibilityExtender extender = this.visibility;
+        if (extender != null) {
+            if (resolved) {
+                extender.untrackBeforeChange(receiptHandle);
+            } else {
+                extender.extendedUntil(receiptHandle, System.currentTimeMillis() + seconds * 1000L);
+            }
+        }
+        this.sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(this.queueURL, receiptHandle, seconds));
+    }
+
+    /**
+     * @return how long a nacked message stays invisible: the base delay doubled for each earlier receive, capped,
+     *         then jittered down by up to half so retries of a failed batch spread out
+     */
+    int nackDelaySeconds(final int receiveCount) {
+        final int attempt = Math.max(1, Math.min(receiveCount, 31));
+        final long delay = Math.min((long) this.nackBaseSeconds << (attempt - 1), this.nackMaxSeconds);
+        final long half = delay / 2;
+        return (int) (delay - half + (long) (Math.random() * (half + 1)));
+    }
+
+    /**
+     * makes messages that won't be processed visible again right away
+     */
+    void release(final List<Message> messages) {
+        final VisibilityExtender extender = this.visibility;
+        if (extender != null) {
+            for (final Message message : messages) {
+                extender.untrackBeforeChange(message.getReceiptHandle());
+            }
+        }
+        for (int start = 0; start < messages.size(); start += DeleteBatcher.MAX_BATCH) {
+            final List<Message> batch = messages.subList(start, Math.min(messages.size(), start + DeleteBatcher.MAX_BATCH));
+            final List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>();
+            for (int i = 0; i < batch.size(); i++) {
+                entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(i),
+                        batch.get(i).getReceiptHandle()).withVisibilityTimeout(0));
+            }
+            this.sqs.changeMessageVisibilityBatch(this.queueURL, entries);
+        }
+    }
+
+    private class SingleSend implements Runnable {
+        private final String body;
+        private final Map<String, MessageAttributeValue> attributes;
+        private final SendCallback callback;
+
+        private SingleSend(final String body, final Map<String, MessageAttributeValue> attributes,
+                           final SendCallback callback) {
+            this.body = body;
+            this.attributes = attributes;
+            this.callback = callback;
+        }
+
+        public void run() {
+            final String messageId;
+            try {
+                final SendMessageRequest request = new SendMessageRequest(queueURL, body);
+                if (attributes != null) {
+                    request.setMessageAttributes(attributes);
+                }
+                messageId = sqs.sendMessage(request).getMessageId();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                if (callback instanceof SendFailureCallback) {
+                    final String code = e instanceof AmazonServiceException ?
+                            ((AmazonServiceException) e).getErrorCode() : e.getClass().getName();
+                    ((SendFailureCallback) callback).onFailure(code, e.getMessage());
+                }
+                return;
+            }
+            if (callback != null) {
+                callback.onSend(messageId);
+            }
+        }
+    }
+
+    /**
+     * Carries a typed callback through the ReceiveCallback plumbing; the wrapper recognizes it and calls deliver
+     */
+    private class TypedCallback<T> implements ReceiveCallback {
+        private final Class<T> type;
+        private final TypedReceiveCallback<T> callback;
+
+        private TypedCallback(final Class<T> type, final TypedReceiveCallback<T> callback) {
+            this.type = type;
+            this.callback = callback;
+        }
+
+        public void onReceive(final String id, final String body) {
+            try {
+                deliver(id, body, null, null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("unable to bind body of SQS message!");
+            }
+        }
+
+        /**
+         * @param decoded the message already decoded, or null to bind it straight from the body
+         * @return the decoded envelope, for its timestamp
+         */
+        Envelope deliver(final String id, final String body, final Message message, final Envelope decoded)
+                throws IOException {
+            final JsonObjectCodec objects = SQS.this.objects;
+            final Envelope envelope;
+            final T value;
+            if (decoded != null) {
+                envelope = decoded;
+                value = decoded.isReference() ? null : objects.read(decoded.getMessage(), type);
+            } else if (message != null && message.getMessageAttributes().containsKey(MessageFormat.TIMESTAMP_ATTRIBUTE)) {
+                envelope = unwrap(message);
+                value = objects.read(envelope.getMessage(), type);
+            } else {
+                final TypedEnvelope<T> typed = objects.decode(body, type);
+                envelope = typed;
+                value = typed.getValue();
+            }
+            if (envelope.isReference()) {
+                final String pointer = envelope.getReference();
+                callback.onReceive(id, objects.read(readStoredPayload(id, pointer), type));
+            } else {
+                callback.onReceive(id, value);
+            }
+            return envelope;
         }
     }
 
@@ -103,48 +1074,94 @@ public class SQS {
         }
 
         public void onReceive(final String id, final String body) {
+            final Envelope envelope = this.onReceive(id, body, Collections.<String, String>emptyMap(), null, null);
+            //the adapter deletes the message once this returns and doesn't say whether that worked
+            final Runnable cleanup = payloadCleanup(envelope.getReference());
+            if (cleanup != null) {
+                cleanup.run();
+            }
+        }
+
+        /**
+         * @param decoded the message already decoded, or null to decode it here
+         * @return the decoded message if it's done with and should be deleted, or null if an
+         *         AcknowledgingReceiveCallback decides that itself
+         */
+        Envelope onReceive(final Message message, final Envelope decoded) {
+            return this.onReceive(message.getMessageId(), message.getBody(), message.getAttributes(), message, decoded);
+        }
+
+        private Envelope onReceive(final String id, final String body, final Map<String, String> attributes,
+                                   final Message message, final Envelope decoded) {
+            final long receivedAt = System.currentTimeMillis();
             try {
-                final JSONObject result = (JSONObject) new JSONParser().parse(body);
-                final Object msgRawVal = result.get("msg");
-                String message = null;
-                if (msgRawVal instanceof String) {
-                    message = msgRawVal.toString();
-                } else { //msg is a JSON document, do not parse it
-                    final JSONObject rawJSON = (JSONObject) msgRawVal;
-                    message = rawJSON.toJSONString();
+                if (wrappedCallback instanceof TypedCallback) {
+                    final Envelope envelope = ((TypedCallback<?>) wrappedCallback).deliver(id, body, message, decoded);
+                    recordWaitTime(envelope, attributes, receivedAt);
+                    return envelope;
                 }
 
-                wrappedCallback.onReceive(id, message);
+                //msg comes back verbatim when it's a JSON document, it isn't parsed
+                final Envelope envelope = decoded != null ? decoded
+                        : message == null ? EnvelopeCodecs.decode(body) : unwrap(message);
 
-                if (!waitTimeCallbacks.isEmpty()) {
-                    final long enqueuedTime = Long.valueOf(result.get("ts").toString());
-                    final long diff = System.currentTimeMillis() - enqueuedTime;
-                    for (final QueueWaitTimeCallbackWrapper callbackWrapper : waitTimeCallbacks) {
-                        if (diff >= callbackWrapper.maxDiff) {
-                            callbackWrapper.onThresholdExceeded(diff);
-                        }
-                    }
+                boolean autoDelete = true;
+                if (message != null && wrappedCallback instanceof AcknowledgingReceiveCallback) {
+                    autoDelete = false;
+                    deliverHandle(message, envelope);
+                } else if (envelope.isReference()) {
+                    deliverStoredPayload(id, envelope.getReference());
+                } else {
+                    wrappedCallback.onReceive(id, envelope.getMessage());
                 }
 
-            } catch (ParseException e) {
+                recordWaitTime(envelope, attributes, receivedAt);
+                return autoDelete ? envelope : null;
+
+            } catch (MalformedEnvelopeException e) {
                 e.printStackTrace();
                 throw new RuntimeException("unable to obtain body of SQS message!");
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("unable to bind body of SQS message!");
             }
-
         }
-    }
-
-    private class QueueWaitTimeCallbackWrapper implements QueueWaitTimeCallback {
-        long maxDiff;
-        QueueWaitTimeCallback callback;
 
-        private QueueWaitTimeCallbackWrapper(final long maxDiff, final QueueWaitTimeCallback callback) {
-            this.maxDiff = maxDiff;
-            this.callback = callback;
+        private void deliverHandle(final Message message, final Envelope envelope) {
+            final MessageHandle handle = handle(message, envelope);
+            try {
+                ((AcknowledgingReceiveCallback) wrappedCallback).onReceive(handle);
+            } catch (Exception e) {
+                e.printStackTrace();
+                try {
+                    handle.nack();
+                } catch (RuntimeException nackFailure) {
+                    //no longer extended, so it comes back once its visibility timeout runs out
+                    nackFailure.printStackTrace();
+                }
+            }
         }
 
-        public void onThresholdExceeded(final long waitTime) {
-            this.callback.onThresholdExceeded(waitTime);
+        private void deliverStoredPayload(final String id, final String pointer) {
+            final PayloadStore store = payloadStore;
+            if (store == null) {
+                throw new RuntimeException("message " + id + " refers to a stored payload but no PayloadStore is set");
+            }
+            try {
+                if (wrappedCallback instanceof StreamingReceiveCallback) {
+                    final Reader reader = store.open(pointer);
+                    try {
+                        ((StreamingReceiveCallback) wrappedCallback).onReceive(id, reader);
+                    } finally {
+                        reader.close();
+                    }
+                } else {
+                    wrappedCallback.onReceive(id, store.read(pointer));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("unable to obtain stored payload of SQS message!");
+            }
         }
     }
 }
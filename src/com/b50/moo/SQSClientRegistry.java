@@ -0,0 +1,317 @@
+package com.b50.moo;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one AmazonSQSClient, and so one HTTP connection pool, per set of credentials and region, and resolves queue
+ * URLs once. Resolving is done in the background, several queues at a time, so a service that {@link #preload}s its
+ * queues at boot waits for the slowest lookup rather than for all of them in turn; with a cache file the URLs
+ * survive restarts and building an SQS costs no round trip at all.
+ * <p/>
+ * Like the <code>SQS(awsKey, awsSecret, queueName)</code> constructor, which uses {@link #getDefault()}, a queue that
+ * doesn't exist yet is created.
+ */
+public class SQSClientRegistry {
+    public static final String DEFAULT_REGION = "us-east-1";
+    private static final int RESOLVER_THREADS = 8;
+    private static volatile SQSClientRegistry defaultRegistry;
+
+    private final ClientConfiguration configuration;
+    private final ConcurrentMap<String, AmazonSQS> clients = new ConcurrentHashMap<String, AmazonSQS>();
+    private final ConcurrentMap<String, Future<String>> urls = new ConcurrentHashMap<String, Future<String>>();
+    private final ThreadPoolExecutor resolvers;
+    private volatile File cacheFile;
+
+    public SQSClientRegistry() {
+        this(defaultConfiguration());
+    }
+
+    /**
+     * @param configuration applied to every client this registry creates
+     */
+    public SQSClientRegistry(final ClientConfiguration configuration) {
+        this.configuration = configuration;
+        this.resolvers = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new Consumer.NamedThreadFactory("moo-resolver", true));
+        this.resolvers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the registry shared by SQS instances built from credentials
+     */
+    public static SQSClientRegistry getDefault() {
+        if (defaultRegistry == null) {
+            synchronized (SQSClientRegistry.class) {
+                if (defaultRegistry == null) {
+                    defaultRegistry = new SQSClientRegistry();
+                }
+            }
+        }
+        return defaultRegistry;
+    }
+
+    /**
+     * Room for every poller, sender and deleter of a few dozen queues sharing one client, and a socket timeout
+     * comfortably above the 20 second long poll.
+     */
+    public static ClientConfiguration defaultConfiguration() {
+        return new ClientConfiguration()
+                .withMaxConnections(200)
+                .withConnectionTimeout(5000)
+                .withSocketTimeout(30000)
+                .withMaxErrorRetry(3);
+    }
+
+    /**
+     * Keeps resolved queue URLs in a properties file, reading back any already there. A cached URL isn't checked
+     * again, so delete the file if a queue is moved.
+     *
+     * @param file created if need be
+     */
+    public void setCacheFile(final File file) throws IOException {
+        if (file.exists()) {
+            final Properties cached = new Properties();
+            final InputStream in = new FileInputStream(file);
+            try {
+                cached.load(in);
+            } finally {
+                in.close();
+            }
+            for (final String key : cached.stringPropertyNames()) {
+                final FutureTask<String> resolved = new FutureTask<String>(new Resolved(cached.getProperty(key)));
+                resolved.run();
+                urls.putIfAbsent(key, resolved);
+            }
+        }
+        this.cacheFile = file;
+    }
+
+    public AmazonSQS client(final String awsKey, final String awsSecret) {
+        return client(awsKey, awsSecret, DEFAULT_REGION);
+    }
+
+    /**
+     * @param region such as "us-west-2"
+     * @return the client for these credentials and region, created on first use
+     */
+    public AmazonSQS client(final String awsKey, final String awsSecret, final String region) {
+        final String key = clientKey(awsKey, region) + "#" + digest(awsSecret);
+        AmazonSQS client = clients.get(key);
+        if (client == null) {
+            synchronized (clients) {
+                client = clients.get(key);
+                if (client == null) {
+                    client = newClient(awsKey, awsSecret, region, configuration);
+                    clients.put(key, client);
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Starts resolving the given queues' URLs in parallel and returns without waiting.
+     */
+    public void preload(final String awsKey, final String awsSecret, final String region, final String... queueNames) {
+        for (final String queueName : queueNames) {
+            url(awsKey, awsSecret, region, queueName);
+        }
+    }
+
+    public SQS queue(final String awsKey, final String awsSecret, final String queueName) {
+        return queue(awsKey, awsSecret, DEFAULT_REGION, queueName);
+    }
+
+    /**
+     * Only the client and the URL are shared: each SQS still has its own worker pool, scheduler thread and delete
+     * batcher, so build one per queue and keep it rather than one per use.
+     *
+     * @return an SQS for the queue on the shared client, waiting only if its URL is still being resolved
+     */
+    public SQS queue(final String awsKey, final String awsSecret, final String region, final String queueName) {
+        return new SQS(client(awsKey, awsSecret, region), queueUrl(awsKey, awsSecret, region, queueName));
+    }
+
+    /**
+     * @return the queue's URL, resolved (or the queue created) on first use
+     */
+    public String queueUrl(final String awsKey, final String awsSecret, final String region, final String queueName) {
+        final String key = clientKey(awsKey, region) + "/" + queueName;
+        final Future<String> url = url(awsKey, awsSecret, region, queueName);
+        try {
+            return url.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted resolving " + queueName, e);
+        } catch (ExecutionException e) {
+            //let the next caller try again
+            urls.remove(key, url);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("cannot resolve " + queueName, e.getCause());
+        }
+    }
+
+    /**
+     * Shuts down the client for these credentials and region, if this registry created one, so a retired secret
+     * doesn't keep its connection pool for the life of the registry. SQS instances built on it stop working; the
+     * next request for these credentials gets a new client.
+     *
+     * @return false if there was no such client
+     */
+    public boolean release(final String awsKey, final String awsSecret, final String region) {
+        final AmazonSQS client;
+        synchronized (clients) {
+            client = clients.remove(clientKey(awsKey, region) + "#" + digest(awsSecret));
+        }
+        if (client == null) {
+            return false;
+        }
+        client.shutdown();
+        return true;
+    }
+
+    /**
+     * Shuts down every client this registry created.
+     */
+    public void shutdown() {
+        resolvers.shutdown();
+        for (final AmazonSQS client : clients.values()) {
+            client.shutdown();
+        }
+        clients.clear();
+    }
+
+    /**
+     * Builds the client shared by everything using these credentials in this region.
+     */
+    protected AmazonSQS newClient(final String awsKey, final String awsSecret, final String region,
+                                  final ClientConfiguration configuration) {
+        final AmazonSQSClient client = new AmazonSQSClient(new BasicAWSCredentials(awsKey, awsSecret), configuration);
+        client.setRegion(Region.getRegion(Regions.fromName(region)));
+        return client;
+    }
+
+    private Future<String> url(final String awsKey, final String awsSecret, final String region,
+                               final String queueName) {
+        final String key = clientKey(awsKey, region) + "/" + queueName;
+        Future<String> url = urls.get(key);
+        if (url == null) {
+            final FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+                public String call() throws Exception {
+                    final String resolved = client(awsKey, awsSecret, region)
+                            .createQueue(new CreateQueueRequest(queueName)).getQueueUrl();
+                    cache(key, resolved);
+                    return resolved;
+                }
+            });
+            url = urls.putIfAbsent(key, task);
+            if (url == null) {
+                url = task;
+                resolvers.execute(task);
+            }
+        }
+        return url;
+    }
+
+    private synchronized void cache(final String key, final String url) {
+        final File file = this.cacheFile;
+        if (file == null) {
+            return;
+        }
+        final Properties cached = new Properties();
+        for (final Map.Entry<String, Future<String>> entry : urls.entrySet()) {
+            final Future<String> resolved = entry.getValue();
+            if (resolved.isDone()) {
+                try {
+                    cached.setProperty(entry.getKey(), resolved.get());
+                } catch (Exception e) {
+                    //failed lookups aren't cached
+                }
+            }
+        }
+        cached.setProperty(key, url);
+        final File written = new File(file.getPath() + ".tmp");
+        try {
+            final OutputStream out = new FileOutputStream(written);
+            try {
+                cached.store(out, "Moo queue URLs");
+            } finally {
+                out.close();
+            }
+            if (!written.renameTo(file)) {
+                file.delete();
+                written.renameTo(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Access key ids aren't secret, so they're fine in the cache file; secrets never go there. A queue's URL doesn't
+     * depend on the secret, so URLs are keyed by this alone.
+     */
+    private static String clientKey(final String awsKey, final String region) {
+        return awsKey + "@" + region;
+    }
+
+    /**
+     * tells clients for the same access key with different secrets (say, a rotated one) apart without keeping the
+     * secret itself as a map key
+     */
+    private static String digest(final String awsSecret) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(awsSecret.getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (final byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Resolved implements Callable<String> {
+        private final String url;
+
+        Resolved(final String url) {
+            this.url = url;
+        }
+
+        public String call() {
+            return url;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.b50.moo;
+
+import com.b50.moo.metrics.QueueMetrics;
+
+/**
+ * Hooks for scaling beyond one process: an auto-scaling consumer calls these when it has hit its configured
+ * bounds, at most once per cooldown.
+ */
+public interface ScalingCallback {
+    /**
+     * wait times are over target and this process is at its maximum processing threads
+     */
+    void onCeilingReached(QueueMetrics recent);
+
+    /**
+     * wait times are well under target and this process is at its minimum processing threads
+     */
+    void onFloorReached(QueueMetrics recent);
+}
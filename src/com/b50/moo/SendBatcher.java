@@ -0,0 +1,167 @@
+package com.b50.moo;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates message bodies into SendMessageBatch requests. A batch goes out once it holds 10 entries, once
+ * the next body would push it past the 256KB request limit, or once its oldest entry has waited the linger time.
+ * Batches are sent on the given pool so callers never wait on SQS.
+ */
+class SendBatcher {
+    static final int MAX_BATCH = 10;
+    static final int MAX_BATCH_BYTES = 262144;
+
+    private final AmazonSQS sqs;
+    private final String queueURL;
+    private final ExecutorService pool;
+    private final ScheduledExecutorService scheduler;
+    private final long lingerMillis;
+    private List<PendingSend> pending = new ArrayList<PendingSend>();
+    private int pendingBytes;
+
+    SendBatcher(final AmazonSQS sqs, final String queueURL, final ExecutorService pool,
+                final ScheduledExecutorService scheduler, final long lingerMillis) {
+        this.sqs = sqs;
+        this.queueURL = queueURL;
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.lingerMillis = lingerMillis;
+    }
+
+    void send(final String body, final int size, final SendCallback callback) {
+        send(body, size, null, callback);
+    }
+
+    /**
+     * @param body       the encoded message body, which must itself fit in a request
+     * @param size       size of body and attributes as counted against the batch limit
+     * @param attributes message attributes, or null
+     * @param callback   may be null
+     */
+    void send(final String body, final int size, final Map<String, MessageAttributeValue> attributes,
+              final SendCallback callback) {
+        List<PendingSend> ready = null;
+        boolean first;
+        synchronized (this) {
+            if (pendingBytes + size > MAX_BATCH_BYTES) {
+                ready = takePending();
+            }
+            first = pending.isEmpty();
+            pending.add(new PendingSend(body, attributes, callback));
+            pendingBytes += size;
+            if (pending.size() >= MAX_BATCH) {
+                submit(ready);
+                ready = takePending();
+                first = false;
+            }
+        }
+        submit(ready);
+        if (first) {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    submit(drain());
+                }
+            }, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * sends whatever is pending on the calling thread
+     */
+    void flush() {
+        final List<PendingSend> batch = drain();
+        if (batch != null) {
+            sendBatch(batch);
+        }
+    }
+
+    private synchronized List<PendingSend> drain() {
+        return pending.isEmpty() ? null : takePending();
+    }
+
+    private List<PendingSend> takePending() {
+        final List<PendingSend> batch = pending;
+        pending = new ArrayList<PendingSend>();
+        pendingBytes = 0;
+        return batch;
+    }
+
+    private void submit(final List<PendingSend> batch) {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        pool.execute(new Runnable() {
+            public void run() {
+                sendBatch(batch);
+            }
+        });
+    }
+
+    private void sendBatch(final List<PendingSend> batch) {
+        final List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            final PendingSend send = batch.get(i);
+            final SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry(Integer.toString(i), send.body);
+            if (send.attributes != null) {
+                entry.setMessageAttributes(send.attributes);
+            }
+            entries.add(entry);
+        }
+        final SendMessageBatchResult result;
+        try {
+            result = sqs.sendMessageBatch(queueURL, entries);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            final String code = e instanceof AmazonServiceException ?
+                    ((AmazonServiceException) e).getErrorCode() : e.getClass().getName();
+            for (final PendingSend failed : batch) {
+                failed.onFailure(code, e.getMessage());
+            }
+            return;
+        }
+        for (final SendMessageBatchResultEntry sent : result.getSuccessful()) {
+            batch.get(Integer.parseInt(sent.getId())).onSend(sent.getMessageId());
+        }
+        for (final BatchResultErrorEntry error : result.getFailed()) {
+            batch.get(Integer.parseInt(error.getId())).onFailure(error.getCode(), error.getMessage());
+        }
+    }
+
+    private static class PendingSend {
+        final String body;
+        final Map<String, MessageAttributeValue> attributes;
+        final SendCallback callback;
+
+        private PendingSend(final String body, final Map<String, MessageAttributeValue> attributes,
+                            final SendCallback callback) {
+            this.body = body;
+            this.attributes = attributes;
+            this.callback = callback;
+        }
+
+        void onSend(final String messageId) {
+            if (callback != null) {
+                callback.onSend(messageId);
+            }
+        }
+
+        void onFailure(final String errorCode, final String errorMessage) {
+            if (callback instanceof SendFailureCallback) {
+                ((SendFailureCallback) callback).onFailure(errorCode, errorMessage);
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.b50.moo;
+
+/**
+ * A {@link SendCallback} that is also told when its message could not be sent. Batched sends report failures
+ * per message; a plain SendCallback simply isn't invoked for a message that failed.
+ */
+public interface SendFailureCallback extends SendCallback {
+    void onFailure(String errorCode, String errorMessage);
+}
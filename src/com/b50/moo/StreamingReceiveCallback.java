@@ -0,0 +1,16 @@
+package com.b50.moo;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A {@link ReceiveCallback} that can consume a message as a stream. When a message's body was offloaded to a
+ * {@link com.b50.moo.payload.PayloadStore}, Moo hands it over through a Reader instead of loading it into a String
+ * first; messages carried inline still arrive through onReceive(String, String).
+ */
+public interface StreamingReceiveCallback extends ReceiveCallback {
+    /**
+     * @param message positioned at the start of the payload; Moo closes it once this returns
+     */
+    void onReceive(String id, Reader message) throws IOException;
+}
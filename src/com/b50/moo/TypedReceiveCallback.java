@@ -0,0 +1,8 @@
+package com.b50.moo;
+
+/**
+ * Receives messages bound to objects of type T. See {@link SQS#receive(Class, TypedReceiveCallback)}.
+ */
+public interface TypedReceiveCallback<T> {
+    void onReceive(String id, T message);
+}
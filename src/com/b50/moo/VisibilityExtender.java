@@ -0,0 +1,155 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps messages that are received but not yet done with invisible to other consumers. Receipt handles are tracked
+ * from the moment a message is received, through any wait in a consumer's buffer, until its callback returns or
+ * throws or its handle is resolved; every half visibility timeout, one task on the scheduler extends all of them in
+ * ChangeMessageVisibilityBatch requests of up to 10. A message stops being extended once it's been in flight for
+ * the maximum extension, so a hung callback can't hold on to it forever. A message its handler extended further
+ * itself (see {@link MessageHandle#extend(int)}) is left alone until the heartbeat would no longer shorten that.
+ */
+class VisibilityExtender implements Runnable {
+    private static final int MAX_BATCH = 10;
+
+    private final AmazonSQS sqs;
+    private final String queueURL;
+    private final int visibilityTimeoutSeconds;
+    private final long maxExtensionMillis;
+    private final Map<String, Long> inFlight = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> extendedUntil = new ConcurrentHashMap<String, Long>();
+    private final Object sending = new Object();
+    private ScheduledFuture<?> heartbeat;
+
+    VisibilityExtender(final AmazonSQS sqs, final String queueURL, final int visibilityTimeoutSeconds,
+                       final long maxExtensionMillis) {
+        this.sqs = sqs;
+        this.queueURL = queueURL;
+        this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+        this.maxExtensionMillis = maxExtensionMillis;
+    }
+
+    void start(final ScheduledExecutorService scheduler) {
+        final long period = Math.max(1, visibilityTimeoutSeconds * 1000L / 2);
+        this.heartbeat = scheduler.scheduleAtFixedRate(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (this.heartbeat != null) {
+            this.heartbeat.cancel(false);
+        }
+    }
+
+    int getVisibilityTimeoutSeconds() {
+        return visibilityTimeoutSeconds;
+    }
+
+    void track(final String receiptHandle) {
+        inFlight.put(receiptHandle, System.currentTimeMillis());
+    }
+
+    void untrack(final String receiptHandle) {
+        inFlight.remove(receiptHandle);
+        extendedUntil.remove(receiptHandle);
+    }
+
+    /**
+     * Untracks the handle and waits out any extension of it already being sent, so a visibility change made once
+     * this returns (a nack's delay, say) isn't overwritten by the heartbeat.
+     */
+    void untrackBeforeChange(final String receiptHandle) {
+        synchronized (sending) {
+            untrack(receiptHandle);
+        }
+    }
+
+    /**
+     * Records that the handle's message was made invisible until the deadline by other means, so the heartbeat
+     * doesn't shorten that; like untrackBeforeChange, waits out any extension of it already being sent.
+     */
+    void extendedUntil(final String receiptHandle, final long deadline) {
+        synchronized (sending) {
+            if (inFlight.containsKey(receiptHandle)) {
+                extendedUntil.put(receiptHandle, deadline);
+            }
+        }
+    }
+
+    int size() {
+        return inFlight.size();
+    }
+
+    public void run() {
+        try {
+            extend(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void extend(final long now) {
+        final List<String> batch = new ArrayList<String>(MAX_BATCH);
+        final Iterator<Map.Entry<String, Long>> entries = inFlight.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<String, Long> entry = entries.next();
+            if (now - entry.getValue() >= maxExtensionMillis) {
+                entries.remove();
+                extendedUntil.remove(entry.getKey());
+                continue;
+            }
+            batch.add(entry.getKey());
+            if (batch.size() == MAX_BATCH) {
+                send(batch, now);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            send(batch, now);
+        }
+    }
+
+    private void send(final List<String> receiptHandles, final long now) {
+        final long extendedTo = now + visibilityTimeoutSeconds * 1000L;
+        synchronized (sending) {
+            //skip handles untracked since the batch was gathered, and those already invisible for longer
+            final List<String> handles = new ArrayList<String>(receiptHandles.size());
+            final List<ChangeMessageVisibilityBatchRequestEntry> entries =
+                    new ArrayList<ChangeMessageVisibilityBatchRequestEntry>(receiptHandles.size());
+            for (final String receiptHandle : receiptHandles) {
+                final Long until = extendedUntil.get(receiptHandle);
+                if (inFlight.containsKey(receiptHandle) && (until == null || until <= extendedTo)) {
+                    entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(handles.size()),
+                            receiptHandle).withVisibilityTimeout(visibilityTimeoutSeconds));
+                    handles.add(receiptHandle);
+                }
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+            try {
+                final ChangeMessageVisibilityBatchResult result = sqs.changeMessageVisibilityBatch(queueURL, entries);
+                for (final BatchResultErrorEntry error : result.getFailed()) {
+                    if (Boolean.TRUE.equals(error.getSenderFault())) {
+                        //e.g. the receipt handle expired; extending it again won't help
+                        untrack(handles.get(Integer.parseInt(error.getId())));
+                    }
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.b50.moo;
+
+/**
+ * Which clocks a message's time in queue is measured against.
+ */
+public enum WaitTimeSource {
+    /**
+     * the receiver's clock minus the time the sender stamped on the message; only as good as the two hosts' clocks
+     */
+    PRODUCER_CLOCK,
+    /**
+     * the receiver's clock, corrected to SQS's, minus the SentTimestamp SQS records when it accepts a message; immune
+     * to sender clocks and works for messages not sent via Moo
+     */
+    SENT_TIMESTAMP,
+    /**
+     * the sender's timestamp corrected by a running estimate of that sender's clock offset from SQS, and the
+     * receiver's clock likewise; includes time a message spent in the sender (e.g. waiting to be batched)
+     */
+    SKEW_CORRECTED
+}
@@ -0,0 +1,125 @@
+package com.b50.moo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The QueueWaitTimeCallbacks attached to a queue, kept in an array sorted by threshold and replaced wholesale
+ * whenever one is added, so receivers read it without locking. A wait time only touches the thresholds it
+ * exceeds, found by binary search. Callbacks run on a separate executor rather than on the receiving thread, and a
+ * threshold may be limited to firing once per interval. Invocations the executor won't take are dropped; the
+ * default executor takes up to MAX_PENDING waiting ones.
+ */
+class WaitTimeThresholds {
+    private static final Threshold[] NONE = new Threshold[0];
+    static final int MAX_PENDING = 1000;
+
+    private volatile Threshold[] thresholds = NONE;
+    private volatile Executor executor;
+    private ExecutorService ownExecutor;
+
+    synchronized void add(final long maxDiff, final QueueWaitTimeCallback callback, final long minIntervalMillis) {
+        final Threshold[] current = this.thresholds;
+        final Threshold[] updated = new Threshold[current.length + 1];
+        int insertAt = exceeded(current, maxDiff);
+        System.arraycopy(current, 0, updated, 0, insertAt);
+        updated[insertAt] = new Threshold(maxDiff, callback, minIntervalMillis);
+        System.arraycopy(current, insertAt, updated, insertAt + 1, current.length - insertAt);
+        if (this.executor == null) {
+            useOwnExecutor();
+        }
+        this.thresholds = updated;
+    }
+
+    /**
+     * @param executor where callbacks run, or null to go back to a dedicated daemon thread
+     */
+    synchronized void setExecutor(final Executor executor) {
+        if (this.ownExecutor != null) {
+            this.ownExecutor.shutdown();
+            this.ownExecutor = null;
+        }
+        this.executor = executor;
+        if (executor == null && this.thresholds.length > 0) {
+            useOwnExecutor();
+        }
+    }
+
+    private void useOwnExecutor() {
+        this.ownExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING), new Consumer.NamedThreadFactory("moo-wait-time", true),
+                new ThreadPoolExecutor.DiscardPolicy());
+        this.executor = this.ownExecutor;
+    }
+
+    void fire(final long waitTime) {
+        final Threshold[] current = this.thresholds;
+        final int count = exceeded(current, waitTime);
+        if (count == 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final Executor executor = this.executor;
+        for (int i = 0; i < count; i++) {
+            final Threshold threshold = current[i];
+            if (threshold.claim(now)) {
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            threshold.callback.onThresholdExceeded(waitTime);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    //saturated, or shut down by a concurrent setExecutor; the message itself was processed fine
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many of the sorted thresholds are at or below the wait time
+     */
+    static int exceeded(final Threshold[] thresholds, final long waitTime) {
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (thresholds[mid].maxDiff <= waitTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    static class Threshold {
+        final long maxDiff;
+        final QueueWaitTimeCallback callback;
+        private final long minIntervalMillis;
+        private final AtomicLong nextAllowed = new AtomicLong(Long.MIN_VALUE);
+
+        Threshold(final long maxDiff, final QueueWaitTimeCallback callback, final long minIntervalMillis) {
+            this.maxDiff = maxDiff;
+            this.callback = callback;
+            this.minIntervalMillis = minIntervalMillis;
+        }
+
+        /**
+         * @return whether this threshold may fire now; only one caller wins per interval
+         */
+        boolean claim(final long now) {
+            if (minIntervalMillis <= 0) {
+                return true;
+            }
+            final long allowed = nextAllowed.get();
+            return now >= allowed && nextAllowed.compareAndSet(allowed, now + minIntervalMillis);
+        }
+    }
+}
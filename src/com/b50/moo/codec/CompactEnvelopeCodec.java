@@ -0,0 +1,220 @@
+package com.b50.moo.codec;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A binary envelope, Base64 encoded so it's a legal SQS body:
+ * <pre>
+ *   version (1 byte) | flags (1 byte) | timestamp (8 bytes) | [original length (4 bytes)] | body
+ * </pre>
+ * The body is UTF-8, deflated when that makes it smaller (flag 0x01, in which case the original length
+ * precedes it). Nothing in the body is escaped, so embedded JSON and XML cost no more than their own bytes, and
+ * compressible payloads well over 256KB fit in a single message.
+ * <p>
+ * Base64 adds a third, so a body that isn't deflated is written as a JSON envelope instead whenever that's no
+ * larger; {@link #decode(String)} reads either.
+ */
+public class CompactEnvelopeCodec implements EnvelopeCodec {
+    static final byte VERSION = 1;
+    private static final byte DEFLATED = 0x01;
+    private static final int HEADER = 10;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+    /**
+     * 64 times the SQS message size; a declared length above it is treated as hostile rather than allocated
+     */
+    static final int MAX_INFLATED_LENGTH = 64 * 262144;
+
+    private final JsonEnvelopeCodec json = new JsonEnvelopeCodec();
+    private final int compressionThreshold;
+
+    public CompactEnvelopeCodec() {
+        this(DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * @param compressionThreshold bodies of at least this many bytes are deflated if that shrinks them; use
+     *                             Integer.MAX_VALUE to never compress
+     */
+    public CompactEnvelopeCodec(final int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public String encode(final String message, final long timestamp) throws IOException {
+        final byte[] raw = message.getBytes("UTF-8");
+        byte[] payload = raw;
+        byte flags = 0;
+        if (raw.length >= compressionThreshold) {
+            final byte[] deflated = deflate(raw);
+            if (deflated.length + 4 < raw.length) {
+                payload = deflated;
+                flags = DEFLATED;
+            }
+        }
+        if (flags != DEFLATED && json.encodedSize(message, timestamp) <= base64Size(HEADER + raw.length)) {
+            return json.encode(message, timestamp);
+        }
+        final int extra = flags == DEFLATED ? 4 : 0;
+        final byte[] envelope = new byte[HEADER + extra + payload.length];
+        envelope[0] = VERSION;
+        envelope[1] = flags;
+        putLong(envelope, 2, timestamp);
+        if (flags == DEFLATED) {
+            putInt(envelope, HEADER, raw.length);
+        }
+        System.arraycopy(payload, 0, envelope, HEADER + extra, payload.length);
+        return new String(Base64.encodeBase64(envelope), "US-ASCII");
+    }
+
+    /**
+     * Exact unless the message is long enough to be considered for compression, in which case it's unknown.
+     */
+    public long encodedSize(final String message, final long timestamp) {
+        final long utf8 = EncodedSize.utf8(message);
+        return utf8 >= compressionThreshold ? -1
+                : Math.min(json.encodedSize(message, timestamp), base64Size(HEADER + utf8));
+    }
+
+    private static long base64Size(final long bytes) {
+        return (bytes + 2) / 3 * 4;
+    }
+
+    public Envelope decode(final String body) throws MalformedEnvelopeException {
+        if (!isCompact(body)) {
+            return json.decode(body);
+        }
+        final String trimmed = body.trim();
+        for (int i = 0; i < trimmed.length(); i++) {
+            //commons-codec skips anything outside the alphabet, which would turn any text into some envelope
+            if (!isBase64(trimmed.charAt(i))) {
+                throw new MalformedEnvelopeException("compact envelope is not Base64");
+            }
+        }
+        final byte[] envelope;
+        try {
+            envelope = Base64.decodeBase64(trimmed.getBytes("US-ASCII"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        if (envelope.length < HEADER) {
+            throw new MalformedEnvelopeException("compact envelope is too short");
+        }
+        if (envelope[0] != VERSION) {
+            throw new MalformedEnvelopeException("unknown compact envelope version " + envelope[0]);
+        }
+        final long timestamp = getLong(envelope, 2);
+        try {
+            if ((envelope[1] & DEFLATED) != 0) {
+                if (envelope.length < HEADER + 4) {
+                    throw new MalformedEnvelopeException("compact envelope is too short");
+                }
+                final byte[] raw = inflate(envelope, HEADER + 4, getInt(envelope, HEADER));
+                return new Envelope(new String(raw, "UTF-8"), timestamp);
+            }
+            return new Envelope(new String(envelope, HEADER, envelope.length - HEADER, "UTF-8"), timestamp);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if the body looks like a compact envelope rather than a JSON one
+     */
+    public static boolean isCompact(final String body) {
+        for (int i = 0; i < body.length(); i++) {
+            final char c = body.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return isBase64(c);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBase64(final char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/'
+                || c == '=';
+    }
+
+    private static byte[] deflate(final byte[] raw) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(final byte[] source, final int offset, final int length) throws MalformedEnvelopeException {
+        if (length < 0) {
+            throw new MalformedEnvelopeException("negative body length in compact envelope");
+        }
+        if (length > MAX_INFLATED_LENGTH) {
+            throw new MalformedEnvelopeException("compact envelope body length " + length + " exceeds "
+                    + MAX_INFLATED_LENGTH);
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(source, offset, source.length - offset);
+            final byte[] raw = new byte[length];
+            int filled = 0;
+            while (filled < length) {
+                final int remaining = inflater.getRemaining();
+                final int read = inflater.inflate(raw, filled, length - filled);
+                if (inflater.needsDictionary()) {
+                    throw new MalformedEnvelopeException("compact envelope body needs a preset dictionary");
+                }
+                if (read == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.getRemaining() == remaining)) {
+                    throw new MalformedEnvelopeException("compact envelope body is truncated");
+                }
+                filled += read;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new MalformedEnvelopeException("compact envelope body is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void putLong(final byte[] bytes, final int offset, final long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long getLong(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void putInt(final byte[] bytes, final int offset, final int value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[offset + i] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+
+    private static int getInt(final byte[] bytes, final int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
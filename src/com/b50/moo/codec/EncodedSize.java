@@ -0,0 +1,77 @@
+package com.b50.moo.codec;
+
+/**
+ * Counts how many bytes text will take on the wire -- UTF-8 encoded and, where asked, JSON escaped -- in a single
+ * pass and without producing the encoded form.
+ */
+public final class EncodedSize {
+
+    private EncodedSize() {
+    }
+
+    /**
+     * @return the UTF-8 length of text; an unpaired surrogate counts as the single '?' it gets replaced with
+     */
+    public static long utf8(final CharSequence text) {
+        long size = 0;
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                size++;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                size++;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the UTF-8 length of text once escaped as the contents of a JSON string (without the quotes), using
+     *         the same escapes as Jackson's JsonGenerator
+     */
+    public static long jsonString(final CharSequence text) {
+        long size = 0;
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20) {
+                    size += (c == '"' || c == '\\') ? 2 : 1;
+                } else if (c == '\b' || c == '\t' || c == '\n' || c == '\f' || c == '\r') {
+                    size += 2;
+                } else {
+                    size += 6; // backslash, u and four hex digits
+                }
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                size++;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    static int digits(final long value) {
+        if (value < 0) {
+            return Long.toString(value).length();
+        }
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+}
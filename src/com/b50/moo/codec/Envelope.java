@@ -0,0 +1,58 @@
+package com.b50.moo.codec;
+
+/**
+ * A decoded message: the original body plus the time it was enqueued.
+ */
+public class Envelope {
+    public static final long NO_TIMESTAMP = -1;
+
+    private final String message;
+    private final String reference;
+    private final long timestamp;
+
+    public Envelope(final String message, final long timestamp) {
+        this(message, null, timestamp);
+    }
+
+    protected Envelope(final String message, final String reference, final long timestamp) {
+        this.message = message;
+        this.reference = reference;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return an envelope whose body lives in a PayloadStore under the given pointer
+     */
+    public static Envelope reference(final String reference, final long timestamp) {
+        return new Envelope(null, reference, timestamp);
+    }
+
+    /**
+     * @return the message, or null if this envelope only refers to it
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the PayloadStore pointer, or null if the message is inline
+     */
+    public String getReference() {
+        return reference;
+    }
+
+    public boolean isReference() {
+        return reference != null;
+    }
+
+    /**
+     * @return milliseconds since the epoch, or NO_TIMESTAMP if the envelope didn't carry one
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean hasTimestamp() {
+        return timestamp != NO_TIMESTAMP;
+    }
+}
@@ -0,0 +1,18 @@
+package com.b50.moo.codec;
+
+import java.io.IOException;
+
+/**
+ * Turns a message and its enqueue time into an SQS message body and back again.
+ */
+public interface EnvelopeCodec {
+    String encode(String message, long timestamp) throws IOException;
+
+    /**
+     * @return the exact size in UTF-8 bytes of what encode would produce, or -1 if that can't be known without
+     *         actually encoding
+     */
+    long encodedSize(String message, long timestamp);
+
+    Envelope decode(String body) throws MalformedEnvelopeException;
+}
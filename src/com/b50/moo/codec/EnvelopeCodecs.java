@@ -0,0 +1,19 @@
+package com.b50.moo.codec;
+
+/**
+ * The built-in codecs, plus a decoder that works out which one wrote a given body.
+ */
+public final class EnvelopeCodecs {
+    public static final EnvelopeCodec JSON = new JsonEnvelopeCodec();
+    public static final EnvelopeCodec COMPACT = new CompactEnvelopeCodec();
+
+    private EnvelopeCodecs() {
+    }
+
+    /**
+     * Decodes a body written by either built-in codec.
+     */
+    public static Envelope decode(final String body) throws MalformedEnvelopeException {
+        return CompactEnvelopeCodec.isCompact(body) ? COMPACT.decode(body) : JSON.decode(body);
+    }
+}
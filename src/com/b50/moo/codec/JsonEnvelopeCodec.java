@@ -0,0 +1,23 @@
+package com.b50.moo.codec;
+
+import java.io.IOException;
+
+/**
+ * The original <code>{"msg":...,"ts":"..."}</code> format, readable by every Moo client.
+ */
+public class JsonEnvelopeCodec implements EnvelopeCodec {
+    private final JsonEnvelopeWriter writer = new JsonEnvelopeWriter();
+    private final JsonEnvelopeReader reader = new JsonEnvelopeReader();
+
+    public String encode(final String message, final long timestamp) throws IOException {
+        return writer.write(message, timestamp);
+    }
+
+    public long encodedSize(final String message, final long timestamp) {
+        return writer.encodedSize(message, timestamp);
+    }
+
+    public Envelope decode(final String body) throws MalformedEnvelopeException {
+        return reader.read(body);
+    }
+}
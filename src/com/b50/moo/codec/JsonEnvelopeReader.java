@@ -0,0 +1,223 @@
+package com.b50.moo.codec;
+
+/**
+ * Pulls <code>msg</code> and <code>ts</code> out of a <code>{"msg":...,"ts":"..."}</code> envelope in a single
+ * pass over the body without building a tree. A string <code>msg</code> is unescaped (or simply sliced out when
+ * it contains no escapes); any other <code>msg</code> value, such as a nested JSON document, is returned verbatim
+ * as a substring of the body, key order and formatting included. A <code>ref</code> in place of <code>msg</code>
+ * marks a payload held in a PayloadStore. Unknown fields are skipped.
+ */
+public class JsonEnvelopeReader {
+
+    public Envelope read(final String body) throws MalformedEnvelopeException {
+        return new Scanner(body).readEnvelope();
+    }
+
+    private static class Scanner {
+        private final String body;
+        private int pos;
+
+        private Scanner(final String body) {
+            this.body = body;
+        }
+
+        Envelope readEnvelope() throws MalformedEnvelopeException {
+            String message = null;
+            String reference = null;
+            long timestamp = Envelope.NO_TIMESTAMP;
+            expect('{');
+            if (peek() == '}') {
+                pos++;
+                throw error("envelope has no msg");
+            }
+            while (true) {
+                final String name = readString();
+                expect(':');
+                final char next = peek();
+                if ("msg".equals(name)) {
+                    message = next == '"' ? readString() : readRawValue();
+                } else if ("ref".equals(name)) {
+                    reference = readString();
+                } else if ("ts".equals(name)) {
+                    timestamp = parseTimestamp(next == '"' ? readString() : readRawValue());
+                } else {
+                    skipValue();
+                }
+                final char separator = nextNonWhitespace();
+                if (separator == '}') {
+                    break;
+                }
+                if (separator != ',') {
+                    throw error("expected , or }");
+                }
+            }
+            if (message != null) {
+                return new Envelope(message, timestamp);
+            }
+            if (reference != null) {
+                return Envelope.reference(reference, timestamp);
+            }
+            throw error("envelope has no msg");
+        }
+
+        private long parseTimestamp(final String value) throws MalformedEnvelopeException {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw error("ts is not a number: " + value);
+            }
+        }
+
+        private String readString() throws MalformedEnvelopeException {
+            expect('"');
+            final int start = pos;
+            while (pos < body.length()) {
+                final char c = body.charAt(pos);
+                if (c == '"') {
+                    return body.substring(start, pos++);
+                }
+                if (c == '\\') {
+                    return readEscapedString(start);
+                }
+                pos++;
+            }
+            throw error("unterminated string");
+        }
+
+        private String readEscapedString(final int start) throws MalformedEnvelopeException {
+            final StringBuilder builder = new StringBuilder(body.length() - start);
+            builder.append(body, start, pos);
+            while (pos < body.length()) {
+                final char c = body.charAt(pos++);
+                if (c == '"') {
+                    return builder.toString();
+                }
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+                if (pos >= body.length()) {
+                    break;
+                }
+                final char escaped = body.charAt(pos++);
+                switch (escaped) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        builder.append(escaped);
+                        break;
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > body.length()) {
+                            throw error("truncated unicode escape");
+                        }
+                        try {
+                            builder.append((char) Integer.parseInt(body.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("bad unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        throw error("bad escape \\" + escaped);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        /**
+         * @return the next value exactly as it appears in the body
+         */
+        private String readRawValue() throws MalformedEnvelopeException {
+            nextNonWhitespace();
+            final int start = --pos;
+            skipValue();
+            return body.substring(start, pos);
+        }
+
+        private void skipValue() throws MalformedEnvelopeException {
+            final char first = nextNonWhitespace();
+            if (first == '"') {
+                skipString();
+                return;
+            }
+            if (first == '{' || first == '[') {
+                int depth = 1;
+                while (depth > 0) {
+                    if (pos >= body.length()) {
+                        throw error("unterminated " + first);
+                    }
+                    final char c = body.charAt(pos++);
+                    if (c == '"') {
+                        skipString();
+                    } else if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                }
+                return;
+            }
+            while (pos < body.length()) {
+                final char c = body.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                    break;
+                }
+                pos++;
+            }
+        }
+
+        private void skipString() throws MalformedEnvelopeException {
+            while (pos < body.length()) {
+                final char c = body.charAt(pos++);
+                if (c == '"') {
+                    return;
+                }
+                if (c == '\\') {
+                    pos++;
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private void expect(final char expected) throws MalformedEnvelopeException {
+            if (nextNonWhitespace() != expected) {
+                throw error("expected " + expected);
+            }
+        }
+
+        private char peek() throws MalformedEnvelopeException {
+            final char c = nextNonWhitespace();
+            pos--;
+            return c;
+        }
+
+        private char nextNonWhitespace() throws MalformedEnvelopeException {
+            while (pos < body.length()) {
+                final char c = body.charAt(pos++);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return c;
+                }
+            }
+            throw error("unexpected end of envelope");
+        }
+
+        private MalformedEnvelopeException error(final String problem) {
+            return new MalformedEnvelopeException(problem + " at position " + pos);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.b50.moo.codec;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SegmentedStringWriter;
+import org.codehaus.jackson.io.SerializedString;
+
+import java.io.IOException;
+
+/**
+ * Writes the <code>{"msg":...,"ts":"..."}</code> envelope Moo wraps around every message. It streams straight
+ * through a JsonGenerator from one shared, thread-safe JsonFactory, so a send costs no ObjectMapper, no
+ * introspection, and no intermediate bean; output goes to the factory's recycled segment buffers.
+ */
+public class JsonEnvelopeWriter {
+    static final SerializedString MSG = new SerializedString("msg");
+    static final SerializedString TS = new SerializedString("ts");
+    static final SerializedString REF = new SerializedString("ref");
+    /* {"msg":"  ","ts":"  "} */
+    private static final int ENVELOPE_OVERHEAD = 18;
+
+    private final JsonFactory factory;
+
+    public JsonEnvelopeWriter() {
+        this(new JsonFactory());
+    }
+
+    public JsonEnvelopeWriter(final JsonFactory factory) {
+        this.factory = factory;
+    }
+
+    public String write(final String message, final long timestamp) throws IOException {
+        return write(MSG, message, timestamp);
+    }
+
+    /**
+     * Writes a <code>{"ref":...,"ts":"..."}</code> envelope, which points at a payload held in a
+     * {@link com.b50.moo.payload.PayloadStore} rather than carrying it.
+     */
+    public String writeReference(final String reference, final long timestamp) throws IOException {
+        return write(REF, reference, timestamp);
+    }
+
+    private String write(final SerializedString field, final String value, final long timestamp) throws IOException {
+        final SegmentedStringWriter out = new SegmentedStringWriter(factory._getBufferRecycler());
+        final JsonGenerator generator = factory.createJsonGenerator(out);
+        generator.writeStartObject();
+        generator.writeFieldName(field);
+        generator.writeString(value);
+        generator.writeFieldName(TS);
+        generator.writeString(Long.toString(timestamp));
+        generator.writeEndObject();
+        generator.close();
+        return out.getAndClear();
+    }
+
+    /**
+     * @return the number of UTF-8 bytes write would produce for the same arguments
+     */
+    public long encodedSize(final String message, final long timestamp) {
+        return ENVELOPE_OVERHEAD + EncodedSize.jsonString(message) + EncodedSize.digits(timestamp);
+    }
+}
@@ -0,0 +1,169 @@
+package com.b50.moo.codec;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.io.SegmentedStringWriter;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Sends objects as JSON without serializing them to a String first. In the <code>{"msg":...,"ts":"..."}</code>
+ * envelope the object is written as a raw JSON value, so nothing gets escaped, and on receive it's bound straight
+ * from the parser's token stream. Jackson's ObjectWriter and ObjectReader are created once per class and shared.
+ * <p/>
+ * Decoding also accepts envelopes from producers that sent their JSON as a string, compact envelopes, and bare
+ * bodies whose timestamp came in a message attribute.
+ */
+public class JsonObjectCodec {
+    private final ObjectMapper mapper;
+    private final JsonFactory factory;
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+    public JsonObjectCodec() {
+        this(new ObjectMapper());
+    }
+
+    /**
+     * @param mapper configured as objects should be (de)serialized; it mustn't be reconfigured afterwards
+     */
+    public JsonObjectCodec(final ObjectMapper mapper) {
+        this.mapper = mapper;
+        this.factory = mapper.getJsonFactory();
+    }
+
+    /**
+     * @return the object as a JSON document
+     */
+    public String write(final Object value) throws IOException {
+        return writer(value.getClass()).writeValueAsString(value);
+    }
+
+    /**
+     * @return a <code>{"msg":...,"ts":"..."}</code> envelope with the object as its msg
+     */
+    public String writeEnvelope(final Object value, final long timestamp) throws IOException {
+        final SegmentedStringWriter out = new SegmentedStringWriter(factory._getBufferRecycler());
+        final JsonGenerator generator = factory.createJsonGenerator(out);
+        generator.writeStartObject();
+        generator.writeFieldName(JsonEnvelopeWriter.MSG);
+        writer(value.getClass()).writeValue(generator, value);
+        generator.writeFieldName(JsonEnvelopeWriter.TS);
+        generator.writeString(Long.toString(timestamp));
+        generator.writeEndObject();
+        generator.close();
+        return out.getAndClear();
+    }
+
+    /**
+     * @return a JSON document bound to the given type
+     */
+    public <T> T read(final String json, final Class<T> type) throws IOException {
+        return reader(type).<T>readValue(json);
+    }
+
+    /**
+     * Decodes a body written by either built-in codec, binding its message to the given type.
+     */
+    public <T> TypedEnvelope<T> decode(final String body, final Class<T> type) throws IOException {
+        if (CompactEnvelopeCodec.isCompact(body)) {
+            final Envelope envelope = EnvelopeCodecs.COMPACT.decode(body);
+            if (envelope.isReference()) {
+                return TypedEnvelope.typedReference(envelope.getReference(), envelope.getTimestamp());
+            }
+            return new TypedEnvelope<T>(read(envelope.getMessage(), type), envelope.getTimestamp());
+        }
+        final JsonParser parser = factory.createJsonParser(body);
+        try {
+            return decode(parser, type);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private <T> TypedEnvelope<T> decode(final JsonParser parser, final Class<T> type) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new MalformedEnvelopeException("expected { at " + parser.getCurrentLocation());
+        }
+        T value = null;
+        boolean hasValue = false;
+        String reference = null;
+        long timestamp = Envelope.NO_TIMESTAMP;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if ("msg".equals(name)) {
+                value = bind(parser, token, type);
+                hasValue = true;
+            } else if ("ref".equals(name)) {
+                reference = parser.getText();
+            } else if ("ts".equals(name)) {
+                try {
+                    timestamp = Long.parseLong(parser.getText());
+                } catch (NumberFormatException e) {
+                    throw new MalformedEnvelopeException("ts is not a number: " + parser.getText());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (hasValue) {
+            return new TypedEnvelope<T>(value, timestamp);
+        }
+        if (reference != null) {
+            return TypedEnvelope.typedReference(reference, timestamp);
+        }
+        throw new MalformedEnvelopeException("envelope has no msg");
+    }
+
+    /**
+     * A document a producer serialized itself arrives as a string; anything else is bound where it stands.
+     */
+    private <T> T bind(final JsonParser parser, final JsonToken token, final Class<T> type) throws IOException {
+        if (token == JsonToken.VALUE_STRING && type != String.class && isDocument(parser.getText())) {
+            return read(parser.getText(), type);
+        }
+        return reader(type).<T>readValue(parser);
+    }
+
+    private static boolean isDocument(final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{' || c == '[';
+            }
+        }
+        return false;
+    }
+
+    private ObjectWriter writer(final Class<?> type) {
+        ObjectWriter writer = writers.get(type);
+        if (writer == null) {
+            writer = mapper.typedWriter(type);
+            final ObjectWriter existing = writers.putIfAbsent(type, writer);
+            if (existing != null) {
+                writer = existing;
+            }
+        }
+        return writer;
+    }
+
+    private ObjectReader reader(final Class<?> type) {
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            reader = mapper.reader(type);
+            final ObjectReader existing = readers.putIfAbsent(type, reader);
+            if (existing != null) {
+                reader = existing;
+            }
+        }
+        return reader;
+    }
+}
@@ -0,0 +1,11 @@
+package com.b50.moo.codec;
+
+import java.io.IOException;
+
+public class MalformedEnvelopeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MalformedEnvelopeException(final String s) {
+        super(s);
+    }
+}
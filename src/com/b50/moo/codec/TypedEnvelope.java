@@ -0,0 +1,32 @@
+package com.b50.moo.codec;
+
+/**
+ * An envelope whose message has been bound to an object rather than kept as a String.
+ */
+public class TypedEnvelope<T> extends Envelope {
+    private final T value;
+
+    public TypedEnvelope(final T value, final long timestamp) {
+        super(null, null, timestamp);
+        this.value = value;
+    }
+
+    private TypedEnvelope(final String reference, final long timestamp) {
+        super(null, reference, timestamp);
+        this.value = null;
+    }
+
+    /**
+     * @return an envelope whose object lives in a PayloadStore under the given pointer, still to be bound
+     */
+    public static <T> TypedEnvelope<T> typedReference(final String reference, final long timestamp) {
+        return new TypedEnvelope<T>(reference, timestamp);
+    }
+
+    /**
+     * @return the bound object, or null if this envelope only refers to it
+     */
+    public T getValue() {
+        return value;
+    }
+}
@@ -7,4 +7,10 @@ package com.b50.moo.exceptions;
  * Time: 3:14 PM
  */
 public class SQSException extends Exception {
+    public SQSException() {
+    }
+
+    public SQSException(Throwable cause) {
+        super(cause);
+    }
 }
@@ -7,7 +7,38 @@ package com.b50.moo.exceptions;
  * Time: 2:02 PM
  */
 public class SQSMessageLengthException extends Exception {
+    private long size = -1;
+    private long limit = -1;
+
     public SQSMessageLengthException(String s) {
         super(s);
     }
+
+    /**
+     * @param size  encoded size of the message in bytes
+     * @param limit maximum size SQS accepts
+     */
+    public SQSMessageLengthException(long size, long limit) {
+        super("Message is " + size + " bytes once encoded, " + (size - limit) + " bytes over the " + limit + " byte limit");
+        this.size = size;
+        this.limit = limit;
+    }
+
+    /**
+     * @return encoded size of the rejected message in bytes, or -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return how many bytes the message needs to shrink by, or -1 if unknown
+     */
+    public long getOverage() {
+        return size < 0 ? -1 : size - limit;
+    }
 }
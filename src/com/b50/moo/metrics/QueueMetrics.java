@@ -0,0 +1,114 @@
+package com.b50.moo.metrics;
+
+/**
+ * A point-in-time view of how long messages waited in a queue before being received, over a rolling window.
+ * Percentiles are accurate to within about 6%.
+ */
+public class QueueMetrics {
+    private final long windowMillis;
+    private final long count;
+    private final long totalCount;
+    private final long sum;
+    private final long max;
+    private final long[] buckets;
+    private final long deduplicated;
+    private final long duplicates;
+
+    QueueMetrics(final long windowMillis, final long count, final long totalCount, final long sum, final long max,
+                 final long[] buckets, final long deduplicated, final long duplicates) {
+        this.windowMillis = windowMillis;
+        this.count = count;
+        this.totalCount = totalCount;
+        this.sum = sum;
+        this.max = max;
+        this.buckets = buckets;
+        this.deduplicated = deduplicated;
+        this.duplicates = duplicates;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @return messages received within the window
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return messages received since recording began
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public double getRatePerSecond() {
+        return windowMillis == 0 ? 0 : count * 1000.0 / windowMillis;
+    }
+
+    /**
+     * @return the longest wait in milliseconds within the window, or 0 if nothing was received
+     */
+    public long getMaxWaitTime() {
+        return count == 0 ? 0 : max;
+    }
+
+    public double getMeanWaitTime() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the wait time in milliseconds that the given percentage of messages didn't exceed, or 0 if nothing
+     *         was received
+     */
+    public long getWaitTimePercentile(final double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(WaitTimeHistogram.highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getP50() {
+        return getWaitTimePercentile(50);
+    }
+
+    public long getP90() {
+        return getWaitTimePercentile(90);
+    }
+
+    public long getP99() {
+        return getWaitTimePercentile(99);
+    }
+
+    /**
+     * @return redeliveries dropped by the duplicate filter since recording began
+     */
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * @return the share of messages checked by the duplicate filter that were dropped, since recording began; 0
+     *         without a filter
+     */
+    public double getDuplicateRate() {
+        return deduplicated == 0 ? 0 : (double) duplicates / deduplicated;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueMetrics{count=" + count + ", rate=" + getRatePerSecond() + "/s, p50=" + getP50() + "ms, p90="
+                + getP90() + "ms, p99=" + getP99() + "ms, max=" + getMaxWaitTime() + "ms}";
+    }
+}
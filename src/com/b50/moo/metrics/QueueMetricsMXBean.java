@@ -0,0 +1,26 @@
+package com.b50.moo.metrics;
+
+/**
+ * Wait time metrics as exposed over JMX; see {@link QueueMetrics} for what each value means.
+ */
+public interface QueueMetricsMXBean {
+    long getCount();
+
+    long getTotalCount();
+
+    double getRatePerSecond();
+
+    long getMaxWaitTime();
+
+    double getMeanWaitTime();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getDuplicateCount();
+
+    double getDuplicateRate();
+}
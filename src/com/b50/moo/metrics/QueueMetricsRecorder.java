@@ -0,0 +1,163 @@
+package com.b50.moo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records message wait times into a rolling window made up of a ring of per-interval histograms. Recording touches
+ * only the current interval's histogram and takes no locks; a snapshot merges the intervals still inside the
+ * window. When the clock moves into a new interval, the first recorder to notice clears the slot being reused,
+ * briefly locking it.
+ */
+public class QueueMetricsRecorder implements QueueMetricsMXBean {
+    private static final long DEFAULT_WINDOW_MILLIS = 60000;
+    private static final int DEFAULT_INTERVALS = 12;
+
+    private final long intervalMillis;
+    private final WaitTimeHistogram[] histograms;
+    private final AtomicLong[] epochs;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public QueueMetricsRecorder() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_INTERVALS);
+    }
+
+    /**
+     * @param windowMillis how far back snapshots look
+     * @param intervals    how many slices the window is made of; a snapshot covers between (intervals - 1) and
+     *                     intervals of them
+     */
+    public QueueMetricsRecorder(final long windowMillis, final int intervals) {
+        if (intervals < 2 || windowMillis < intervals) {
+            throw new IllegalArgumentException("need at least 2 intervals of at least 1 millisecond each");
+        }
+        this.intervalMillis = windowMillis / intervals;
+        this.histograms = new WaitTimeHistogram[intervals];
+        this.epochs = new AtomicLong[intervals];
+        for (int i = 0; i < intervals; i++) {
+            this.histograms[i] = new WaitTimeHistogram();
+            this.epochs[i] = new AtomicLong(-1);
+        }
+    }
+
+    public void record(final long waitTimeMillis) {
+        record(waitTimeMillis, System.currentTimeMillis());
+    }
+
+    void record(final long waitTimeMillis, final long now) {
+        final long epoch = now / intervalMillis;
+        final int slot = (int) (epoch % histograms.length);
+        final AtomicLong slotEpoch = epochs[slot];
+        if (slotEpoch.get() < epoch) {
+            //clear before publishing the new epoch, so nobody records into the slot only to have it wiped
+            synchronized (histograms[slot]) {
+                if (slotEpoch.get() < epoch) {
+                    histograms[slot].reset();
+                    slotEpoch.set(epoch);
+                }
+            }
+        }
+        histograms[slot].record(waitTimeMillis);
+        totalCount.incrementAndGet();
+    }
+
+    /**
+     * counts a message checked against the duplicate filter
+     */
+    public void recordDeduplication(final boolean duplicate) {
+        deduplicated.incrementAndGet();
+        if (duplicate) {
+            duplicates.incrementAndGet();
+        }
+    }
+
+    public QueueMetrics snapshot() {
+        return snapshot(System.currentTimeMillis());
+    }
+
+    QueueMetrics snapshot(final long now) {
+        final long[] buckets = new long[WaitTimeHistogram.BUCKETS];
+        final long[] totals = {0, 0, Long.MIN_VALUE};
+        final long covered = merge(now, buckets, totals);
+        return new QueueMetrics(covered, totals[0], totalCount.get(), totals[1], totals[2], buckets,
+                deduplicated.get(), duplicates.get());
+    }
+
+    /**
+     * Adds the intervals still inside the window into the totals (count, sum, max) and, unless null, the buckets.
+     *
+     * @return the milliseconds those intervals cover
+     */
+    private long merge(final long now, final long[] buckets, final long[] totals) {
+        final long epoch = now / intervalMillis;
+        long oldest = epoch;
+        for (int i = 0; i < histograms.length; i++) {
+            final long slotEpoch = epochs[i].get();
+            if (slotEpoch >= 0 && slotEpoch > epoch - histograms.length && slotEpoch <= epoch) {
+                if (buckets == null) {
+                    histograms[i].addTotalsTo(totals);
+                } else {
+                    histograms[i].addTo(buckets, totals);
+                }
+                oldest = Math.min(oldest, slotEpoch);
+            }
+        }
+        return now - oldest * intervalMillis;
+    }
+
+    /**
+     * the JMX attributes other than percentiles only need these, so they skip merging the buckets
+     *
+     * @return count, sum, max and the milliseconds covered, as of now
+     */
+    private long[] totals() {
+        final long[] totals = {0, 0, Long.MIN_VALUE, 0};
+        totals[3] = merge(System.currentTimeMillis(), null, totals);
+        return totals;
+    }
+
+    public long getCount() {
+        return totals()[0];
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public double getRatePerSecond() {
+        final long[] totals = totals();
+        return totals[3] == 0 ? 0 : totals[0] * 1000.0 / totals[3];
+    }
+
+    public long getMaxWaitTime() {
+        final long[] totals = totals();
+        return totals[0] == 0 ? 0 : totals[2];
+    }
+
+    public double getMeanWaitTime() {
+        final long[] totals = totals();
+        return totals[0] == 0 ? 0 : (double) totals[1] / totals[0];
+    }
+
+    public long getP50() {
+        return snapshot().getP50();
+    }
+
+    public long getP90() {
+        return snapshot().getP90();
+    }
+
+    public long getP99() {
+        return snapshot().getP99();
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    public double getDuplicateRate() {
+        final long checked = deduplicated.get();
+        return checked == 0 ? 0 : (double) duplicates.get() / checked;
+    }
+}
@@ -0,0 +1,82 @@
+package com.b50.moo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of millisecond wait times in the style of HdrHistogram: values below 16 get a bucket each,
+ * and every power of two above that is split into 16 equal buckets, so any recorded value is off by at most 1/16th
+ * (about 6%) while the whole range up to decades fits in under a thousand counters. Recording is a handful of
+ * atomic increments with no locking.
+ */
+class WaitTimeHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    void record(final long value) {
+        final long clamped = value < 0 ? 0 : value;
+        counts.incrementAndGet(indexOf(clamped));
+        count.incrementAndGet();
+        sum.addAndGet(clamped);
+        long current;
+        while (clamped > (current = max.get()) && !max.compareAndSet(current, clamped)) {
+            // retry
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * adds this histogram's counts into the given totals
+     */
+    void addTo(final long[] bucketTotals, final long[] totals) {
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketTotals[i] += counts.get(i);
+        }
+        addTotalsTo(totals);
+    }
+
+    /**
+     * adds only the count, sum and max, for readers that don't need the distribution
+     */
+    void addTotalsTo(final long[] totals) {
+        totals[0] += count.get();
+        totals[1] += sum.get();
+        totals[2] = Math.max(totals[2], max.get());
+    }
+
+    static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int mantissa = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * @return the highest value that lands in the given bucket
+     */
+    static long highestValueIn(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
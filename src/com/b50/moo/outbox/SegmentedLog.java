@@ -0,0 +1,329 @@
+package com.b50.moo.outbox;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of byte records kept in memory-mapped segment files, plus a checkpoint marking how much of it
+ * has been consumed. Records are addressed by offset: a segment named after its first offset holds records at
+ * <code>[length][crc32][bytes]</code>, and when the next record won't fit a new segment starts at the offset where
+ * the old one stopped. Segments wholly behind the checkpoint are deleted.
+ * <p/>
+ * Appends are writes into the page cache, so they survive the process dying but not the machine; reopening a
+ * directory drops a torn record at the tail and reads on from the checkpoint. One thread may append (appends are
+ * synchronized) while another reads.
+ */
+public class SegmentedLog {
+    static final int HEADER = 8;
+    private static final String SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String LOCK = "lock";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final MappedByteBuffer checkpointBuffer;
+    private final CRC32 writeCrc = new CRC32();
+    private final List<File> undeleted = new ArrayList<File>();
+    private Segment current;
+    private volatile long writeOffset;
+    private volatile long checkpoint;
+
+    /**
+     * Opens the log in the given directory, creating it if need be.
+     *
+     * @param segmentBytes size of each segment file; a record can be at most this less 8 bytes
+     */
+    public SegmentedLog(final File directory, final int segmentBytes) throws IOException {
+        if (segmentBytes <= HEADER) {
+            throw new IllegalArgumentException("segmentBytes must be more than " + HEADER);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.lockFile = new RandomAccessFile(new File(directory, LOCK), "rw");
+        try {
+            this.lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lockFile.close();
+            throw new IOException(directory + " is already open in this process");
+        }
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException(directory + " is in use by another process");
+        }
+        this.checkpointBuffer = map(new File(directory, CHECKPOINT), 16);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        for (final File file : files) {
+            final String name = file.getName();
+            final long base;
+            try {
+                base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            final int size = file.length() > 0 ? (int) file.length() : segmentBytes;
+            segments.put(base, new Segment(base, file, map(file, size)));
+        }
+        long consumed = checkpointBuffer.getLong(0);
+        if (consumed < 0 || checkpointBuffer.getLong(8) != ~consumed) {
+            //never written, or torn: replaying everything still on disk is the safe choice
+            consumed = segments.isEmpty() ? 0 : segments.firstKey();
+        }
+        if (segments.isEmpty()) {
+            segments.put(consumed, newSegment(consumed));
+        }
+        current = segments.lastEntry().getValue();
+        int position = 0;
+        byte[] record;
+        while ((record = current.read(position)) != null) {
+            position += HEADER + record.length;
+        }
+        //zero whatever a torn append left behind so it can't be mistaken for a record later
+        for (int i = position; i < current.buffer.capacity(); i++) {
+            if (current.buffer.get(i) != 0) {
+                current.buffer.put(i, (byte) 0);
+            }
+        }
+        writeOffset = current.base + position;
+        checkpoint = Math.max(segments.firstKey(), Math.min(consumed, writeOffset));
+        writeCheckpoint(checkpoint);
+        deleteConsumedSegments();
+    }
+
+    /**
+     * @return the record's offset
+     */
+    public synchronized long append(final byte[] record) throws IOException {
+        if (record.length == 0 || record.length > segmentBytes - HEADER) {
+            throw new IllegalArgumentException("records must be 1 to " + (segmentBytes - HEADER) + " bytes");
+        }
+        int position = (int) (writeOffset - current.base);
+        if (position + HEADER + record.length > current.buffer.capacity()) {
+            current = newSegment(writeOffset);
+            segments.put(current.base, current);
+            position = 0;
+        }
+        writeCrc.reset();
+        writeCrc.update(record);
+        final ByteBuffer out = current.buffer.duplicate();
+        out.position(position + 4);
+        out.putInt((int) writeCrc.getValue());
+        out.put(record);
+        //the length goes in last, so a record is never visible before its bytes are
+        current.buffer.putInt(position, record.length);
+        final long offset = writeOffset;
+        writeOffset = offset + HEADER + record.length;
+        return offset;
+    }
+
+    /**
+     * @return the first record at or after offset, or null if nothing has been appended there yet
+     */
+    public Record read(long offset) {
+        while (offset < writeOffset) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                //already consumed and deleted; skip to what's left
+                entry = segments.firstEntry();
+                offset = entry.getKey();
+            }
+            final Segment segment = entry.getValue();
+            final byte[] data = segment.read((int) (offset - segment.base));
+            if (data != null) {
+                return new Record(offset, data, offset + HEADER + data.length);
+            }
+            final Long next = segments.higherKey(segment.base);
+            if (next == null) {
+                return null;
+            }
+            offset = next;
+        }
+        return null;
+    }
+
+    /**
+     * Records everything before offset as consumed and deletes segments that lie wholly behind it.
+     */
+    public synchronized void checkpoint(final long offset) {
+        if (offset <= checkpoint) {
+            return;
+        }
+        checkpoint = Math.min(offset, writeOffset);
+        writeCheckpoint(checkpoint);
+        deleteConsumedSegments();
+    }
+
+    /**
+     * Writes appended records and the checkpoint through to the disk, for surviving more than a process crash.
+     */
+    public synchronized void force() {
+        for (final Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        checkpointBuffer.force();
+    }
+
+    /**
+     * Lets another SegmentedLog open the directory. Nothing more may be appended.
+     */
+    public synchronized void close() {
+        try {
+            lock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the offset the next record will be appended at
+     */
+    public long getWriteOffset() {
+        return writeOffset;
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return bytes appended but not yet checkpointed
+     */
+    public long getUnconsumedBytes() {
+        return writeOffset - checkpoint;
+    }
+
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void writeCheckpoint(final long offset) {
+        checkpointBuffer.putLong(0, offset);
+        checkpointBuffer.putLong(8, ~offset);
+    }
+
+    private void deleteConsumedSegments() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        Long next = segments.higherKey(first.getKey());
+        while (next != null && next <= checkpoint) {
+            segments.remove(first.getKey());
+            undeleted.add(first.getValue().file);
+            first = segments.firstEntry();
+            next = segments.higherKey(first.getKey());
+        }
+        //a mapping can't be released on demand; where the OS won't delete a mapped file it's retried next time
+        for (final Iterator<File> files = undeleted.iterator(); files.hasNext(); ) {
+            final File file = files.next();
+            if (file.delete() || !file.exists()) {
+                files.remove();
+            }
+        }
+    }
+
+    private Segment newSegment(final long base) throws IOException {
+        final File file = new File(directory, String.format("%020d%s", base, SUFFIX));
+        return new Segment(base, file, map(file, segmentBytes));
+    }
+
+    private static MappedByteBuffer map(final File file, final int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            //the mapping stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * A record and the offset of the one after it.
+     */
+    public static class Record {
+        private final long offset;
+        private final byte[] data;
+        private final long next;
+
+        Record(final long offset, final byte[] data, final long next) {
+            this.offset = offset;
+            this.data = data;
+            this.next = next;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public long getNextOffset() {
+            return next;
+        }
+
+        @Override
+        public String toString() {
+            return "Record{offset=" + offset + ", data=" + Arrays.toString(data) + "}";
+        }
+    }
+
+    private static class Segment {
+        final long base;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(final long base, final File file, final MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return the record at position, or null unless a whole one with a matching checksum starts there
+         */
+        byte[] read(final int position) {
+            if (position + HEADER > buffer.capacity()) {
+                return null;
+            }
+            final int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER + length > buffer.capacity()) {
+                return null;
+            }
+            final byte[] data = new byte[length];
+            final ByteBuffer in = buffer.duplicate();
+            in.position(position + HEADER);
+            in.get(data);
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            return (int) crc.getValue() == buffer.getInt(position + 4) ? data : null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.b50.moo.payload;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Keeps each payload as a UTF-8 file in a directory -- typically a mount shared by producers and consumers.
+ * Payloads are written to a temporary name and renamed into place, so a reader never sees a partial file, and
+ * are read back through a memory mapping rather than copied onto the heap.
+ */
+public class FileSystemPayloadStore implements PayloadStore {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".payload";
+
+    private final File directory;
+
+    public FileSystemPayloadStore(final File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("unable to create payload directory " + directory);
+        }
+        this.directory = directory;
+    }
+
+    public String store(final String payload) throws IOException {
+        final String pointer = UUID.randomUUID().toString();
+        final File temporary = new File(directory, pointer + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), UTF8), 65536);
+        try {
+            writer.write(payload);
+        } finally {
+            writer.close();
+        }
+        if (!temporary.renameTo(fileFor(pointer))) {
+            temporary.delete();
+            throw new IOException("unable to move payload into place for " + pointer);
+        }
+        return pointer;
+    }
+
+    public String read(final String pointer) throws IOException {
+        return UTF8.decode(map(pointer)).toString();
+    }
+
+    public Reader open(final String pointer) throws IOException {
+        return new InputStreamReader(new ByteBufferInputStream(map(pointer)), UTF8);
+    }
+
+    public void delete(final String pointer) throws IOException {
+        final File file = fileFor(pointer);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("unable to delete payload " + pointer);
+        }
+    }
+
+    private MappedByteBuffer map(final String pointer) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(fileFor(pointer), "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+    }
+
+    private File fileFor(final String pointer) throws IOException {
+        if (pointer.indexOf('/') >= 0 || pointer.indexOf('\\') >= 0 || pointer.startsWith(".")) {
+            throw new IOException("invalid payload pointer " + pointer);
+        }
+        return new File(directory, pointer + SUFFIX);
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
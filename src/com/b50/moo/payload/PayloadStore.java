@@ -0,0 +1,25 @@
+package com.b50.moo.payload;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Somewhere to keep message bodies too big for SQS. Moo enqueues a small envelope carrying the pointer returned by
+ * {@link #store(String)} and resolves it again on receive. Implementations must be thread-safe; anything reachable
+ * by both producers and consumers will do -- a shared file system, S3, and so on.
+ */
+public interface PayloadStore {
+    /**
+     * @return a pointer from which the payload can later be read
+     */
+    String store(String payload) throws IOException;
+
+    String read(String pointer) throws IOException;
+
+    /**
+     * @return a reader over the payload that doesn't require holding all of it in memory; callers close it
+     */
+    Reader open(String pointer) throws IOException;
+
+    void delete(String pointer) throws IOException;
+}
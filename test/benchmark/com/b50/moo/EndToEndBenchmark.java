@@ -0,0 +1,107 @@
+package com.b50.moo;
+
+import com.b50.moo.local.LocalSQS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages sent through an SQS instance and consumed by a managed consumer, against a LocalSQS that optionally
+ * adds a per-call latency. Producers and consumers run as separate thread groups, so producers keep sending while
+ * messages are in flight instead of waiting for each one to come back: send's score is the rate messages go in,
+ * consume's the rate they come out of a callback. Producers stop at a backlog of MAX_BACKLOG unconsumed messages,
+ * so a consumer that falls behind doesn't fill the heap. Threads are daemons because the send pool outlives stop()
+ * and would keep JMH's forked VM alive.
+ */
+@State(Scope.Group)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+    private static final int MAX_BACKLOG = 10000;
+
+    private static final ExecutionStrategy DAEMON_THREADS = new ExecutionStrategy() {
+        public ExecutorService newExecutor(final String name, final int threads) {
+            final Consumer.NamedThreadFactory factory = new Consumer.NamedThreadFactory(name, true);
+            return threads <= 0 ? Executors.newCachedThreadPool(factory) : Executors.newFixedThreadPool(threads, factory);
+        }
+
+        public boolean isThreadPerTask() {
+            return false;
+        }
+    };
+
+    @Param({"0", "2"})
+    public long latencyMillis;
+
+    @Param({"0", "10"})
+    public long sendLingerMillis;
+
+    private final Semaphore received = new Semaphore(0);
+    private final Semaphore backlog = new Semaphore(MAX_BACKLOG);
+    private SQS sqs;
+    private String payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.payload = Payloads.read("./etc/normal.json");
+        final LocalSQS local = new LocalSQS();
+        local.setLatencyMillis(latencyMillis);
+        this.sqs = new SQS(local, local.createQueueUrl("benchmark"), DAEMON_THREADS);
+        if (sendLingerMillis > 0) {
+            sqs.enableSendBatching(sendLingerMillis);
+        }
+        sqs.startConsuming(new ReceiveCallback() {
+            public void onReceive(String id, String message) {
+                backlog.release();
+                received.release();
+            }
+        }, new ConsumerOptions().withPollers(4).withProcessingThreads(16).withWaitTimeSeconds(1));
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        sqs.stop();
+    }
+
+    /**
+     * waits on the semaphores in short slices so no thread is left blocked once JMH ends the iteration
+     */
+    @Benchmark
+    @Group("pipeline")
+    @GroupThreads(2)
+    public void send(final Control control) throws Exception {
+        while (!control.stopMeasurement) {
+            if (backlog.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                sqs.send(payload);
+                return;
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("pipeline")
+    @GroupThreads(6)
+    public void consume(final Control control) throws InterruptedException {
+        while (!control.stopMeasurement) {
+            if (received.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+}
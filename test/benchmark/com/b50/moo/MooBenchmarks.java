@@ -0,0 +1,40 @@
+package com.b50.moo;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the JMH benchmarks twice: once for ops/s and once sampling the time per operation for its percentiles. Both
+ * runs include the GC profiler, which reports the allocation rate and bytes allocated per operation. Results are
+ * also written as JSON so runs can be compared.
+ * <p/>
+ * Run with <code>ant benchmark</code>; <code>-Djmh.include=regex</code> picks benchmarks.
+ */
+public class MooBenchmarks {
+
+    public static void main(String[] args) throws RunnerException {
+        final String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        final File resultDir = new File(args.length > 1 ? args[1] : ".");
+        resultDir.mkdirs();
+        run(include, Mode.Throughput, TimeUnit.SECONDS, new File(resultDir, "throughput.json"));
+        run(include, Mode.SampleTime, TimeUnit.MICROSECONDS, new File(resultDir, "latency.json"));
+    }
+
+    private static void run(String include, Mode mode, TimeUnit unit, File result) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(include)
+                .mode(mode)
+                .timeUnit(unit)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath())
+                .build()).run();
+    }
+}
@@ -0,0 +1,32 @@
+package com.b50.moo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Reads the sample payloads in etc/ that the benchmarks are parameterized with.
+ */
+public class Payloads {
+
+    private Payloads() {
+    }
+
+    public static String read(final String file) throws IOException {
+        final Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(file)), "UTF-8"));
+        try {
+            final StringBuilder builder = new StringBuilder();
+            final char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) > 0) {
+                builder.append(buffer, 0, read);
+            }
+            return builder.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
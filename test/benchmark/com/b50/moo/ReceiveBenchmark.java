@@ -0,0 +1,63 @@
+package com.b50.moo;
+
+import com.b50.moo.codec.EnvelopeCodec;
+import com.b50.moo.codec.EnvelopeCodecs;
+import com.b50.moo.local.LocalSQS;
+import com.b50.sqs.MessageReceivedCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+
+/**
+ * What a receive costs before the callback's own work: decoding the envelope in the callback wrapper and recording
+ * the message's time in queue.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveBenchmark {
+
+    @Param({"./etc/normal.json", "./etc/json.json", "./etc/xml.json", "./etc/256kb-text.txt"})
+    public String payloadFile;
+
+    @Param({"JSON", "COMPACT"})
+    public String codec;
+
+    private SQS sqs;
+    private MessageReceivedCallback wrapper;
+    private String body;
+    private String received;
+
+    @Setup
+    public void setUp() throws IOException {
+        final LocalSQS local = new LocalSQS();
+        this.sqs = new SQS(local, local.createQueueUrl("benchmark"));
+        this.wrapper = sqs.wrap(new ReceiveCallback() {
+            public void onReceive(String id, String message) {
+                received = message;
+            }
+        });
+        final EnvelopeCodec envelopeCodec = "COMPACT".equals(codec) ? EnvelopeCodecs.COMPACT : EnvelopeCodecs.JSON;
+        this.body = envelopeCodec.encode(Payloads.read(payloadFile), System.currentTimeMillis());
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        sqs.stop();
+    }
+
+    @Benchmark
+    public String decode() {
+        wrapper.onReceive("id", body);
+        return received;
+    }
+}
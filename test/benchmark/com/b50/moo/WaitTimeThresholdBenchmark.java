@@ -0,0 +1,59 @@
+package com.b50.moo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatching one wait time to a queue's QueueWaitTimeCallbacks, half of which it exceeds. Callbacks run inline so
+ * only the lookup and claiming are measured, with and without a minimum interval between firings.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaitTimeThresholdBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int callbacks;
+
+    @Param({"0", "1000"})
+    public long minIntervalMillis;
+
+    private final AtomicLong fired = new AtomicLong();
+    private WaitTimeThresholds thresholds;
+    private long waitTime;
+
+    @Setup
+    public void setUp() {
+        this.thresholds = new WaitTimeThresholds();
+        this.thresholds.setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        final QueueWaitTimeCallback callback = new QueueWaitTimeCallback() {
+            public void onThresholdExceeded(long actualWaitTime) {
+                fired.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < callbacks; i++) {
+            thresholds.add(i * 10L, callback, minIntervalMillis);
+        }
+        this.waitTime = callbacks * 5L;
+    }
+
+    @Benchmark
+    public long fire() {
+        thresholds.fire(waitTime);
+        return fired.get();
+    }
+}
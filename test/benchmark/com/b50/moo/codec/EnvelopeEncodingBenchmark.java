@@ -0,0 +1,67 @@
+package com.b50.moo.codec;
+
+import com.b50.moo.Payloads;
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+
+/**
+ * Per-send cost of wrapping a message in its envelope: the original encoding (a new ObjectMapper per message)
+ * against the shared JsonEnvelopeWriter and the compact codec, for each sample payload in etc/.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeEncodingBenchmark {
+
+    @Param({"./etc/normal.json", "./etc/json.json", "./etc/xml.json", "./etc/256kb-text.txt"})
+    public String payloadFile;
+
+    private String payload;
+    private long timestamp;
+    private JsonEnvelopeWriter writer;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.payload = Payloads.read(payloadFile);
+        this.timestamp = System.currentTimeMillis();
+        this.writer = new JsonEnvelopeWriter();
+    }
+
+    @Benchmark
+    public String objectMapperPerSend() throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        mapper.setVisibilityChecker(mapper.getVisibilityChecker().withFieldVisibility(JsonAutoDetect.Visibility.ANY));
+        return mapper.writeValueAsString(new LegacyMessage(payload, timestamp));
+    }
+
+    @Benchmark
+    public String jsonEnvelopeWriter() throws IOException {
+        return writer.write(payload, timestamp);
+    }
+
+    @Benchmark
+    public String compactCodec() throws IOException {
+        return EnvelopeCodecs.COMPACT.encode(payload, timestamp);
+    }
+
+    private static class LegacyMessage {
+        String msg;
+        String ts;
+
+        LegacyMessage(final String message, final long timestamp) {
+            this.msg = message;
+            this.ts = Long.toString(timestamp);
+        }
+    }
+}
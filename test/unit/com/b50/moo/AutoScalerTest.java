@@ -0,0 +1,83 @@
+package com.b50.moo;
+
+import com.b50.moo.metrics.QueueMetrics;
+import com.b50.moo.metrics.QueueMetricsRecorder;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.*;
+
+public class AutoScalerTest {
+
+    @Test
+    public void testGrowsMultiplicativelyWhenOverTarget() throws Exception {
+        Consumer consumer = consumer(4);
+        AutoScaler scaler = new AutoScaler(consumer, new ConsumerOptions().withPollers(2).withProcessingThreads(4),
+                new AutoScalingOptions().withTargetWaitMillis(1000).withProcessingThreads(1, 20));
+        scaler.evaluate(waits(5000), 0);
+        verify(consumer).resize(6, 3);
+    }
+
+    @Test
+    public void testShrinksOneThreadAtATimeAfterCooldown() throws Exception {
+        Consumer consumer = consumer(4);
+        AutoScaler scaler = new AutoScaler(consumer, new ConsumerOptions().withPollers(1).withProcessingThreads(4),
+                new AutoScalingOptions().withTargetWaitMillis(1000).withCooldowns(1000, 60000));
+        scaler.evaluate(waits(10), 0);
+        verify(consumer).resize(3, 1);
+        scaler.evaluate(waits(10), 30000);
+        verify(consumer, times(1)).resize(anyInt(), anyInt());
+        scaler.evaluate(waits(10), 60000);
+        verify(consumer, times(2)).resize(anyInt(), anyInt());
+    }
+
+    @Test
+    public void testHoldsSteadyInsideTheBand() throws Exception {
+        Consumer consumer = consumer(4);
+        AutoScaler scaler = new AutoScaler(consumer, new ConsumerOptions(),
+                new AutoScalingOptions().withTargetWaitMillis(1000));
+        scaler.evaluate(waits(800), 0);
+        verify(consumer, never()).resize(anyInt(), anyInt());
+    }
+
+    @Test
+    public void testScaleUpCooldownSuppressesGrowth() throws Exception {
+        Consumer consumer = consumer(4);
+        AutoScaler scaler = new AutoScaler(consumer, new ConsumerOptions(),
+                new AutoScalingOptions().withTargetWaitMillis(1000).withCooldowns(10000, 60000));
+        scaler.evaluate(waits(5000), 0);
+        scaler.evaluate(waits(5000), 5000);
+        verify(consumer, times(1)).resize(anyInt(), anyInt());
+    }
+
+    @Test
+    public void testCallbackFiresAtTheBounds() throws Exception {
+        ScalingCallback callback = mock(ScalingCallback.class);
+        AutoScalingOptions options = new AutoScalingOptions().withTargetWaitMillis(1000).withProcessingThreads(2, 4)
+                .withScalingCallback(callback);
+        Consumer atMax = consumer(4);
+        new AutoScaler(atMax, new ConsumerOptions(), options).evaluate(waits(5000), 0);
+        verify(atMax, never()).resize(anyInt(), anyInt());
+        verify(callback).onCeilingReached(any(QueueMetrics.class));
+
+        Consumer atMin = consumer(2);
+        new AutoScaler(atMin, new ConsumerOptions(), options).evaluate(waits(10), 0);
+        verify(atMin, never()).resize(anyInt(), anyInt());
+        verify(callback).onFloorReached(any(QueueMetrics.class));
+    }
+
+    private Consumer consumer(int processingThreads) {
+        Consumer consumer = mock(Consumer.class);
+        when(consumer.getProcessingThreads()).thenReturn(processingThreads);
+        return consumer;
+    }
+
+    private QueueMetrics waits(long wait) {
+        QueueMetricsRecorder recorder = new QueueMetricsRecorder();
+        for (int i = 0; i < 100; i++) {
+            recorder.record(wait);
+        }
+        return recorder.snapshot();
+    }
+}
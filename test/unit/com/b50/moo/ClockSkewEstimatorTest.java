@@ -0,0 +1,119 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.b50.moo.codec.Envelope;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class ClockSkewEstimatorTest {
+
+    @Test
+    public void testProducerClockIgnoresAttributes() throws Exception {
+        ClockSkewEstimator estimator = new ClockSkewEstimator();
+        long wait = estimator.waitTime(WaitTimeSource.PRODUCER_CLOCK, 1000, attributes("producer", 5000, 5000, 1), 1500);
+        assertEquals(500, wait);
+        assertEquals(ClockSkewEstimator.UNKNOWN,
+                estimator.waitTime(WaitTimeSource.PRODUCER_CLOCK, Envelope.NO_TIMESTAMP, attributes("producer", 5000, 5000, 1), 1500));
+    }
+
+    @Test
+    public void testSentTimestampCorrectsForTheReceiversClock() throws Exception {
+        ClockSkewEstimator estimator = new ClockSkewEstimator();
+        //our clock runs 2 seconds ahead of SQS; the message was sent at 10000 and first received at 10700 (SQS time)
+        long wait = estimator.waitTime(WaitTimeSource.SENT_TIMESTAMP, Envelope.NO_TIMESTAMP,
+                attributes("producer", 10000, 10700, 1), 12710);
+        assertEquals(2010, estimator.consumerSkew());
+        assertEquals(700, wait);
+    }
+
+    @Test
+    public void testSkewCorrectedUsesEachProducersOffset() throws Exception {
+        ClockSkewEstimator estimator = new ClockSkewEstimator();
+        //fast producer is 60 seconds ahead, slow producer 30 seconds behind; both take 5ms to reach SQS
+        estimator.waitTime(WaitTimeSource.SKEW_CORRECTED, 60995, attributes("fast", 1000, 1000, 1), 1000);
+        estimator.waitTime(WaitTimeSource.SKEW_CORRECTED, -29005 + 100000, attributes("slow", 100000, 100000, 1), 100000);
+        assertEquals(59995, estimator.producerSkew("fast"));
+        assertEquals(-29005, estimator.producerSkew("slow"));
+
+        //a message stamped by the fast producer 10 seconds before we received it
+        long wait = estimator.waitTime(WaitTimeSource.SKEW_CORRECTED, 200000 + 59995, attributes("fast", 200005, 209000, 1), 210000);
+        assertEquals(10000, wait);
+    }
+
+    @Test
+    public void testEstimatesFollowDrift() throws Exception {
+        ClockSkewEstimator estimator = new ClockSkewEstimator(1000);
+        estimator.waitTime(WaitTimeSource.SKEW_CORRECTED, 5000, attributes("p", 0, 0, 1), 0);
+        assertEquals(5000, estimator.producerSkew("p"));
+        estimator.waitTime(WaitTimeSource.SKEW_CORRECTED, 1000 + 2000, attributes("p", 1000, 1000, 1), 1000);
+        estimator.waitTime(WaitTimeSource.SKEW_CORRECTED, 2000 + 2000, attributes("p", 2000, 2000, 1), 2000);
+        assertEquals("old samples should age out", 2000, estimator.producerSkew("p"));
+    }
+
+    @Test
+    public void testFetchRequestsSystemAttributes() throws Exception {
+        AmazonSQSClient mockClient = mock(AmazonSQSClient.class);
+        when(mockClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult());
+        SQS sqs = new SQS(mockClient, "URL");
+        sqs.fetch(10, 0);
+        sqs.setWaitTimeSource(WaitTimeSource.SENT_TIMESTAMP);
+        sqs.fetch(10, 0);
+
+        ArgumentCaptor<ReceiveMessageRequest> requests = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(mockClient, times(2)).receiveMessage(requests.capture());
+        assertTrue(!requests.getAllValues().get(0).getAttributeNames().contains("SentTimestamp"));
+        assertTrue(requests.getAllValues().get(1).getAttributeNames().contains("SentTimestamp"));
+    }
+
+    @Test
+    public void testReceivedMessageIsMeasuredAgainstSentTimestamp() throws Exception {
+        long now = System.currentTimeMillis();
+        //the sender's clock is a day off, SQS's isn't
+        Message message = new Message().withMessageId("1").withReceiptHandle("handle")
+                .withBody("{\"msg\":\"1,2,3\",\"ts\":\"" + (now - 86400000) + "\"}")
+                .withAttributes(attributes("producer", now - 3000, now - 3000, 2));
+        AmazonSQSClient mockClient = mock(AmazonSQSClient.class);
+        when(mockClient.receiveMessage(any(ReceiveMessageRequest.class)))
+                .thenReturn(new ReceiveMessageResult().withMessages(message));
+        when(mockClient.deleteMessageBatch(anyString(), anyListOf(DeleteMessageBatchRequestEntry.class)))
+                .thenReturn(new DeleteMessageBatchResult());
+        SQS sqs = new SQS(mockClient, "URL");
+        sqs.setWaitTimeSource(WaitTimeSource.SENT_TIMESTAMP);
+        final CountDownLatch latch = new CountDownLatch(1);
+        sqs.receive(new ReceiveCallback() {
+            public void onReceive(String id, String message) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        long p50 = sqs.getQueueMetrics().getP50();
+        assertTrue("wait was " + p50, p50 >= 2800 && p50 < 3500);
+    }
+
+    private Map<String, String> attributes(String sender, long sent, long firstReceive, int receiveCount) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("SenderId", sender);
+        attributes.put("SentTimestamp", Long.toString(sent));
+        attributes.put("ApproximateFirstReceiveTimestamp", Long.toString(firstReceive));
+        attributes.put("ApproximateReceiveCount", Integer.toString(receiveCount));
+        return attributes;
+    }
+}
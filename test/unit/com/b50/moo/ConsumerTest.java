@@ -0,0 +1,170 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.b50.moo.local.LocalSQS;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ConsumerTest {
+    @Captor
+    private ArgumentCaptor<List<DeleteMessageBatchRequestEntry>> entries;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void testEveryPollerKeepsALongPollInFlight() throws Exception {
+        final AtomicInteger polling = new AtomicInteger();
+        final AtomicInteger mostPolling = new AtomicInteger();
+        LocalSQS local = new LocalSQS() {
+            @Override
+            public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+                int now = polling.incrementAndGet();
+                while (now > mostPolling.get() && !mostPolling.compareAndSet(mostPolling.get(), now)) {
+                }
+                try {
+                    return super.receiveMessage(request);
+                } finally {
+                    polling.decrementAndGet();
+                }
+            }
+        };
+        SQS sqs = new SQS(local, local.createQueueUrl("test"));
+        //room for 20 messages, which used to be only two full batches
+        sqs.startConsuming(mock(ReceiveCallback.class), new ConsumerOptions().withPollers(4).withWaitTimeSeconds(1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mostPolling.get() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        sqs.stop();
+        assertEquals(4, mostPolling.get());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConsumerProcessesEveryMessageAndDeletesIt() throws Exception {
+        AmazonSQSClient mockClient = mock(AmazonSQSClient.class);
+        when(mockClient.receiveMessage(any(ReceiveMessageRequest.class)))
+                .thenReturn(new ReceiveMessageResult().withMessages(getMessage("1"), getMessage("2"), getMessage("3")))
+                .thenReturn(new ReceiveMessageResult());
+        when(mockClient.deleteMessageBatch(anyString(), anyListOf(DeleteMessageBatchRequestEntry.class)))
+                .thenReturn(new DeleteMessageBatchResult());
+
+        SQS sqs = new SQS(mockClient, "URL");
+        final CountDownLatch latch = new CountDownLatch(3);
+        sqs.startConsuming(new ReceiveCallback() {
+            @Override
+            public void onReceive(String id, String message) {
+                assertEquals("1,2,3", message);
+                latch.countDown();
+            }
+        }, new ConsumerOptions().withPollers(2).withProcessingThreads(2).withWaitTimeSeconds(0));
+
+        assertTrue("not all messages were processed", latch.await(5, TimeUnit.SECONDS));
+        sqs.stop();
+        verify(mockClient, atLeastOnce()).deleteMessageBatch(eq("URL"), entries.capture());
+        int deleted = 0;
+        for (List<DeleteMessageBatchRequestEntry> batch : entries.getAllValues()) {
+            deleted += batch.size();
+        }
+        assertEquals("every message should be deleted", 3, deleted);
+    }
+
+    @Test
+    public void testConsumerStopsPollingWhenProcessingIsSaturated() throws Exception {
+        AmazonSQSClient mockClient = mock(AmazonSQSClient.class);
+        when(mockClient.receiveMessage(any(ReceiveMessageRequest.class)))
+                .thenReturn(new ReceiveMessageResult().withMessages(getMessage("1")));
+
+        SQS sqs = new SQS(mockClient, "URL");
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        sqs.startConsuming(new ReceiveCallback() {
+            @Override
+            public void onReceive(String id, String message) {
+                received.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, new ConsumerOptions().withPollers(3).withProcessingThreads(1).withBufferedMessages(0).withWaitTimeSeconds(0));
+
+        Thread.sleep(500);
+        assertEquals("only one message should be in flight", 1, received.get());
+        verify(mockClient, times(1)).receiveMessage(any(ReceiveMessageRequest.class));
+        release.countDown();
+        sqs.stop();
+    }
+
+    @Test
+    public void testResizeAddsProcessingCapacity() throws Exception {
+        AmazonSQSClient mockClient = mock(AmazonSQSClient.class);
+        when(mockClient.receiveMessage(any(ReceiveMessageRequest.class)))
+                .thenReturn(new ReceiveMessageResult().withMessages(getMessage("1")));
+        when(mockClient.deleteMessageBatch(anyString(), anyListOf(DeleteMessageBatchRequestEntry.class)))
+                .thenReturn(new DeleteMessageBatchResult());
+
+        SQS sqs = new SQS(mockClient, "URL");
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger inFlight = new AtomicInteger();
+        ConsumerOptions options = new ConsumerOptions().withPollers(1).withProcessingThreads(1)
+                .withBufferedMessages(0).withWaitTimeSeconds(0);
+        Consumer consumer = new Consumer(sqs, new ReceiveCallback() {
+            @Override
+            public void onReceive(String id, String message) {
+                inFlight.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, options);
+        consumer.start();
+        Thread.sleep(300);
+        assertEquals(1, inFlight.get());
+
+        consumer.resize(3, 2);
+        Thread.sleep(300);
+        assertTrue("more callbacks should be running", inFlight.get() > 1);
+        assertEquals(3, consumer.getProcessingThreads());
+        release.countDown();
+        consumer.stop();
+        sqs.stop();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConsumingRequiresClient() throws Exception {
+        SQS sqs = new SQS(mock(com.b50.sqs.SQSAdapter.class));
+        sqs.startConsuming(mock(ReceiveCallback.class), new ConsumerOptions());
+    }
+
+    private Message getMessage(String id) {
+        return new Message().withBody("{\"msg\":\"1,2,3\",\"ts\":\"1381172826511\"}").withMessageId(id).withReceiptHandle("handle-" + id);
+    }
+}
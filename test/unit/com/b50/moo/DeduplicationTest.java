@@ -0,0 +1,142 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.b50.moo.codec.EnvelopeCodecs;
+import com.b50.moo.local.LocalSQS;
+import com.b50.moo.local.ManualClock;
+import com.b50.moo.metrics.QueueMetrics;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DeduplicationTest {
+    private ManualClock clock;
+    private LocalSQS local;
+    private String url;
+    private SQS sqs;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+        local = new LocalSQS(clock);
+        url = local.createQueueUrl("test");
+        sqs = new SQS(local, url);
+    }
+
+    @Test
+    public void testRedeliveryIsDeletedWithoutInvokingTheCallback() throws Exception {
+        sqs.enableDeduplication(1000, 60000);
+        send("1,2,3");
+        Message first = receiveOne();
+        clock.advanceSeconds(31);
+        Message redelivered = receiveOne();
+        assertEquals(first.getMessageId(), redelivered.getMessageId());
+        send("4,5,6");
+        Message other = receiveOne();
+
+        CountingCallback callback = new CountingCallback();
+        //its receipt handle went stale when the message was redelivered, so deleting it fails
+        sqs.process(first, sqs.wrap(callback));
+        sqs.process(redelivered, sqs.wrap(callback));
+        sqs.process(other, sqs.wrap(callback));
+        sqs.flush();
+
+        assertEquals(2, callback.count.get());
+        clock.advanceSeconds(60);
+        assertEquals("the duplicate is deleted too", 0, sqs.fetch(10, 0).size());
+        QueueMetrics metrics = sqs.getQueueMetrics();
+        assertEquals(1, metrics.getDuplicateCount());
+        assertEquals(1.0 / 3, metrics.getDuplicateRate(), 0.0001);
+    }
+
+    @Test
+    public void testFailedMessageIsStillRedelivered() throws Exception {
+        sqs.enableDeduplication(1000, 60000);
+        final AtomicInteger calls = new AtomicInteger();
+        ReceiveCallback failsOnce = new ReceiveCallback() {
+            public void onReceive(String id, String message) {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("boom");
+                }
+            }
+        };
+        send("1,2,3");
+        try {
+            sqs.process(receiveOne(), sqs.wrap(failsOnce));
+            fail("the failure should propagate");
+        } catch (IllegalStateException expected) {
+            //left for SQS to redeliver
+        }
+        clock.advanceSeconds(31);
+        sqs.process(receiveOne(), sqs.wrap(failsOnce));
+        assertEquals(2, calls.get());
+        assertEquals(0, sqs.getQueueMetrics().getDuplicateCount());
+    }
+
+    @Test
+    public void testCustomKeyCatchesProducerDuplicates() throws Exception {
+        sqs.enableDeduplication(1000, 60000, new DeduplicationKeyExtractor() {
+            public String keyOf(String body, Map<String, String> attributes) {
+                return body;
+            }
+        });
+        send("1,2,3");
+        send("1,2,3");
+        CountingCallback callback = new CountingCallback();
+        for (Message message : sqs.fetch(10, 0)) {
+            sqs.process(message, sqs.wrap(callback));
+        }
+        sqs.flush();
+        assertEquals("same body under a new id", 1, callback.count.get());
+        clock.advanceSeconds(60);
+        assertEquals(0, sqs.fetch(10, 0).size());
+    }
+
+    @Test
+    public void testOnlyAckedMessagesAreRemembered() throws Exception {
+        sqs.enableDeduplication(1000, 60000);
+        final AtomicInteger calls = new AtomicInteger();
+        AcknowledgingReceiveCallback nacksThenAcks = new AcknowledgingReceiveCallback() {
+            public void onReceive(MessageHandle message) {
+                if (calls.incrementAndGet() == 1) {
+                    message.nack(0);
+                } else {
+                    message.ack();
+                }
+            }
+
+            public void onReceive(String id, String message) {
+            }
+        };
+        send("1,2,3");
+        Message nacked = receiveOne();
+        sqs.process(nacked, sqs.wrap(nacksThenAcks));
+        sqs.process(receiveOne(), sqs.wrap(nacksThenAcks));
+        sqs.process(nacked, sqs.wrap(nacksThenAcks));
+        assertEquals(2, calls.get());
+    }
+
+    private void send(String body) throws Exception {
+        local.sendMessage(url, EnvelopeCodecs.JSON.encode(body, clock.now()));
+    }
+
+    private Message receiveOne() {
+        List<Message> received = sqs.fetch(1, 0);
+        assertEquals(1, received.size());
+        return received.get(0);
+    }
+
+    private static class CountingCallback implements ReceiveCallback {
+        final AtomicInteger count = new AtomicInteger();
+
+        public void onReceive(String id, String message) {
+            count.incrementAndGet();
+        }
+    }
+}
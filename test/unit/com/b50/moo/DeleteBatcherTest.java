@@ -0,0 +1,113 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class DeleteBatcherTest {
+    private ScheduledExecutorService scheduler;
+    @Captor
+    private ArgumentCaptor<List<DeleteMessageBatchRequestEntry>> entries;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFullBatchesGoOutImmediatelyAndRemainderAfterLinger() throws Exception {
+        AmazonSQS mockClient = mock(AmazonSQS.class);
+        when(mockClient.deleteMessageBatch(eq("URL"), anyListOf(DeleteMessageBatchRequestEntry.class)))
+                .thenReturn(new DeleteMessageBatchResult());
+        DeleteBatcher batcher = new DeleteBatcher(mockClient, "URL", scheduler, 100);
+
+        for (int i = 0; i < 25; i++) {
+            batcher.delete("handle-" + i);
+        }
+        verify(mockClient, times(2)).deleteMessageBatch(eq("URL"), anyListOf(DeleteMessageBatchRequestEntry.class));
+
+        Thread.sleep(500);
+        verify(mockClient, times(3)).deleteMessageBatch(eq("URL"), entries.capture());
+        assertEquals(10, entries.getAllValues().get(0).size());
+        assertEquals(10, entries.getAllValues().get(1).size());
+        assertEquals(5, entries.getAllValues().get(2).size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailedEntriesAreRetriedUnlessSenderFault() throws Exception {
+        AmazonSQS mockClient = mock(AmazonSQS.class);
+        when(mockClient.deleteMessageBatch(eq("URL"), anyListOf(DeleteMessageBatchRequestEntry.class)))
+                .thenReturn(new DeleteMessageBatchResult().withFailed(
+                        new BatchResultErrorEntry().withId("0").withSenderFault(false).withCode("InternalError"),
+                        new BatchResultErrorEntry().withId("1").withSenderFault(true).withCode("ReceiptHandleIsInvalid")))
+                .thenReturn(new DeleteMessageBatchResult());
+        DeleteBatcher batcher = new DeleteBatcher(mockClient, "URL", scheduler, 50);
+
+        batcher.delete("retry-me");
+        batcher.delete("give-up");
+        batcher.flush();
+        Thread.sleep(500);
+
+        verify(mockClient, times(2)).deleteMessageBatch(eq("URL"), entries.capture());
+        List<DeleteMessageBatchRequestEntry> retried = entries.getAllValues().get(1);
+        assertEquals(1, retried.size());
+        assertEquals("retry-me", retried.get(0).getReceiptHandle());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOnDeletedRunsOnlyForConfirmedHandles() throws Exception {
+        AmazonSQS mockClient = mock(AmazonSQS.class);
+        when(mockClient.deleteMessageBatch(eq("URL"), anyListOf(DeleteMessageBatchRequestEntry.class)))
+                .thenReturn(new DeleteMessageBatchResult().withFailed(
+                        new BatchResultErrorEntry().withId("1").withSenderFault(true).withCode("ReceiptHandleIsInvalid")));
+        DeleteBatcher batcher = new DeleteBatcher(mockClient, "URL", scheduler, 50);
+
+        final List<String> deleted = new CopyOnWriteArrayList<String>();
+        batcher.delete("ok", new Recorder(deleted, "ok"));
+        batcher.delete("stale", new Recorder(deleted, "stale"));
+        batcher.flush();
+
+        assertEquals(Collections.singletonList("ok"), deleted);
+    }
+
+    private static class Recorder implements Runnable {
+        private final List<String> deleted;
+        private final String handle;
+
+        private Recorder(List<String> deleted, String handle) {
+            this.deleted = deleted;
+            this.handle = handle;
+        }
+
+        public void run() {
+            deleted.add(handle);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.b50.moo;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+
+    @Test
+    public void testAddedKeysAreFoundAndOthersAreNot() {
+        DuplicateFilter filter = new DuplicateFilter(10000, 60000);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("message-" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.contains("message-" + i));
+            assertFalse(filter.contains("other-" + i));
+        }
+    }
+
+    @Test
+    public void testKeysOutliveOneWindowButNotTwo() {
+        DuplicateFilter filter = new DuplicateFilter(100, 1000);
+        long now = System.currentTimeMillis();
+        filter.add("early", now);
+        assertTrue(filter.contains("early", now + 1500));
+        filter.add("later", now + 1500);
+        assertFalse(filter.contains("early", now + 2500));
+        assertTrue(filter.contains("later", now + 2500));
+    }
+
+    @Test
+    public void testIdleFilterForgetsEverything() {
+        DuplicateFilter filter = new DuplicateFilter(100, 1000);
+        long now = System.currentTimeMillis();
+        filter.add("key", now);
+        assertFalse(filter.contains("key", now + 5000));
+    }
+
+    @Test
+    public void testFullGenerationRotatesEarly() {
+        DuplicateFilter filter = new DuplicateFilter(100, 60000);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 250; i++) {
+            filter.add("key-" + i, now);
+        }
+        assertFalse("two generations back", filter.contains("key-0", now));
+        for (int i = 100; i < 250; i++) {
+            assertTrue(filter.contains("key-" + i, now));
+        }
+    }
+
+    @Test
+    public void testConcurrentAddsAreAllKept() throws Exception {
+        final DuplicateFilter filter = new DuplicateFilter(40000, 60000);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        filter.add(offset + "-" + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            for (int i = 0; i < 10000; i++) {
+                assertTrue(filter.contains(t + "-" + i));
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class ExecutionStrategiesTest {
+
+    @Test
+    public void testVirtualThreadsFallBackToPlatformWhereUnsupported() throws Exception {
+        ExecutionStrategy strategy = ExecutionStrategies.virtualThreads();
+        assertEquals(ExecutionStrategies.isVirtualThreadsSupported(), strategy.isThreadPerTask());
+        if (!ExecutionStrategies.isVirtualThreadsSupported()) {
+            assertTrue(strategy == ExecutionStrategies.PLATFORM);
+        }
+    }
+
+    @Test
+    public void testExecutorsRunManyBlockedTasksAtOnce() throws Exception {
+        ExecutorService executor = ExecutionStrategies.virtualThreads().newExecutor("test", 0);
+        final CountDownLatch started = new CountDownLatch(200);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 200; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSendRunsOnTheConfiguredStrategy() throws Exception {
+        AmazonSQSClient mockClient = mock(AmazonSQSClient.class);
+        when(mockClient.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult().withMessageId("42"));
+        final String[] thread = new String[1];
+        final CountDownLatch sent = new CountDownLatch(1);
+        SQS sqs = new SQS(mockClient, "URL", ExecutionStrategies.PLATFORM);
+        sqs.send("hello", new SendCallback() {
+            public void onSend(String messageId) {
+                assertEquals("42", messageId);
+                thread[0] = Thread.currentThread().getName();
+                sent.countDown();
+            }
+        });
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertTrue(thread[0], thread[0].startsWith("moo-worker-"));
+    }
+}
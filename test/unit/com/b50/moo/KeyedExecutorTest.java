@@ -0,0 +1,145 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.b50.moo.local.LocalSQS;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class KeyedExecutorTest {
+
+    @Test
+    public void testSameKeyRunsInOrderOneAtATime() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        KeyedExecutor lanes = new KeyedExecutor(pool, 8);
+        final Map<String, List<Integer>> seen = new HashMap<String, List<Integer>>();
+        final AtomicInteger overlapping = new AtomicInteger();
+        final Map<String, AtomicInteger> running = new HashMap<String, AtomicInteger>();
+        final String[] keys = {"a", "b", "c"};
+        for (String key : keys) {
+            seen.put(key, Collections.synchronizedList(new ArrayList<Integer>()));
+            running.put(key, new AtomicInteger());
+        }
+        for (int i = 0; i < 300; i++) {
+            final String key = keys[i % keys.length];
+            final int sequence = i;
+            lanes.execute(key, new Runnable() {
+                public void run() {
+                    if (running.get(key).incrementAndGet() > 1) {
+                        overlapping.incrementAndGet();
+                    }
+                    seen.get(key).add(sequence);
+                    running.get(key).decrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, overlapping.get());
+        for (String key : keys) {
+            List<Integer> sequences = seen.get(key);
+            assertEquals(100, sequences.size());
+            for (int i = 1; i < sequences.size(); i++) {
+                assertTrue(sequences.get(i - 1) < sequences.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionedReceiveRunsDifferentKeysInParallel() throws Exception {
+        AmazonSQSClient mockClient = mock(AmazonSQSClient.class);
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 4; i++) {
+            messages.add(new Message().withMessageId(Integer.toString(i)).withReceiptHandle("handle-" + i)
+                    .withBody("{\"msg\":\"" + i + "\",\"ts\":\"1381172826511\"}")
+                    .addMessageAttributesEntry("customer", new MessageAttributeValue().withDataType("String")
+                            .withStringValue(i < 2 ? "acme" : "initech")));
+        }
+        when(mockClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult().withMessages(messages));
+        when(mockClient.deleteMessageBatch(anyString(), anyListOf(DeleteMessageBatchRequestEntry.class)))
+                .thenReturn(new DeleteMessageBatchResult());
+
+        SQS sqs = new SQS(mockClient, "URL");
+        final CountDownLatch bothKeysStarted = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        sqs.receive(new ReceiveCallback() {
+            public void onReceive(String id, String message) {
+                if (message.equals("0") || message.equals("2")) {
+                    bothKeysStarted.countDown();
+                    try {
+                        bothKeysStarted.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                order.add(message);
+                done.countDown();
+            }
+        }, new PartitionKeyExtractor() {
+            public String keyOf(String body, Map<String, String> attributes) {
+                return attributes.get("customer");
+            }
+        });
+        assertTrue("different keys should run in parallel", done.await(5, TimeUnit.SECONDS));
+        assertTrue(order.indexOf("0") < order.indexOf("1"));
+        assertTrue(order.indexOf("2") < order.indexOf("3"));
+        sqs.stop();
+    }
+
+    @Test
+    public void testTypedConsumerBindsTheMessageDecodedForItsKey() throws Exception {
+        LocalSQS local = new LocalSQS();
+        SQS sqs = new SQS(local, local.createQueueUrl("test"));
+        for (int i = 0; i < 4; i++) {
+            SQSTest.Order order = new SQSTest.Order();
+            order.id = i < 2 ? "acme" : "initech";
+            order.quantity = i;
+            sqs.send(order);
+        }
+        final Map<String, List<Integer>> quantities = new HashMap<String, List<Integer>>();
+        final CountDownLatch done = new CountDownLatch(4);
+        sqs.startConsuming(SQSTest.Order.class, new TypedReceiveCallback<SQSTest.Order>() {
+            public void onReceive(String id, SQSTest.Order message) {
+                synchronized (quantities) {
+                    if (!quantities.containsKey(message.id)) {
+                        quantities.put(message.id, new ArrayList<Integer>());
+                    }
+                    quantities.get(message.id).add(message.quantity);
+                }
+                done.countDown();
+            }
+        }, new ConsumerOptions().withProcessingThreads(2).withWaitTimeSeconds(1).withPartitionKey(
+                new PartitionKeyExtractor() {
+                    public String keyOf(String body, Map<String, String> attributes) {
+                        return body.contains("acme") ? "acme" : "initech";
+                    }
+                }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        sqs.stop();
+        assertEquals(2, quantities.get("acme").size());
+        assertEquals(2, quantities.get("initech").size());
+    }
+}
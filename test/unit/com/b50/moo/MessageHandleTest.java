@@ -0,0 +1,166 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.b50.moo.codec.EnvelopeCodecs;
+import com.b50.moo.local.LocalSQS;
+import com.b50.moo.local.ManualClock;
+import com.b50.sqs.SQSAdapter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class MessageHandleTest {
+    private ManualClock clock;
+    private LocalSQS local;
+    private String url;
+    private SQS sqs;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+        local = new LocalSQS(clock);
+        url = local.createQueueUrl("test");
+        sqs = new SQS(local, url);
+    }
+
+    @Test
+    public void testAckDeletesInABatch() throws Exception {
+        send("1,2,3");
+        sqs.process(receiveOne(), sqs.wrap(new AcknowledgingReceiveCallback() {
+            public void onReceive(MessageHandle message) {
+                assertEquals("1,2,3", message.getBody());
+                assertTrue(message.ack());
+                assertFalse("only the first resolution counts", message.nack());
+            }
+
+            public void onReceive(String id, String message) {
+            }
+        }));
+        sqs.flush();
+        assertEquals(1, local.getRequestCount("DeleteMessageBatch"));
+        assertEquals(0, local.getRequestCount("ChangeMessageVisibility"));
+        clock.advanceSeconds(60);
+        assertEquals(0, sqs.fetch(10, 0).size());
+    }
+
+    @Test
+    public void testUnresolvedHandleStaysInFlight() throws Exception {
+        send("1,2,3");
+        final AtomicReference<MessageHandle> later = new AtomicReference<MessageHandle>();
+        sqs.process(receiveOne(), sqs.wrap(new AcknowledgingReceiveCallback() {
+            public void onReceive(MessageHandle message) {
+                later.set(message);
+            }
+
+            public void onReceive(String id, String message) {
+            }
+        }));
+        sqs.flush();
+        assertEquals(0, local.getRequestCount("DeleteMessageBatch"));
+
+        later.get().ack();
+        sqs.flush();
+        assertEquals(1, local.getRequestCount("DeleteMessageBatch"));
+    }
+
+    @Test
+    public void testFailureNacksWithBackoff() throws Exception {
+        sqs.setNackBackoff(10, 300);
+        send("1,2,3");
+        receiveOne();
+        clock.advanceSeconds(31);
+        receiveOne();
+        clock.advanceSeconds(31);
+        Message third = receiveOne();
+        assertEquals("3", third.getAttributes().get("ApproximateReceiveCount"));
+        sqs.process(third, sqs.wrap(new AcknowledgingReceiveCallback() {
+            public void onReceive(MessageHandle message) throws Exception {
+                throw new Exception("downstream is down");
+            }
+
+            public void onReceive(String id, String message) {
+            }
+        }));
+        sqs.flush();
+        assertEquals(0, local.getRequestCount("DeleteMessageBatch"));
+        clock.advanceSeconds(19);
+        assertEquals("third receive should back off at least 20 seconds", 0, sqs.fetch(10, 0).size());
+        clock.advanceSeconds(22);
+        assertEquals("and at most 40", 1, sqs.fetch(10, 0).size());
+    }
+
+    @Test
+    public void testFailedNackDoesNotEscape() throws Exception {
+        send("1,2,3");
+        Message stale = receiveOne();
+        clock.advanceSeconds(31);
+        receiveOne();
+        //nacking with a receipt handle that's no longer current fails
+        sqs.process(stale, sqs.wrap(new AcknowledgingReceiveCallback() {
+            public void onReceive(MessageHandle message) throws Exception {
+                throw new Exception("downstream is down");
+            }
+
+            public void onReceive(String id, String message) {
+            }
+        }));
+        assertEquals(1, local.getRequestCount("ChangeMessageVisibility"));
+    }
+
+    @Test
+    public void testBackoffIsCapped() throws Exception {
+        sqs.setNackBackoff(2, 60);
+        for (int receiveCount = 1; receiveCount < 100; receiveCount++) {
+            int delay = sqs.nackDelaySeconds(receiveCount);
+            assertTrue("delay was " + delay, delay >= 1 && delay <= 60);
+        }
+        assertTrue(sqs.nackDelaySeconds(1) <= 2);
+    }
+
+    @Test
+    public void testExplicitNackAndExtend() throws Exception {
+        send("1,2,3");
+        final AtomicReference<MessageHandle> held = new AtomicReference<MessageHandle>();
+        sqs.process(receiveOne(), sqs.wrap(new AcknowledgingReceiveCallback() {
+            public void onReceive(MessageHandle message) {
+                held.set(message);
+            }
+
+            public void onReceive(String id, String message) {
+            }
+        }));
+        MessageHandle handle = held.get();
+        handle.extend(120);
+        clock.advanceSeconds(100);
+        assertEquals("extended past the 30 second default", 0, sqs.fetch(10, 0).size());
+        assertTrue(handle.nack(0));
+        assertEquals("visible again right away", 1, sqs.fetch(10, 0).size());
+        try {
+            handle.extend(30);
+            assertTrue("resolved handles can't be extended", false);
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAcknowledgingRequiresClient() throws Exception {
+        new SQS(mock(SQSAdapter.class)).receive(mock(AcknowledgingReceiveCallback.class));
+    }
+
+    private void send(String body) throws Exception {
+        local.sendMessage(url, EnvelopeCodecs.JSON.encode(body, clock.now()));
+    }
+
+    private Message receiveOne() {
+        List<Message> received = sqs.fetch(1, 0);
+        assertEquals(1, received.size());
+        return received.get(0);
+    }
+}
@@ -0,0 +1,206 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.b50.moo.codec.EnvelopeCodecs;
+import com.b50.moo.local.LocalSQS;
+import com.b50.sqs.SQSAdapter;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class MultiQueueConsumerTest {
+    private final LocalSQS local = new LocalSQS();
+    private int queues;
+
+    @Test
+    public void testQueuesArePolledInProportionToWeight() throws Exception {
+        MultiQueueConsumer consumer = new MultiQueueConsumer(new ConsumerOptions());
+        SQS heavy = sqs();
+        SQS light = sqs();
+        consumer.addQueue(heavy, mock(ReceiveCallback.class), 3).addQueue(light, mock(ReceiveCallback.class), 1);
+        Map<SQS, Integer> polls = pollRepeatedly(consumer, 400);
+        assertEquals(300, polls.get(heavy).intValue());
+        assertEquals(100, polls.get(light).intValue());
+    }
+
+    @Test
+    public void testEmptyQueuesBackOff() throws Exception {
+        MultiQueueConsumer consumer = new MultiQueueConsumer(new ConsumerOptions());
+        SQS busy = sqs();
+        SQS empty = sqs();
+        consumer.addQueue(busy, mock(ReceiveCallback.class), 1).addQueue(empty, mock(ReceiveCallback.class), 1);
+        int emptyPolls = 0;
+        for (long now = 0; now < 1000; now += 10) {
+            MultiQueueConsumer.QueueState queue = consumer.next(now);
+            if (queue.sqs == empty) {
+                emptyPolls++;
+                consumer.polled(queue, 0, now);
+            } else {
+                consumer.polled(queue, 10, now);
+            }
+        }
+        assertTrue("empty queue was polled " + emptyPolls + " times", emptyPolls <= 5);
+
+        consumer = new MultiQueueConsumer(new ConsumerOptions());
+        consumer.addQueue(empty, mock(ReceiveCallback.class), 1);
+        consumer.polled(consumer.next(0), 0, 0);
+        assertNull("the only queue is backing off", consumer.next(50));
+        assertEquals(empty, consumer.next(100).sqs);
+    }
+
+    @Test
+    public void testQueueComingBackFromBackoffDoesNotHogPolls() throws Exception {
+        MultiQueueConsumer consumer = new MultiQueueConsumer(new ConsumerOptions());
+        SQS first = sqs();
+        SQS second = sqs();
+        consumer.addQueue(first, mock(ReceiveCallback.class), 1).addQueue(second, mock(ReceiveCallback.class), 1);
+        long now = 0;
+        MultiQueueConsumer.QueueState queue = consumer.next(now);
+        consumer.polled(queue, 0, now);
+        for (int i = 0; i < 50; i++) {
+            consumer.polled(consumer.next(++now), 10, now);
+        }
+        now = 10000;
+        Map<SQS, Integer> polls = pollRepeatedly(consumer, 10, now);
+        assertTrue("first was polled " + polls.get(first) + " times", polls.get(first) <= 6);
+        assertTrue("second was polled " + polls.get(second) + " times", polls.get(second) >= 4);
+    }
+
+    @Test
+    public void testConsumesAllQueues() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        ReceiveCallback callback = new ReceiveCallback() {
+            public void onReceive(String id, String message) {
+                latch.countDown();
+            }
+        };
+        String one = local.createQueueUrl("one");
+        String two = local.createQueueUrl("two");
+        local.sendMessage(one, EnvelopeCodecs.JSON.encode("1", System.currentTimeMillis()));
+        local.sendMessage(two, EnvelopeCodecs.JSON.encode("2", System.currentTimeMillis()));
+        MultiQueueConsumer consumer = new MultiQueueConsumer(new ConsumerOptions().withPollers(1).withWaitTimeSeconds(0));
+        consumer.addQueue(new SQS(local, one), callback, 1).addQueue(new SQS(local, two), callback, 1);
+        consumer.start();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        consumer.stop();
+        assertEquals(2, local.getRequestCount("DeleteMessageBatch"));
+        assertEquals(0, messagesIn(one));
+        assertEquals(0, messagesIn(two));
+    }
+
+    @Test
+    public void testQueuesCanShareOneSetOfExecutors() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        ReceiveCallback callback = new ReceiveCallback() {
+            public void onReceive(String id, String message) {
+                latch.countDown();
+            }
+        };
+        String one = local.createQueueUrl("one");
+        String two = local.createQueueUrl("two");
+        local.sendMessage(one, EnvelopeCodecs.JSON.encode("1", System.currentTimeMillis()));
+        local.sendMessage(two, EnvelopeCodecs.JSON.encode("2", System.currentTimeMillis()));
+        SQS first = new SQS(local, one);
+        SQS second = new SQS(first, two);
+        assertSame(first.getScheduler(), second.getScheduler());
+        assertSame(first.getExecutionStrategy(), second.getExecutionStrategy());
+
+        MultiQueueConsumer consumer = new MultiQueueConsumer(new ConsumerOptions().withPollers(1).withWaitTimeSeconds(0));
+        consumer.addQueue(first, callback, 1).addQueue(second, callback, 1);
+        consumer.start();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        consumer.stop();
+        assertEquals("each queue still deletes its own messages", 0, messagesIn(one));
+        assertEquals(0, messagesIn(two));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSharingExecutorsRequiresAClient() throws Exception {
+        new SQS(new SQS(mock(SQSAdapter.class)), local.createQueueUrl("other"));
+    }
+
+    @Test
+    public void testEveryPollerKeepsALongPollInFlight() throws Exception {
+        final AtomicInteger polling = new AtomicInteger();
+        final AtomicInteger mostPolling = new AtomicInteger();
+        LocalSQS counting = new LocalSQS() {
+            @Override
+            public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+                int now = polling.incrementAndGet();
+                while (now > mostPolling.get() && !mostPolling.compareAndSet(mostPolling.get(), now)) {
+                }
+                try {
+                    return super.receiveMessage(request);
+                } finally {
+                    polling.decrementAndGet();
+                }
+            }
+        };
+        MultiQueueConsumer consumer = new MultiQueueConsumer(new ConsumerOptions().withPollers(4).withWaitTimeSeconds(1));
+        for (int i = 0; i < 4; i++) {
+            consumer.addQueue(new SQS(counting, counting.createQueueUrl("queue-" + i)), mock(ReceiveCallback.class), 1);
+        }
+        consumer.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mostPolling.get() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        consumer.stop();
+        assertEquals(4, mostPolling.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAutoScalingIsRejected() throws Exception {
+        new MultiQueueConsumer(new ConsumerOptions().withAutoScaling(new AutoScalingOptions()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPartitionKeyIsRejected() throws Exception {
+        new MultiQueueConsumer(new ConsumerOptions().withPartitionKey(mock(PartitionKeyExtractor.class)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQueuesNeedClients() throws Exception {
+        new MultiQueueConsumer(new ConsumerOptions()).addQueue(new SQS(mock(SQSAdapter.class)), mock(ReceiveCallback.class), 1);
+    }
+
+    private Map<SQS, Integer> pollRepeatedly(MultiQueueConsumer consumer, int times) {
+        return pollRepeatedly(consumer, times, 0);
+    }
+
+    private Map<SQS, Integer> pollRepeatedly(MultiQueueConsumer consumer, int times, long now) {
+        Map<SQS, Integer> polls = new HashMap<SQS, Integer>();
+        for (int i = 0; i < times; i++) {
+            MultiQueueConsumer.QueueState queue = consumer.next(now);
+            consumer.polled(queue, 10, now);
+            Integer count = polls.get(queue.sqs);
+            polls.put(queue.sqs, count == null ? 1 : count + 1);
+        }
+        return polls;
+    }
+
+    private SQS sqs() {
+        return new SQS(local, local.createQueueUrl("queue-" + queues++));
+    }
+
+    /**
+     * @return messages in the queue, visible or in flight
+     */
+    private int messagesIn(String url) {
+        Map<String, String> attributes = local.getQueueAttributes(new GetQueueAttributesRequest(url)).getAttributes();
+        return Integer.parseInt(attributes.get("ApproximateNumberOfMessages"))
+                + Integer.parseInt(attributes.get("ApproximateNumberOfMessagesNotVisible"));
+    }
+}
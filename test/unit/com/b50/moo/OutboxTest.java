@@ -0,0 +1,161 @@
+package com.b50.moo;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.b50.moo.exceptions.SQSException;
+import com.b50.moo.local.LocalSQS;
+import com.b50.sqs.SQSAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OutboxTest {
+    private File directory;
+    private LocalSQS local;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("moo-outbox", "");
+        directory.delete();
+        local = new LocalSQS();
+        url = local.createQueueUrl("test");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testSendsAreLoggedThenShippedInBatches() throws Exception {
+        SQS sqs = new SQS(local, url);
+        sqs.enableOutbox(directory);
+        final CountDownLatch sent = new CountDownLatch(25);
+        for (int i = 0; i < 25; i++) {
+            sqs.send("message-" + i, new SendCallback() {
+                @Override
+                public void onSend(String messageId) {
+                    sent.countDown();
+                }
+            });
+        }
+        assertTrue("all should be acknowledged", sent.await(5, TimeUnit.SECONDS));
+        assertEquals(0, local.getRequestCount("SendMessage"));
+        assertTrue(local.getRequestCount("SendMessageBatch") >= 3);
+        assertEquals(25, receiveAll().size());
+        waitForEmptyBacklog(sqs);
+        sqs.disableOutbox();
+    }
+
+    @Test
+    public void testUnsentMessagesAreReplayedOnReopen() throws Exception {
+        AmazonSQS down = mock(AmazonSQS.class);
+        when(down.sendMessageBatch(any(SendMessageBatchRequest.class))).thenThrow(new AmazonClientException("down"));
+        SQS crashed = new SQS(down, url);
+        crashed.enableOutbox(directory);
+        crashed.send("enveloped");
+        crashed.setMessageFormat(MessageFormat.ATTRIBUTES);
+        crashed.send("bare \u00e9");
+        crashed.disableOutbox();
+
+        SQS restarted = new SQS(local, url);
+        restarted.enableOutbox(directory);
+        waitForEmptyBacklog(restarted);
+        List<Message> messages = receiveAll();
+        assertEquals(2, messages.size());
+        assertEquals("enveloped", SQS.unwrap(messages.get(0)).getMessage());
+        assertNull(messages.get(0).getMessageAttributes().get(MessageFormat.TIMESTAMP_ATTRIBUTE));
+        assertEquals("bare \u00e9", messages.get(1).getBody());
+        assertTrue(messages.get(1).getMessageAttributes().containsKey(MessageFormat.TIMESTAMP_ATTRIBUTE));
+        restarted.disableOutbox();
+    }
+
+    @Test
+    public void testSendBlocksWhileTheBacklogIsFull() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        AmazonSQS slow = mock(AmazonSQS.class);
+        when(slow.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                gate.await();
+                return local.sendMessageBatch((SendMessageBatchRequest) invocation.getArguments()[0]);
+            }
+        });
+        final SQS sqs = new SQS(slow, url);
+        sqs.enableOutbox(directory, new OutboxOptions().withMaxUnsentBytes(100));
+        sqs.send("fills the backlog");
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    sqs.send("waits for room");
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        producer.start();
+        producer.join(300);
+        assertTrue("send should block", producer.isAlive());
+
+        gate.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertNull(failure.get());
+        waitForEmptyBacklog(sqs);
+        assertEquals(2, receiveAll().size());
+        sqs.disableOutbox();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOutboxRequiresClient() throws SQSException {
+        new SQS(mock(SQSAdapter.class)).enableOutbox(directory);
+    }
+
+    private void waitForEmptyBacklog(SQS sqs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sqs.getOutboxBacklogBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, sqs.getOutboxBacklogBytes());
+    }
+
+    private List<Message> receiveAll() {
+        List<Message> all = new ArrayList<Message>();
+        List<Message> batch;
+        do {
+            batch = local.receiveMessage(new ReceiveMessageRequest(url).withMaxNumberOfMessages(10)
+                    .withMessageAttributeNames("All")).getMessages();
+            all.addAll(batch);
+        } while (!batch.isEmpty());
+        return all;
+    }
+}
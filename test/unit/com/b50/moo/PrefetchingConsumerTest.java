@@ -0,0 +1,142 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.b50.moo.codec.EnvelopeCodecs;
+import com.b50.moo.local.LocalSQS;
+import com.b50.moo.local.ManualClock;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PrefetchingConsumerTest {
+    private ManualClock clock;
+    private LocalSQS local;
+    private String url;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+        local = new LocalSQS(clock);
+        url = local.createQueueUrl("test");
+    }
+
+    @Test
+    public void testBufferFillsUpToItsLimitAndHandsOutMessages() throws Exception {
+        send(30, "1,2,3");
+        SQS sqs = new SQS(local, url);
+        PrefetchingConsumer consumer = new PrefetchingConsumer(sqs, new PrefetchOptions().withMaxMessages(15).withWaitTimeSeconds(0));
+        consumer.start();
+        awaitBuffered(consumer, 15);
+        assertEquals("buffered messages are in flight", 15, attribute("ApproximateNumberOfMessagesNotVisible"));
+
+        MessageHandle handle = consumer.poll(1, TimeUnit.SECONDS);
+        assertNotNull(handle);
+        assertEquals("1,2,3", handle.getBody());
+        handle.ack();
+        consumer.stop();
+        sqs.flush();
+        assertEquals(1, local.getRequestCount("DeleteMessageBatch"));
+        assertEquals("the rest were released", 29, attribute("ApproximateNumberOfMessages"));
+        assertEquals(0, consumer.getBufferedMessages());
+        assertEquals(0, consumer.getBufferedBytes());
+    }
+
+    @Test
+    public void testPollingPausesAtTheByteLimit() throws Exception {
+        send(100, "1,2,3");
+        SQS sqs = new SQS(local, url);
+        PrefetchingConsumer consumer = new PrefetchingConsumer(sqs, new PrefetchOptions().withMaxMessages(1000)
+                .withMaxBytes(100).withWaitTimeSeconds(0));
+        consumer.start();
+        awaitBuffered(consumer, 10);
+        consumer.stop();
+        assertEquals("no poll once the first batch went over", 1, local.getRequestCount("ReceiveMessage"));
+    }
+
+    @Test
+    public void testMessagesNearingTheirVisibilityTimeoutAreReleased() throws Exception {
+        send(10, "1,2,3");
+        SQS sqs = new SQS(local, url);
+        PrefetchingConsumer consumer = new PrefetchingConsumer(sqs, new PrefetchOptions().withMaxMessages(10)
+                .withWaitTimeSeconds(0).withVisibilityTimeoutSeconds(30).withReleaseMarginMillis(5000));
+        consumer.start();
+        awaitBuffered(consumer, 10);
+        consumer.sweep(System.currentTimeMillis() + 25000);
+        assertEquals(1, local.getRequestCount("ChangeMessageVisibilityBatch"));
+        MessageHandle handle = consumer.poll(5, TimeUnit.SECONDS);
+        assertEquals("received again once released", 2, handle.getReceiveCount());
+        consumer.stop();
+    }
+
+    @Test
+    public void testDuplicatesAreDeletedInsteadOfHandedOut() throws Exception {
+        send(2, "same");
+        SQS sqs = new SQS(local, url);
+        sqs.enableDeduplication(1000, 60000, new DeduplicationKeyExtractor() {
+            public String keyOf(String body, Map<String, String> attributes) {
+                return body;
+            }
+        });
+        PrefetchingConsumer consumer = new PrefetchingConsumer(sqs, new PrefetchOptions().withWaitTimeSeconds(0));
+        consumer.start();
+        awaitBuffered(consumer, 2);
+        consumer.take().ack();
+        assertNull(consumer.poll(100, TimeUnit.MILLISECONDS));
+        consumer.stop();
+        sqs.flush();
+        assertEquals(1, sqs.getQueueMetrics().getDuplicateCount());
+        assertEquals(0, attribute("ApproximateNumberOfMessages") + attribute("ApproximateNumberOfMessagesNotVisible"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseMarginMustBeShorterThanTheVisibilityTimeout() throws Exception {
+        new PrefetchingConsumer(new SQS(local, url), new PrefetchOptions()
+                .withVisibilityTimeoutSeconds(5).withReleaseMarginMillis(5000));
+    }
+
+    @Test
+    public void testHandedOutMessagesAreKeptInvisibleByTheHeartbeat() throws Exception {
+        send(1, "slow");
+        SQS sqs = new SQS(local, url);
+        sqs.enableVisibilityHeartbeat(30, 3600000);
+        VisibilityExtender extender = sqs.getVisibilityExtender();
+        PrefetchingConsumer consumer = new PrefetchingConsumer(sqs, new PrefetchOptions().withWaitTimeSeconds(0));
+        consumer.start();
+        MessageHandle handle = consumer.poll(5, TimeUnit.SECONDS);
+        consumer.stop();
+        assertEquals(1, extender.size());
+
+        clock.advanceSeconds(20);
+        extender.extend(clock.now());
+        clock.advanceSeconds(20);
+        assertEquals(0, local.receiveMessage(new ReceiveMessageRequest(url).withWaitTimeSeconds(0)).getMessages().size());
+        handle.ack();
+        assertEquals(0, extender.size());
+    }
+
+    private void send(int count, String body) throws Exception {
+        for (int i = 0; i < count; i++) {
+            local.sendMessage(url, EnvelopeCodecs.JSON.encode(body, clock.now()));
+        }
+    }
+
+    private int attribute(String name) {
+        return Integer.parseInt(local.getQueueAttributes(new GetQueueAttributesRequest(url)).getAttributes().get(name));
+    }
+
+    private static void awaitBuffered(PrefetchingConsumer consumer, int messages) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (consumer.getBufferedMessages() < messages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("buffered " + consumer.getBufferedMessages(), consumer.getBufferedMessages() >= messages);
+    }
+}
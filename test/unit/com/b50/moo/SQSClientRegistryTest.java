@@ -0,0 +1,129 @@
+package com.b50.moo;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.b50.moo.local.LocalSQS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SQSClientRegistryTest {
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheFile = File.createTempFile("moo-urls", ".properties");
+        cacheFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        cacheFile.delete();
+    }
+
+    @Test
+    public void testClientsAreSharedPerKeyAndRegion() {
+        LocalRegistry registry = new LocalRegistry();
+        AmazonSQS east = registry.client("key", "secret");
+        assertSame(east, registry.client("key", "secret", SQSClientRegistry.DEFAULT_REGION));
+        AmazonSQS west = registry.client("key", "secret", "us-west-2");
+        assertNotSame(east, west);
+        assertNotSame(east, registry.client("other", "secret"));
+        assertNotSame("a rotated secret gets its own client", west, registry.client("key", "rotated", "us-west-2"));
+        assertEquals(4, registry.created.get());
+    }
+
+    @Test
+    public void testReleasedClientsAreShutDownAndReplaced() {
+        LocalRegistry registry = new LocalRegistry();
+        AmazonSQS old = registry.client("key", "old", "us-west-2");
+        AmazonSQS current = registry.client("key", "current", "us-west-2");
+        assertTrue(registry.release("key", "old", "us-west-2"));
+        assertFalse(registry.release("key", "old", "us-west-2"));
+        assertEquals(1, registry.shutDown.get());
+        assertSame(current, registry.client("key", "current", "us-west-2"));
+        assertNotSame(old, registry.client("key", "old", "us-west-2"));
+    }
+
+    @Test
+    public void testEachQueueIsResolvedOnce() {
+        LocalRegistry registry = new LocalRegistry();
+        SQS first = registry.queue("key", "secret", "orders");
+        SQS second = registry.queue("key", "secret", "orders");
+        assertTrue(first != second);
+        assertEquals("local://queue/orders",
+                registry.queueUrl("key", "secret", SQSClientRegistry.DEFAULT_REGION, "orders"));
+        assertEquals(1, registry.local.getRequestCount("CreateQueue"));
+    }
+
+    @Test
+    public void testPreloadResolvesInParallel() {
+        LocalRegistry registry = new LocalRegistry();
+        registry.local.setLatencyMillis(300);
+        long start = System.currentTimeMillis();
+        registry.preload("key", "secret", SQSClientRegistry.DEFAULT_REGION, "a", "b", "c", "d", "e");
+        for (String name : new String[]{"a", "b", "c", "d", "e"}) {
+            registry.queue("key", "secret", name);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + "ms", elapsed < 1200);
+        assertEquals(5, registry.local.getRequestCount("CreateQueue"));
+    }
+
+    @Test
+    public void testCacheFileSavesLookupsOnRestart() throws Exception {
+        LocalRegistry registry = new LocalRegistry();
+        registry.setCacheFile(cacheFile);
+        registry.queue("key", "secret", "orders");
+        registry.queue("key", "secret", "invoices");
+        assertTrue(cacheFile.exists());
+        assertFalse("secrets stay out of the cache", new String(readFully(cacheFile), "UTF-8").contains("secret"));
+
+        LocalRegistry restarted = new LocalRegistry();
+        restarted.setCacheFile(cacheFile);
+        assertEquals("local://queue/invoices",
+                restarted.queueUrl("key", "secret", SQSClientRegistry.DEFAULT_REGION, "invoices"));
+        restarted.queue("key", "secret", "orders");
+        assertEquals(0, restarted.local.getRequestCount("CreateQueue"));
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static class LocalRegistry extends SQSClientRegistry {
+        final LocalSQS local = new LocalSQS();
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger shutDown = new AtomicInteger();
+
+        @Override
+        protected AmazonSQS newClient(String awsKey, String awsSecret, String region, ClientConfiguration configuration) {
+            created.incrementAndGet();
+            return "key".equals(awsKey) && DEFAULT_REGION.equals(region) ? local : new LocalSQS() {
+                @Override
+                public void shutdown() {
+                    shutDown.incrementAndGet();
+                }
+            };
+        }
+    }
+}
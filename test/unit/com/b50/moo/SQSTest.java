@@ -4,6 +4,9 @@ import com.amazonaws.services.sqs.AmazonSQSClient;
 import com.amazonaws.services.sqs.model.*;
 import com.b50.moo.exceptions.SQSException;
 import com.b50.moo.exceptions.SQSMessageLengthException;
+import com.b50.moo.local.LocalSQS;
+import com.b50.moo.metrics.QueueMetrics;
+import com.b50.moo.payload.FileSystemPayloadStore;
 import com.b50.sqs.MessageReceivedCallback;
 import com.b50.sqs.MessageSentCallback;
 import com.b50.sqs.SQSAdapter;
@@ -11,13 +14,18 @@ import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
@@ -39,6 +47,97 @@ public class SQSTest {
         sqs.send(message);
     }
 
+    @Test
+    public void testMessageLengthValidationCountsEncodedBytes() throws Exception {
+        SQS sqs = new SQS(mock(SQSAdapter.class));
+        //31 bytes of envelope plus 262113 ASCII characters is exactly 256KB
+        sqs.send(repeat('a', 262113));
+        try {
+            sqs.send(repeat('a', 262114));
+            fail("message one byte over the limit was accepted");
+        } catch (SQSMessageLengthException e) {
+            assertEquals(1, e.getOverage());
+        }
+        //fewer characters than the old check allowed, but each is 2 bytes in UTF-8
+        try {
+            sqs.send(repeat('\u00e9', 131100));
+            fail("multibyte message over the limit was accepted");
+        } catch (SQSMessageLengthException e) {
+            assertEquals(262231, e.getSize());
+            assertEquals(87, e.getOverage());
+        }
+        //quotes are escaped, so each costs 2 bytes
+        try {
+            sqs.send(repeat('"', 131057));
+            fail("escaped message over the limit was accepted");
+        } catch (SQSMessageLengthException e) {
+            assertEquals(1, e.getOverage());
+        }
+    }
+
+    @Test
+    public void testOversizedMessageIsOffloadedToPayloadStore() throws Exception {
+        File directory = File.createTempFile("moo-payloads", "");
+        directory.delete();
+        FileSystemPayloadStore store = new FileSystemPayloadStore(directory);
+        final String message = getGreaterThanMaxLengthString();
+
+        SQSAdapter mockAdapter = mock(SQSAdapter.class);
+        SQS sender = new SQS(mockAdapter);
+        sender.setPayloadStore(store);
+        sender.send(message);
+        ArgumentCaptor<String> body = ArgumentCaptor.forClass(String.class);
+        verify(mockAdapter).send(body.capture(), any(MessageSentCallback.class));
+        assertTrue("envelope should be small but was " + body.getValue().length(), body.getValue().length() < 100);
+
+        SQS receiver = new SQS(new MockSQSAdapterForReceiving(body.getValue()));
+        receiver.setPayloadStore(store);
+        final String[] received = new String[1];
+        receiver.receive(new StreamingReceiveCallback() {
+            @Override
+            public void onReceive(String id, Reader reader) throws IOException {
+                StringBuilder builder = new StringBuilder();
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = reader.read(buffer)) > 0) {
+                    builder.append(buffer, 0, read);
+                }
+                received[0] = builder.toString();
+            }
+
+            @Override
+            public void onReceive(String id, String s) {
+                fail("payload should have been streamed");
+            }
+        });
+        assertEquals(message, received[0]);
+        assertEquals("payload should be deleted once received", 0, directory.listFiles().length);
+        directory.delete();
+    }
+
+    @Test
+    public void testStoredPayloadIsKeptUntilSQSDeletesItsMessage() throws Exception {
+        File directory = File.createTempFile("moo-payloads", "");
+        directory.delete();
+        LocalSQS local = new LocalSQS();
+        SQS sqs = new SQS(local, local.createQueueUrl("test"));
+        sqs.setPayloadStore(new FileSystemPayloadStore(directory));
+        sqs.send(getGreaterThanMaxLengthString());
+        Message message = sqs.fetch(1, 5).get(0);
+        MessageReceivedCallback callback = sqs.wrap(new ReceiveCallback() {
+            public void onReceive(String id, String message) {
+            }
+        });
+
+        sqs.process(message.clone().withReceiptHandle("stale"), callback);
+        sqs.flush();
+        assertEquals("a redelivery still needs the payload", 1, directory.listFiles().length);
+        sqs.process(message, callback);
+        sqs.flush();
+        assertEquals(0, directory.listFiles().length);
+        directory.delete();
+    }
+
     @Test
     public void testReceiveMessageWithoutWrappedJSON() throws Exception {
         AmazonSQSClient mockClient = mock(AmazonSQSClient.class);
@@ -253,6 +352,22 @@ public class SQSTest {
     }
 
 
+    @Test
+    public void testReceivedWaitTimesAreRecordedInQueueMetrics() throws Exception {
+        final String message = getStringFromFile(new File("./etc/normal.json"));
+        SQS sqs = new SQS(new MockSQSAdapterForReceiving(message));
+        assertEquals(0, sqs.getQueueMetrics().getCount());
+
+        sqs.receive(mock(ReceiveCallback.class));
+
+        QueueMetrics metrics = sqs.getQueueMetrics();
+        assertEquals(1, metrics.getCount());
+        assertEquals(1, metrics.getTotalCount());
+        long waited = System.currentTimeMillis() - 1381172826511l;
+        assertTrue("p50 was " + metrics.getP50(), Math.abs(waited - metrics.getP50()) < waited / 16);
+        assertEquals(metrics.getMaxWaitTime(), metrics.getP99());
+    }
+
     @Test
     public void testMessageReceivedWithJSON() throws Exception {
         final String message = getStringFromFile(new File("./etc/json.json"));
@@ -261,8 +376,13 @@ public class SQSTest {
         sqs.receive(new ReceiveCallback() {
             @Override
             public void onReceive(String s, String s2) {
-                assertEquals("should be {\"some-num\":11,\"some-value\":\"test\",\"some-array\":[1,2,3]}", s2,
-                        "{\"some-num\":11,\"some-value\":\"test\",\"some-array\":[1,2,3]}");
+                //nested JSON is handed back exactly as it appears in the envelope
+                String expected = "{\n" +
+                        "        \"some-value\":\"test\",\n" +
+                        "        \"some-num\":11,\n" +
+                        "        \"some-array\":[1,2,3]\n" +
+                        "    }";
+                assertEquals("should be " + expected, expected, s2);
             }
         });
     }
@@ -280,6 +400,93 @@ public class SQSTest {
         });
     }
 
+    @Test
+    public void testAttributeFormatSendsBodyUntouched() throws Exception {
+        LocalSQS local = new LocalSQS();
+        String url = local.createQueueUrl("test");
+        SQS sqs = new SQS(local, url);
+        sqs.setMessageFormat(MessageFormat.ATTRIBUTES);
+        long before = System.currentTimeMillis();
+        sqs.send("<elem>test</elem>");
+
+        List<Message> messages = local.receiveMessage(new ReceiveMessageRequest(url).withWaitTimeSeconds(5)
+                .withMessageAttributeNames("All")).getMessages();
+        assertEquals(1, messages.size());
+        assertEquals("<elem>test</elem>", messages.get(0).getBody());
+        long timestamp = Long.parseLong(messages.get(0).getMessageAttributes()
+                .get(MessageFormat.TIMESTAMP_ATTRIBUTE).getStringValue());
+        assertTrue(timestamp >= before && timestamp <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void testReceiveReadsBothFormats() throws Exception {
+        LocalSQS local = new LocalSQS();
+        String url = local.createQueueUrl("test");
+        SQS sqs = new SQS(local, url);
+        sqs.send("{\"sent\":\"wrapped\"}");
+        sqs.setMessageFormat(MessageFormat.ATTRIBUTES);
+        sqs.send("{\"sent\":\"bare\"}");
+
+        final List<String> received = Collections.synchronizedList(new LinkedList<String>());
+        final CountDownLatch latch = new CountDownLatch(2);
+        sqs.startConsuming(new ReceiveCallback() {
+            @Override
+            public void onReceive(String id, String message) {
+                received.add(message);
+                latch.countDown();
+            }
+        }, new ConsumerOptions().withWaitTimeSeconds(1));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        sqs.stop();
+
+        assertTrue(received.contains("{\"sent\":\"wrapped\"}"));
+        assertTrue(received.contains("{\"sent\":\"bare\"}"));
+        assertEquals(2, sqs.getQueueMetrics().getTotalCount());
+    }
+
+    @Test
+    public void testObjectsAreSentAsRawJsonAndBoundOnReceive() throws Exception {
+        LocalSQS local = new LocalSQS();
+        String url = local.createQueueUrl("test");
+        SQS sqs = new SQS(local, url);
+        Order order = new Order();
+        order.id = "a1";
+        order.quantity = 2;
+        sqs.send(order);
+        sqs.setMessageFormat(MessageFormat.ATTRIBUTES);
+        order.id = "a2";
+        sqs.send(order);
+
+        final List<Order> received = Collections.synchronizedList(new LinkedList<Order>());
+        final CountDownLatch latch = new CountDownLatch(2);
+        sqs.startConsuming(Order.class, new TypedReceiveCallback<Order>() {
+            public void onReceive(String id, Order message) {
+                received.add(message);
+                latch.countDown();
+            }
+        }, new ConsumerOptions().withWaitTimeSeconds(1));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        sqs.stop();
+
+        assertEquals(2, received.size());
+        for (Order each : received) {
+            assertTrue(each.id, each.id.equals("a1") || each.id.equals("a2"));
+            assertEquals(2, each.quantity);
+        }
+        assertEquals(2, sqs.getQueueMetrics().getTotalCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAttributeFormatRequiresClient() throws Exception {
+        new SQS(mock(SQSAdapter.class)).setMessageFormat(MessageFormat.ATTRIBUTES);
+    }
+
+    private String repeat(char c, int count) {
+        char[] chars = new char[count];
+        java.util.Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
     private Message getMessage(String body, String id) {
         if (body.startsWith("{")) {
             return new Message().withBody("{\"msg\":" + body + ",\"ts\":\"1381172826511\"}").withMessageId(id);
@@ -328,7 +535,7 @@ public class SQSTest {
                         parser.nextToken();
                         long timeAgo = Long.valueOf(parser.getText());
                         long now = System.currentTimeMillis();
-                        assertTrue(now > timeAgo);
+                        assertTrue("stamped before it was sent", now >= timeAgo);
                     }
                 }
                 parser.close();
@@ -338,6 +545,11 @@ public class SQSTest {
         }
     }
 
+    public static class Order {
+        public String id;
+        public int quantity;
+    }
+
     public class MockSQSAdapterForReceiving extends SQSAdapter {
         private String rawMessage;
 
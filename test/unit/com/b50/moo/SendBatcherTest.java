@@ -0,0 +1,145 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class SendBatcherTest {
+    private ExecutorService pool;
+    private ScheduledExecutorService scheduler;
+    @Captor
+    private ArgumentCaptor<List<SendMessageBatchRequestEntry>> entries;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        pool = Executors.newFixedThreadPool(2);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testEachCallbackGetsItsOwnMessageId() throws Exception {
+        AmazonSQS mockClient = mock(AmazonSQS.class);
+        when(mockClient.sendMessageBatch(eq("URL"), anyListOf(SendMessageBatchRequestEntry.class))).thenAnswer(new EchoAnswer());
+        SendBatcher batcher = new SendBatcher(mockClient, "URL", pool, scheduler, 100);
+
+        final Map<String, String> sent = new ConcurrentHashMap<String, String>();
+        for (int i = 0; i < 12; i++) {
+            final String body = "body-" + i;
+            batcher.send(body, body.length(), new SendCallback() {
+                @Override
+                public void onSend(String messageId) {
+                    sent.put(body, messageId);
+                }
+            });
+        }
+        Thread.sleep(500);
+
+        verify(mockClient, times(2)).sendMessageBatch(eq("URL"), entries.capture());
+        assertEquals(10, entries.getAllValues().get(0).size());
+        assertEquals(2, entries.getAllValues().get(1).size());
+        assertEquals(12, sent.size());
+        for (Map.Entry<String, String> entry : sent.entrySet()) {
+            assertEquals("id-" + entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatchesArePackedByAggregateSize() throws Exception {
+        AmazonSQS mockClient = mock(AmazonSQS.class);
+        when(mockClient.sendMessageBatch(eq("URL"), anyListOf(SendMessageBatchRequestEntry.class))).thenAnswer(new EchoAnswer());
+        SendBatcher batcher = new SendBatcher(mockClient, "URL", pool, scheduler, 100);
+
+        for (int i = 0; i < 5; i++) {
+            batcher.send("big-" + i, 100000, null);
+        }
+        batcher.flush();
+        Thread.sleep(200);
+
+        verify(mockClient, times(3)).sendMessageBatch(eq("URL"), entries.capture());
+        for (List<SendMessageBatchRequestEntry> batch : entries.getAllValues()) {
+            assertEquals(true, batch.size() <= 2);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailedEntriesAreSurfaced() throws Exception {
+        AmazonSQS mockClient = mock(AmazonSQS.class);
+        when(mockClient.sendMessageBatch(eq("URL"), anyListOf(SendMessageBatchRequestEntry.class))).thenReturn(
+                new SendMessageBatchResult()
+                        .withSuccessful(new SendMessageBatchResultEntry().withId("0").withMessageId("OK"))
+                        .withFailed(new BatchResultErrorEntry().withId("1").withCode("InvalidMessageContents").withSenderFault(true)));
+        SendBatcher batcher = new SendBatcher(mockClient, "URL", pool, scheduler, 100);
+
+        final String[] results = new String[2];
+        batcher.send("good", 4, new RecordingCallback(results, 0));
+        batcher.send("bad", 3, new RecordingCallback(results, 1));
+        batcher.flush();
+
+        assertEquals("sent:OK", results[0]);
+        assertEquals("failed:InvalidMessageContents", results[1]);
+    }
+
+    private static class RecordingCallback implements SendFailureCallback {
+        private final String[] results;
+        private final int index;
+
+        private RecordingCallback(String[] results, int index) {
+            this.results = results;
+            this.index = index;
+        }
+
+        @Override
+        public void onSend(String messageId) {
+            results[index] = "sent:" + messageId;
+        }
+
+        @Override
+        public void onFailure(String errorCode, String errorMessage) {
+            results[index] = "failed:" + errorCode;
+        }
+    }
+
+    private static class EchoAnswer implements Answer<SendMessageBatchResult> {
+        @Override
+        @SuppressWarnings("unchecked")
+        public SendMessageBatchResult answer(InvocationOnMock invocation) {
+            SendMessageBatchResult result = new SendMessageBatchResult();
+            for (SendMessageBatchRequestEntry entry : (List<SendMessageBatchRequestEntry>) invocation.getArguments()[1]) {
+                result.withSuccessful(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId("id-" + entry.getMessageBody()));
+            }
+            return result;
+        }
+    }
+}
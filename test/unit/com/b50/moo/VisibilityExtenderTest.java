@@ -0,0 +1,179 @@
+package com.b50.moo;
+
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.b50.moo.codec.EnvelopeCodecs;
+import com.b50.moo.local.LocalSQS;
+import com.b50.moo.local.ManualClock;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VisibilityExtenderTest {
+
+    @Test
+    public void testInFlightHandlesAreExtendedInBatches() throws Exception {
+        ManualClock clock = new ManualClock();
+        LocalSQS local = new LocalSQS(clock);
+        String url = local.createQueueUrl("test");
+        for (int i = 0; i < 25; i++) {
+            local.sendMessage(url, "message-" + i);
+        }
+        VisibilityExtender extender = new VisibilityExtender(local, url, 30, 600000);
+        List<Message> received;
+        while (!(received = receive(local, url)).isEmpty()) {
+            for (Message message : received) {
+                extender.track(message.getReceiptHandle());
+            }
+        }
+        assertEquals(25, extender.size());
+
+        clock.advanceSeconds(20);
+        extender.extend(clock.now());
+        assertEquals(3, local.getRequestCount("ChangeMessageVisibilityBatch"));
+        clock.advanceSeconds(20);
+        assertEquals("extended for another 30 seconds", 0, receive(local, url).size());
+    }
+
+    @Test
+    public void testExtensionStopsAtTheCap() throws Exception {
+        LocalSQS local = new LocalSQS();
+        VisibilityExtender extender = new VisibilityExtender(local, local.createQueueUrl("test"), 30, 60000);
+        extender.track("handle");
+        extender.extend(System.currentTimeMillis() + 60000);
+        assertEquals(0, extender.size());
+        assertEquals(0, local.getRequestCount("ChangeMessageVisibilityBatch"));
+    }
+
+    @Test
+    public void testExpiredHandlesAreDropped() throws Exception {
+        LocalSQS local = new LocalSQS();
+        VisibilityExtender extender = new VisibilityExtender(local, local.createQueueUrl("test"), 30, 60000);
+        extender.track("expired");
+        extender.extend(System.currentTimeMillis());
+        assertEquals(0, extender.size());
+    }
+
+    @Test
+    public void testBufferedAndSlowMessagesStayInvisible() throws Exception {
+        final ManualClock clock = new ManualClock();
+        final LocalSQS local = new LocalSQS(clock);
+        final String url = local.createQueueUrl("test");
+        local.sendMessage(url, EnvelopeCodecs.JSON.encode("slow", clock.now()));
+        SQS sqs = new SQS(local, url);
+        sqs.enableVisibilityHeartbeat(600, 3600000);
+        final VisibilityExtender extender = sqs.getVisibilityExtender();
+
+        List<Message> fetched = sqs.fetch(10, 0);
+        assertEquals("tracked from the moment it's received", 1, extender.size());
+        clock.advanceSeconds(400);
+        extender.extend(clock.now());
+
+        final int[] visibleWhileRunning = {-1};
+        sqs.process(fetched.get(0), sqs.wrap(new ReceiveCallback() {
+            public void onReceive(String id, String message) {
+                clock.advanceSeconds(400);
+                extender.extend(clock.now());
+                clock.advanceSeconds(400);
+                visibleWhileRunning[0] = receive(local, url).size();
+            }
+        }));
+        assertEquals(0, visibleWhileRunning[0]);
+        assertEquals(0, extender.size());
+        sqs.flush();
+        clock.advanceSeconds(1000);
+        assertEquals("deleted once the callback returned", 0, receive(local, url).size());
+    }
+
+    @Test
+    public void testHeartbeatDoesNotShortenAnExplicitExtension() throws Exception {
+        //extensions are recorded against the system clock
+        ManualClock clock = new ManualClock(System.currentTimeMillis());
+        LocalSQS local = new LocalSQS(clock);
+        String url = local.createQueueUrl("test");
+        local.sendMessage(url, EnvelopeCodecs.JSON.encode("slow", clock.now()));
+        SQS sqs = new SQS(local, url);
+        sqs.enableVisibilityHeartbeat(30, 3600000);
+        VisibilityExtender extender = sqs.getVisibilityExtender();
+        final MessageHandle[] held = new MessageHandle[1];
+        sqs.process(sqs.fetch(10, 0).get(0), sqs.wrap(new AcknowledgingReceiveCallback() {
+            public void onReceive(MessageHandle message) {
+                held[0] = message;
+            }
+
+            public void onReceive(String id, String message) {
+            }
+        }));
+        held[0].extend(600);
+
+        clock.advanceSeconds(20);
+        extender.extend(clock.now());
+        assertEquals(0, local.getRequestCount("ChangeMessageVisibilityBatch"));
+        clock.advanceSeconds(300);
+        assertEquals("still within the 10 minutes asked for", 0, receive(local, url).size());
+        clock.advanceSeconds(260);
+        extender.extend(clock.now());
+        assertEquals("the heartbeat takes over near the end", 1, local.getRequestCount("ChangeMessageVisibilityBatch"));
+    }
+
+    @Test
+    public void testUntrackingWaitsForAnExtensionInProgress() throws Exception {
+        ManualClock clock = new ManualClock();
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        LocalSQS local = new LocalSQS(clock) {
+            @Override
+            public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest request) {
+                sending.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.changeMessageVisibilityBatch(request);
+            }
+        };
+        String url = local.createQueueUrl("test");
+        local.sendMessage(url, "nacked");
+        final String handle = receive(local, url).get(0).getReceiptHandle();
+        final VisibilityExtender extender = new VisibilityExtender(local, url, 30, 600000);
+        extender.track(handle);
+        final long now = clock.now();
+        Thread heartbeat = new Thread(new Runnable() {
+            public void run() {
+                extender.extend(now);
+            }
+        });
+        heartbeat.start();
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch untracked = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            public void run() {
+                extender.untrackBeforeChange(handle);
+                untracked.countDown();
+            }
+        }).start();
+        assertFalse("a change made now would be overwritten", untracked.await(100, TimeUnit.MILLISECONDS));
+        proceed.countDown();
+        assertTrue(untracked.await(5, TimeUnit.SECONDS));
+        heartbeat.join();
+
+        extender.extend(clock.now());
+        assertEquals(1, local.getRequestCount("ChangeMessageVisibilityBatch"));
+    }
+
+    private static List<Message> receive(LocalSQS local, String url) {
+        return new ArrayList<Message>(local.receiveMessage(new ReceiveMessageRequest(url)
+                .withMaxNumberOfMessages(10).withVisibilityTimeout(30).withWaitTimeSeconds(0)).getMessages());
+    }
+}
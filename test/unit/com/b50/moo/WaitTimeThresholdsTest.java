@@ -0,0 +1,95 @@
+package com.b50.moo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WaitTimeThresholdsTest {
+    private static final Executor CALLER_RUNS = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testOnlyExceededThresholdsFire() throws Exception {
+        WaitTimeThresholds thresholds = new WaitTimeThresholds();
+        thresholds.setExecutor(CALLER_RUNS);
+        final List<String> fired = new ArrayList<String>();
+        thresholds.add(5000, recording(fired, "5s"), 0);
+        thresholds.add(1000, recording(fired, "1s"), 0);
+        thresholds.add(60000, recording(fired, "1m"), 0);
+        thresholds.add(1000, recording(fired, "1s again"), 0);
+
+        thresholds.fire(999);
+        assertTrue(fired.isEmpty());
+
+        thresholds.fire(5000);
+        Collections.sort(fired);
+        assertEquals("[1s, 1s again, 5s]", fired.toString());
+    }
+
+    @Test
+    public void testRateLimitedThresholdFiresOncePerInterval() throws Exception {
+        WaitTimeThresholds thresholds = new WaitTimeThresholds();
+        thresholds.setExecutor(CALLER_RUNS);
+        final List<String> fired = new ArrayList<String>();
+        thresholds.add(10, recording(fired, "limited"), 60000);
+        thresholds.add(10, recording(fired, "every"), 0);
+        for (int i = 0; i < 1000; i++) {
+            thresholds.fire(100);
+        }
+        assertEquals(1, Collections.frequency(fired, "limited"));
+        assertEquals(1000, Collections.frequency(fired, "every"));
+    }
+
+    @Test
+    public void testCallbacksRunOffTheReceivingThread() throws Exception {
+        WaitTimeThresholds thresholds = new WaitTimeThresholds();
+        final Thread[] invokedOn = new Thread[1];
+        thresholds.add(10, new QueueWaitTimeCallback() {
+            public void onThresholdExceeded(long actualWaitTime) {
+                synchronized (invokedOn) {
+                    invokedOn[0] = Thread.currentThread();
+                    invokedOn.notifyAll();
+                }
+            }
+        }, 0);
+        thresholds.fire(100);
+        synchronized (invokedOn) {
+            if (invokedOn[0] == null) {
+                invokedOn.wait(5000);
+            }
+        }
+        assertTrue(invokedOn[0] != null && invokedOn[0] != Thread.currentThread());
+    }
+
+    @Test
+    public void testRejectedInvocationIsDropped() throws Exception {
+        WaitTimeThresholds thresholds = new WaitTimeThresholds();
+        thresholds.setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("shut down");
+            }
+        });
+        final List<String> fired = new ArrayList<String>();
+        thresholds.add(10, recording(fired, "rejected"), 0);
+        thresholds.fire(100);
+        assertTrue(fired.isEmpty());
+    }
+
+    private QueueWaitTimeCallback recording(final List<String> fired, final String name) {
+        return new QueueWaitTimeCallback() {
+            public void onThresholdExceeded(long actualWaitTime) {
+                fired.add(name);
+            }
+        };
+    }
+}
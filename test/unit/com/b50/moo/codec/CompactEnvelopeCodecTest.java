@@ -0,0 +1,114 @@
+package com.b50.moo.codec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompactEnvelopeCodecTest {
+    //escaping doubles every quote, so this is smaller in Base64 than in JSON
+    private static final String QUOTES = "\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"\"";
+
+    @Test
+    public void testRoundTripSmallMessage() throws Exception {
+        CompactEnvelopeCodec codec = new CompactEnvelopeCodec();
+        String body = codec.encode("{\"value\":\"TESTING 1,2,3\"}", 1381172826511L);
+        Envelope envelope = codec.decode(body);
+        assertEquals("{\"value\":\"TESTING 1,2,3\"}", envelope.getMessage());
+        assertEquals(1381172826511L, envelope.getTimestamp());
+    }
+
+    @Test
+    public void testLargeRepetitiveMessageIsCompressed() throws Exception {
+        StringBuilder builder = new StringBuilder("<items>");
+        while (builder.length() < 400000) {
+            builder.append("<item id=\"").append(builder.length()).append("\">some \"quoted\" value</item>\n");
+        }
+        String xml = builder.append("</items>").toString();
+
+        String body = new CompactEnvelopeCodec().encode(xml, 42L);
+        assertTrue("compressed body should fit in a message but was " + body.length(), body.length() < 262144);
+        Envelope envelope = EnvelopeCodecs.decode(body);
+        assertEquals(xml, envelope.getMessage());
+        assertEquals(42L, envelope.getTimestamp());
+    }
+
+    @Test
+    public void testIncompressibleMessageIsStoredAsIs() throws Exception {
+        String message = "\u00e9\u4e2d\ud83d\ude00 short";
+        CompactEnvelopeCodec codec = new CompactEnvelopeCodec(0);
+        assertEquals(message, codec.decode(codec.encode(message, 7L)).getMessage());
+    }
+
+    @Test
+    public void testShortPlainTextIsNoLargerThanJson() throws Exception {
+        String message = "order 12345 shipped to warehouse 7";
+        String body = EnvelopeCodecs.COMPACT.encode(message, 1381172826511L);
+        assertTrue(body.length() + " > " + EnvelopeCodecs.JSON.encode(message, 1381172826511L).length(),
+                body.length() <= EnvelopeCodecs.JSON.encode(message, 1381172826511L).length());
+        assertEquals(body.length(), EnvelopeCodecs.COMPACT.encodedSize(message, 1381172826511L));
+        Envelope envelope = EnvelopeCodecs.COMPACT.decode(body);
+        assertEquals(message, envelope.getMessage());
+        assertEquals(1381172826511L, envelope.getTimestamp());
+        assertEquals(message, EnvelopeCodecs.decode(body).getMessage());
+    }
+
+    @Test
+    public void testDetection() throws Exception {
+        assertTrue(CompactEnvelopeCodec.isCompact(EnvelopeCodecs.COMPACT.encode(QUOTES, 1L)));
+        assertFalse(CompactEnvelopeCodec.isCompact(EnvelopeCodecs.JSON.encode("x", 1L)));
+        assertFalse(CompactEnvelopeCodec.isCompact("\n  {\"msg\":\"x\"}"));
+        assertEquals("x", EnvelopeCodecs.decode(EnvelopeCodecs.JSON.encode("x", 1L)).getMessage());
+    }
+
+    @Test(expected = MalformedEnvelopeException.class)
+    public void testGarbage() throws Exception {
+        EnvelopeCodecs.decode("just some text");
+    }
+
+    @Test(expected = MalformedEnvelopeException.class)
+    public void testTextOutsideTheBase64AlphabetIsRejected() throws Exception {
+        String body = EnvelopeCodecs.COMPACT.encode(QUOTES, 1L);
+        EnvelopeCodecs.decode(body.substring(0, 4) + "!" + body.substring(4));
+    }
+
+    @Test(expected = MalformedEnvelopeException.class)
+    public void testHugeDeclaredLengthIsRejected() throws Exception {
+        EnvelopeCodecs.decode(deflatedEnvelope(Integer.MAX_VALUE, deflate(new byte[16], null)));
+    }
+
+    @Test(expected = MalformedEnvelopeException.class)
+    public void testPresetDictionaryIsRejected() throws Exception {
+        EnvelopeCodecs.decode(deflatedEnvelope(16, deflate(new byte[16], new byte[]{1, 2, 3})));
+    }
+
+    private static byte[] deflate(byte[] raw, byte[] dictionary) {
+        Deflater deflater = new Deflater();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[256];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        byte[] deflated = new byte[length];
+        System.arraycopy(buffer, 0, deflated, 0, length);
+        return deflated;
+    }
+
+    private static String deflatedEnvelope(int declaredLength, byte[] deflated) throws Exception {
+        byte[] envelope = new byte[14 + deflated.length];
+        envelope[0] = CompactEnvelopeCodec.VERSION;
+        envelope[1] = 0x01;
+        for (int i = 0; i < 4; i++) {
+            envelope[10 + i] = (byte) (declaredLength >>> (24 - 8 * i));
+        }
+        System.arraycopy(deflated, 0, envelope, 14, deflated.length);
+        return new String(Base64.encodeBase64(envelope), "US-ASCII");
+    }
+}
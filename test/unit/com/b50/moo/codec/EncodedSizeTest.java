@@ -0,0 +1,56 @@
+package com.b50.moo.codec;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class EncodedSizeTest {
+
+    @Test
+    public void testJsonEnvelopeSizeMatchesEveryCharacter() throws Exception {
+        JsonEnvelopeWriter writer = new JsonEnvelopeWriter();
+        StringBuilder everything = new StringBuilder();
+        for (char c = 0; c < Character.MIN_SURROGATE; c++) {
+            everything.append(c);
+        }
+        for (char c = (char) (Character.MAX_SURROGATE + 1); c != 0; c++) {
+            everything.append(c);
+        }
+        everything.append("\ud83d\ude00 \ud800 lone \udc00");
+        String message = everything.toString();
+        assertEquals(writer.write(message, 1381172826511L).getBytes("UTF-8").length, writer.encodedSize(message, 1381172826511L));
+    }
+
+    @Test
+    public void testJsonEnvelopeSizeMatchesRandomText() throws Exception {
+        JsonEnvelopeWriter writer = new JsonEnvelopeWriter();
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            char[] chars = new char[random.nextInt(300)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) (random.nextBoolean() ? random.nextInt(128) : random.nextInt(0x10000));
+            }
+            String message = new String(chars);
+            long ts = random.nextInt(Integer.MAX_VALUE) * 1000L;
+            assertEquals(writer.write(message, ts).getBytes("UTF-8").length, writer.encodedSize(message, ts));
+        }
+    }
+
+    @Test
+    public void testCompactSizeIsExactBelowCompressionThreshold() throws Exception {
+        CompactEnvelopeCodec codec = new CompactEnvelopeCodec();
+        for (String message : new String[]{"", "x", "\u00e9\u4e2d\ud83d\ude00", "{\"a\":\"quoted\"}"}) {
+            assertEquals(codec.encode(message, 1L).getBytes("UTF-8").length, codec.encodedSize(message, 1L));
+        }
+        assertEquals(-1, codec.encodedSize(new String(new char[1024]), 1L));
+    }
+
+    @Test
+    public void testDigits() {
+        assertEquals(1, EncodedSize.digits(0));
+        assertEquals(13, EncodedSize.digits(1381172826511L));
+        assertEquals(2, EncodedSize.digits(-1));
+    }
+}
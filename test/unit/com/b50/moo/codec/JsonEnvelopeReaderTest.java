@@ -0,0 +1,56 @@
+package com.b50.moo.codec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class JsonEnvelopeReaderTest {
+    private final JsonEnvelopeReader reader = new JsonEnvelopeReader();
+
+    @Test
+    public void testPlainMessage() throws Exception {
+        Envelope envelope = reader.read("{\"msg\":\"TESTING 1,2,3\",\"ts\":\"1381172826511\"}");
+        assertEquals("TESTING 1,2,3", envelope.getMessage());
+        assertEquals(1381172826511L, envelope.getTimestamp());
+    }
+
+    @Test
+    public void testNestedJSONIsReturnedVerbatim() throws Exception {
+        String nested = "{ \"b\": [1, {\"x\":\"}\"}], \"a\" : \"q\\\"uote\" }";
+        Envelope envelope = reader.read("{\n  \"msg\": " + nested + ",\n  \"ts\": \"1381172826511\"\n}");
+        assertEquals(nested, envelope.getMessage());
+        assertEquals(1381172826511L, envelope.getTimestamp());
+    }
+
+    @Test
+    public void testEscapesRoundTripThroughWriter() throws Exception {
+        String message = "tab\there \"quoted\" back\\slash \u0001 \u00e9\u4e2d\ud83d\ude00 </elem>";
+        String body = new JsonEnvelopeWriter().write(message, 42L);
+        Envelope envelope = reader.read(body);
+        assertEquals(message, envelope.getMessage());
+        assertEquals(42L, envelope.getTimestamp());
+    }
+
+    @Test
+    public void testUnknownFieldsAndNumericTimestamp() throws Exception {
+        Envelope envelope = reader.read("{\"v\":[1,2],\"ts\":1381172826511,\"msg\":\"x\",\"extra\":{\"a\":null}}");
+        assertEquals("x", envelope.getMessage());
+        assertEquals(1381172826511L, envelope.getTimestamp());
+    }
+
+    @Test
+    public void testMissingTimestamp() throws Exception {
+        assertFalse(reader.read("{\"msg\":\"x\"}").hasTimestamp());
+    }
+
+    @Test(expected = MalformedEnvelopeException.class)
+    public void testNotAnEnvelope() throws Exception {
+        reader.read("just some text");
+    }
+
+    @Test(expected = MalformedEnvelopeException.class)
+    public void testTruncatedEnvelope() throws Exception {
+        reader.read("{\"msg\":\"unterminated");
+    }
+}
@@ -0,0 +1,41 @@
+package com.b50.moo.codec;
+
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonEnvelopeWriterTest {
+
+    @Test
+    public void testWritesSameEnvelopeAsObjectMapper() throws Exception {
+        JsonEnvelopeWriter writer = new JsonEnvelopeWriter();
+        String[] messages = {"this is a test", "{\"value\":\"TESTING 1,2,3\"}", "<elem attr=\"x\">test</elem>",
+                "tab\there\nnewline \\ backslash \u0001 control \u00e9\u4e2d\ud83d\ude00", ""};
+        for (String message : messages) {
+            assertEquals(legacy(message, 1381172826511L), writer.write(message, 1381172826511L));
+        }
+    }
+
+    @Test
+    public void testFieldOrder() throws Exception {
+        assertEquals("{\"msg\":\"1,2,3\",\"ts\":\"1381172826511\"}", new JsonEnvelopeWriter().write("1,2,3", 1381172826511L));
+    }
+
+    private String legacy(String message, long ts) throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.setVisibilityChecker(mapper.getVisibilityChecker().withFieldVisibility(JsonAutoDetect.Visibility.ANY));
+        return mapper.writeValueAsString(new LegacyMessage(message, ts));
+    }
+
+    private static class LegacyMessage {
+        String msg;
+        String ts;
+
+        LegacyMessage(String msg, long ts) {
+            this.msg = msg;
+            this.ts = Long.toString(ts);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.b50.moo.codec;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonObjectCodecTest {
+    private final JsonObjectCodec codec = new JsonObjectCodec();
+
+    @Test
+    public void testObjectIsEmbeddedAsRawJson() throws Exception {
+        String body = codec.writeEnvelope(order(), 1381172826511L);
+        assertTrue(body, body.startsWith("{\"msg\":{"));
+        assertTrue(body, body.endsWith("},\"ts\":\"1381172826511\"}"));
+        assertTrue(body, body.contains("\"id\":\"a1\""));
+        assertFalse("the object shouldn't be escaped as a string", body.contains("\\\"id"));
+    }
+
+    @Test
+    public void testEmbeddedObjectRoundTrips() throws Exception {
+        TypedEnvelope<Order> envelope = codec.decode(codec.writeEnvelope(order(), 42L), Order.class);
+        assertEquals(42L, envelope.getTimestamp());
+        assertEquals("a1", envelope.getValue().id);
+        assertEquals(2, envelope.getValue().quantity);
+        assertEquals(Arrays.asList("moo", "\"quoted\""), envelope.getValue().items);
+    }
+
+    @Test
+    public void testPlainReceiversGetTheJsonText() throws Exception {
+        Envelope envelope = EnvelopeCodecs.decode(codec.writeEnvelope(order(), 42L));
+        assertEquals(codec.write(order()), envelope.getMessage());
+    }
+
+    @Test
+    public void testJsonSentAsStringIsBound() throws Exception {
+        String json = codec.write(order());
+        assertEquals("a1", codec.decode(new JsonEnvelopeWriter().write(json, 42L), Order.class).getValue().id);
+        TypedEnvelope<Order> compact = codec.decode(EnvelopeCodecs.COMPACT.encode(json, 42L), Order.class);
+        assertEquals("a1", compact.getValue().id);
+        assertEquals(42L, compact.getTimestamp());
+    }
+
+    @Test
+    public void testStringValuesAreBoundAsIs() throws Exception {
+        String body = new JsonEnvelopeWriter().write("{not json, just text", 42L);
+        assertEquals("{not json, just text", codec.decode(body, String.class).getValue());
+    }
+
+    @Test
+    public void testReferenceIsLeftForTheCallerToResolve() throws Exception {
+        TypedEnvelope<Order> envelope = codec.decode(new JsonEnvelopeWriter().writeReference("abc", 42L), Order.class);
+        assertTrue(envelope.isReference());
+        assertEquals("abc", envelope.getReference());
+    }
+
+    @Test(expected = MalformedEnvelopeException.class)
+    public void testEnvelopeWithoutMessageIsRejected() throws Exception {
+        codec.decode("{\"ts\":\"42\"}", Order.class);
+    }
+
+    private Order order() {
+        Order order = new Order();
+        order.id = "a1";
+        order.quantity = 2;
+        order.items = Arrays.asList("moo", "\"quoted\"");
+        return order;
+    }
+
+    public static class Order {
+        public String id;
+        public int quantity;
+        public List<String> items;
+    }
+}
@@ -0,0 +1,595 @@
+package com.b50.moo.local;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.BatchRequestTooLongException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.EmptyBatchRequestException;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory stand-in for SQS so that tests and benchmarks run offline and reproducibly. It covers what moo
+ * talks to SQS about: send, receive (including long polls), delete, visibility changes, their batch variants,
+ * message attributes and the system attributes SentTimestamp, ApproximateReceiveCount,
+ * ApproximateFirstReceiveTimestamp and SenderId. Anything else throws UnsupportedOperationException.
+ *
+ * Time comes from a {@link Clock}, so a {@link ManualClock} lets a test expire visibility timeouts and long polls
+ * without sleeping, and every call can be made to take a configurable (real) latency. Unlike SQS, messages come
+ * back in the order they became visible and are never duplicated.
+ */
+public class LocalSQS extends AbstractAmazonSQS {
+    public static final String SENDER_ID = "local";
+    private static final String URL_PREFIX = "local://queue/";
+    private static final int MAX_BATCH = 10;
+    private static final int MAX_MESSAGE_SIZE = 262144;
+    private static final long MAX_WAIT_SLICE_MILLIS = 10;
+
+    private final Clock clock;
+    private final ConcurrentMap<String, LocalQueue> queues = new ConcurrentHashMap<String, LocalQueue>();
+    private final ConcurrentMap<String, AtomicLong> requests = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong ids = new AtomicLong();
+    private final Random random = new Random();
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+
+    public LocalSQS() {
+        this(Clock.SYSTEM);
+    }
+
+    public LocalSQS(final Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * every call sleeps this long before it's served
+     */
+    public void setLatencyMillis(final long latencyMillis) {
+        setLatencyMillis(latencyMillis, latencyMillis);
+    }
+
+    /**
+     * every call sleeps a uniformly random time between min and max before it's served
+     */
+    public void setLatencyMillis(final long minLatencyMillis, final long maxLatencyMillis) {
+        if (minLatencyMillis < 0 || maxLatencyMillis < minLatencyMillis) {
+            throw new IllegalArgumentException("latency must be 0 <= min <= max");
+        }
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+    }
+
+    /**
+     * @param action an SQS action name such as "ReceiveMessage" or "DeleteMessageBatch"
+     * @return how many times it has been called
+     */
+    public long getRequestCount(final String action) {
+        final AtomicLong count = requests.get(action);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return a queue created with default attributes, handy when the URL is all a test needs
+     */
+    public String createQueueUrl(final String queueName) {
+        return createQueue(new CreateQueueRequest(queueName)).getQueueUrl();
+    }
+
+    @Override
+    public CreateQueueResult createQueue(final CreateQueueRequest request) {
+        call("CreateQueue");
+        final String url = URL_PREFIX + request.getQueueName();
+        final LocalQueue queue = new LocalQueue();
+        if (queues.putIfAbsent(url, queue) == null && request.getAttributes() != null) {
+            queue.setAttributes(request.getAttributes());
+        }
+        return new CreateQueueResult().withQueueUrl(url);
+    }
+
+    @Override
+    public GetQueueUrlResult getQueueUrl(final GetQueueUrlRequest request) {
+        call("GetQueueUrl");
+        final String url = URL_PREFIX + request.getQueueName();
+        queue(url);
+        return new GetQueueUrlResult().withQueueUrl(url);
+    }
+
+    @Override
+    public void deleteQueue(final DeleteQueueRequest request) {
+        call("DeleteQueue");
+        queues.remove(request.getQueueUrl());
+    }
+
+    @Override
+    public void purgeQueue(final PurgeQueueRequest request) {
+        call("PurgeQueue");
+        queue(request.getQueueUrl()).purge();
+    }
+
+    @Override
+    public void setQueueAttributes(final SetQueueAttributesRequest request) {
+        call("SetQueueAttributes");
+        queue(request.getQueueUrl()).setAttributes(request.getAttributes());
+    }
+
+    @Override
+    public GetQueueAttributesResult getQueueAttributes(final GetQueueAttributesRequest request) {
+        call("GetQueueAttributes");
+        return new GetQueueAttributesResult().withAttributes(queue(request.getQueueUrl()).getAttributes(clock.now()));
+    }
+
+    @Override
+    public SendMessageResult sendMessage(final SendMessageRequest request) {
+        call("SendMessage");
+        final LocalQueue queue = queue(request.getQueueUrl());
+        checkSize(request.getMessageBody());
+        final String id = nextId();
+        queue.add(new LocalMessage(id, request.getMessageBody(), request.getMessageAttributes(), clock.now()),
+                request.getDelaySeconds());
+        return new SendMessageResult().withMessageId(id);
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(final SendMessageBatchRequest request) {
+        call("SendMessageBatch");
+        final LocalQueue queue = queue(request.getQueueUrl());
+        checkEntries(request.getEntries());
+        int size = 0;
+        for (final SendMessageBatchRequestEntry entry : request.getEntries()) {
+            size += entry.getMessageBody().length();
+        }
+        if (size > MAX_MESSAGE_SIZE) {
+            throw clientError(new BatchRequestTooLongException("batch of " + size + " characters"),
+                    "AWS.SimpleQueueService.BatchRequestTooLong");
+        }
+        final SendMessageBatchResult result = new SendMessageBatchResult();
+        final long now = clock.now();
+        for (final SendMessageBatchRequestEntry entry : request.getEntries()) {
+            final String id = nextId();
+            queue.add(new LocalMessage(id, entry.getMessageBody(), entry.getMessageAttributes(), now),
+                    entry.getDelaySeconds());
+            result.getSuccessful().add(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(id));
+        }
+        return result;
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(final ReceiveMessageRequest request) {
+        call("ReceiveMessage");
+        final LocalQueue queue = queue(request.getQueueUrl());
+        final int max = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+        if (max < 1 || max > MAX_BATCH) {
+            throw invalidParameter("MaxNumberOfMessages must be between 1 and " + MAX_BATCH);
+        }
+        final List<LocalMessage> received = queue.receive(max, request.getVisibilityTimeout(),
+                request.getWaitTimeSeconds());
+        final List<Message> messages = new ArrayList<Message>(received.size());
+        for (final LocalMessage message : received) {
+            messages.add(message.toMessage(request.getAttributeNames(), request.getMessageAttributeNames()));
+        }
+        return new ReceiveMessageResult().withMessages(messages);
+    }
+
+    @Override
+    public void deleteMessage(final DeleteMessageRequest request) {
+        call("DeleteMessage");
+        final String error = queue(request.getQueueUrl()).delete(request.getReceiptHandle());
+        if (error != null) {
+            throw clientError(new ReceiptHandleIsInvalidException(error), "ReceiptHandleIsInvalid");
+        }
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(final DeleteMessageBatchRequest request) {
+        call("DeleteMessageBatch");
+        final LocalQueue queue = queue(request.getQueueUrl());
+        checkEntries(request.getEntries());
+        final DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+        for (final DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+            final String error = queue.delete(entry.getReceiptHandle());
+            if (error == null) {
+                result.getSuccessful().add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+            } else {
+                result.getFailed().add(failure(entry.getId(), "ReceiptHandleIsInvalid", error));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void changeMessageVisibility(final ChangeMessageVisibilityRequest request) {
+        call("ChangeMessageVisibility");
+        final String[] error = queue(request.getQueueUrl()).changeVisibility(request.getReceiptHandle(),
+                request.getVisibilityTimeout());
+        if (error != null) {
+            throw clientError(new AmazonServiceException(error[1]), error[0]);
+        }
+    }
+
+    @Override
+    public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(final ChangeMessageVisibilityBatchRequest request) {
+        call("ChangeMessageVisibilityBatch");
+        final LocalQueue queue = queue(request.getQueueUrl());
+        checkEntries(request.getEntries());
+        final ChangeMessageVisibilityBatchResult result = new ChangeMessageVisibilityBatchResult();
+        for (final ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+            final String[] error = queue.changeVisibility(entry.getReceiptHandle(), entry.getVisibilityTimeout());
+            if (error == null) {
+                result.getSuccessful().add(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+            } else {
+                result.getFailed().add(failure(entry.getId(), error[0], error[1]));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    private LocalQueue queue(final String url) {
+        final LocalQueue queue = queues.get(url);
+        if (queue == null) {
+            throw clientError(new QueueDoesNotExistException("no queue at " + url),
+                    "AWS.SimpleQueueService.NonExistentQueue");
+        }
+        return queue;
+    }
+
+    private String nextId() {
+        return "local-" + ids.incrementAndGet();
+    }
+
+    private void call(final String action) {
+        AtomicLong count = requests.get(action);
+        if (count == null) {
+            final AtomicLong created = new AtomicLong();
+            count = requests.putIfAbsent(action, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+
+        final long min = minLatencyMillis;
+        final long max = maxLatencyMillis;
+        if (max > 0) {
+            final long latency;
+            synchronized (random) {
+                latency = min == max ? min : min + (long) (random.nextDouble() * (max - min));
+            }
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException();
+            }
+        }
+    }
+
+    private static void checkSize(final String body) {
+        if (body == null || body.isEmpty()) {
+            throw invalidParameter("message body is required");
+        }
+        if (body.length() > MAX_MESSAGE_SIZE) {
+            throw invalidParameter("message of " + body.length() + " characters exceeds " + MAX_MESSAGE_SIZE);
+        }
+    }
+
+    private static void checkEntries(final Collection<?> entries) {
+        if (entries.isEmpty()) {
+            throw clientError(new EmptyBatchRequestException("no entries"),
+                    "AWS.SimpleQueueService.EmptyBatchRequest");
+        }
+        if (entries.size() > MAX_BATCH) {
+            throw clientError(new TooManyEntriesInBatchRequestException(entries.size() + " entries"),
+                    "AWS.SimpleQueueService.TooManyEntriesInBatchRequest");
+        }
+    }
+
+    private static BatchResultErrorEntry failure(final String id, final String code, final String message) {
+        return new BatchResultErrorEntry().withId(id).withCode(code).withMessage(message).withSenderFault(true);
+    }
+
+    private static AmazonServiceException invalidParameter(final String message) {
+        return clientError(new AmazonServiceException(message), "InvalidParameterValue");
+    }
+
+    private static AmazonServiceException clientError(final AmazonServiceException e, final String code) {
+        e.setErrorCode(code);
+        e.setErrorType(AmazonServiceException.ErrorType.Client);
+        e.setStatusCode(400);
+        e.setServiceName("AmazonSQS");
+        return e;
+    }
+
+    /**
+     * the time LocalSQS runs on, in epoch milliseconds
+     */
+    public interface Clock {
+        Clock SYSTEM = new Clock() {
+            public long now() {
+                return System.currentTimeMillis();
+            }
+        };
+
+        long now();
+    }
+
+    /**
+     * Messages are ready (visible), or hidden until a time. Hidden entries carry the generation of the message they
+     * were scheduled for, so changing a message's visibility just schedules a new entry and leaves the old one to be
+     * skipped.
+     */
+    private class LocalQueue {
+        private final ArrayDeque<LocalMessage> ready = new ArrayDeque<LocalMessage>();
+        private final PriorityQueue<Hidden> hidden = new PriorityQueue<Hidden>();
+        private final Map<String, LocalMessage> inFlight = new HashMap<String, LocalMessage>();
+        private int visibilityTimeoutSeconds = 30;
+        private int delaySeconds;
+        private int receiveWaitTimeSeconds;
+
+        synchronized void setAttributes(final Map<String, String> attributes) {
+            for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+                final int value = Integer.parseInt(attribute.getValue());
+                if ("VisibilityTimeout".equals(attribute.getKey())) {
+                    visibilityTimeoutSeconds = value;
+                } else if ("DelaySeconds".equals(attribute.getKey())) {
+                    delaySeconds = value;
+                } else if ("ReceiveMessageWaitTimeSeconds".equals(attribute.getKey())) {
+                    receiveWaitTimeSeconds = value;
+                } else {
+                    throw invalidParameter("unsupported attribute " + attribute.getKey());
+                }
+            }
+        }
+
+        synchronized Map<String, String> getAttributes(final long now) {
+            promote(now);
+            int visible = 0;
+            for (final LocalMessage message : ready) {
+                if (!message.deleted) {
+                    visible++;
+                }
+            }
+            int notVisible = 0;
+            for (final LocalMessage message : inFlight.values()) {
+                if (message.visibleAt > now) {
+                    notVisible++;
+                }
+            }
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("ApproximateNumberOfMessages", Integer.toString(visible));
+            attributes.put("ApproximateNumberOfMessagesNotVisible", Integer.toString(notVisible));
+            attributes.put("VisibilityTimeout", Integer.toString(visibilityTimeoutSeconds));
+            attributes.put("DelaySeconds", Integer.toString(delaySeconds));
+            attributes.put("ReceiveMessageWaitTimeSeconds", Integer.toString(receiveWaitTimeSeconds));
+            return attributes;
+        }
+
+        synchronized void add(final LocalMessage message, final Integer delaySeconds) {
+            final int delay = delaySeconds == null ? this.delaySeconds : delaySeconds;
+            if (delay > 0) {
+                hide(message, message.sentAt + delay * 1000L);
+            } else {
+                ready.add(message);
+                notifyAll();
+            }
+        }
+
+        synchronized List<LocalMessage> receive(final int max, final Integer visibilityTimeoutSeconds,
+                                                final Integer waitTimeSeconds) {
+            final int visibility = visibilityTimeoutSeconds == null ? this.visibilityTimeoutSeconds : visibilityTimeoutSeconds;
+            final int wait = waitTimeSeconds == null ? receiveWaitTimeSeconds : waitTimeSeconds;
+            final long deadline = clock.now() + wait * 1000L;
+            final List<LocalMessage> received = new ArrayList<LocalMessage>();
+            while (true) {
+                final long now = clock.now();
+                promote(now);
+                LocalMessage message;
+                while (received.size() < max && (message = ready.poll()) != null) {
+                    if (!message.deleted) {
+                        inFlight.remove(message.receiptHandle);
+                        message.received(now);
+                        inFlight.put(message.receiptHandle, message);
+                        hide(message, now + visibility * 1000L);
+                        received.add(message);
+                    }
+                }
+                if (!received.isEmpty() || now >= deadline) {
+                    return received;
+                }
+                long pause = deadline - now;
+                if (!hidden.isEmpty()) {
+                    pause = Math.min(pause, hidden.peek().visibleAt - now);
+                }
+                if (clock != Clock.SYSTEM) {
+                    pause = Math.min(pause, MAX_WAIT_SLICE_MILLIS);
+                }
+                try {
+                    wait(Math.max(1, pause));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AbortedException();
+                }
+            }
+        }
+
+        /**
+         * @return why the handle was refused, or null if the message is gone
+         */
+        synchronized String delete(final String receiptHandle) {
+            final LocalMessage message = inFlight.remove(receiptHandle);
+            if (message == null) {
+                return "receipt handle " + receiptHandle + " is not current";
+            }
+            message.deleted = true;
+            message.generation++;
+            return null;
+        }
+
+        /**
+         * @return the error code and message, or null if the visibility changed
+         */
+        synchronized String[] changeVisibility(final String receiptHandle, final Integer visibilityTimeoutSeconds) {
+            final LocalMessage message = inFlight.get(receiptHandle);
+            if (message == null) {
+                return new String[]{"ReceiptHandleIsInvalid", "receipt handle " + receiptHandle + " is not current"};
+            }
+            if (visibilityTimeoutSeconds == null || visibilityTimeoutSeconds < 0 || visibilityTimeoutSeconds > 43200) {
+                return new String[]{"InvalidParameterValue", "VisibilityTimeout must be between 0 and 43200"};
+            }
+            final long now = clock.now();
+            if (message.visibleAt <= now) {
+                return new String[]{"AWS.SimpleQueueService.MessageNotInflight", "message is not in flight"};
+            }
+            hide(message, now + visibilityTimeoutSeconds * 1000L);
+            if (visibilityTimeoutSeconds == 0) {
+                notifyAll();
+            }
+            return null;
+        }
+
+        synchronized void purge() {
+            for (final LocalMessage message : inFlight.values()) {
+                message.deleted = true;
+            }
+            ready.clear();
+            hidden.clear();
+            inFlight.clear();
+        }
+
+        private void hide(final LocalMessage message, final long visibleAt) {
+            message.generation++;
+            message.visibleAt = visibleAt;
+            hidden.add(new Hidden(visibleAt, message, message.generation));
+        }
+
+        private void promote(final long now) {
+            Hidden next;
+            while ((next = hidden.peek()) != null && next.visibleAt <= now) {
+                hidden.poll();
+                if (next.generation == next.message.generation && !next.message.deleted) {
+                    ready.add(next.message);
+                }
+            }
+        }
+    }
+
+    private static class Hidden implements Comparable<Hidden> {
+        private final long visibleAt;
+        private final LocalMessage message;
+        private final int generation;
+
+        private Hidden(final long visibleAt, final LocalMessage message, final int generation) {
+            this.visibleAt = visibleAt;
+            this.message = message;
+            this.generation = generation;
+        }
+
+        public int compareTo(final Hidden other) {
+            return visibleAt < other.visibleAt ? -1 : (visibleAt == other.visibleAt ? 0 : 1);
+        }
+    }
+
+    private static class LocalMessage {
+        private final String id;
+        private final String body;
+        private final Map<String, MessageAttributeValue> attributes;
+        private final long sentAt;
+        private long firstReceivedAt;
+        private int receiveCount;
+        private String receiptHandle;
+        private long visibleAt;
+        private int generation;
+        private boolean deleted;
+
+        private LocalMessage(final String id, final String body, final Map<String, MessageAttributeValue> attributes,
+                             final long sentAt) {
+            this.id = id;
+            this.body = body;
+            this.attributes = attributes == null ? new HashMap<String, MessageAttributeValue>()
+                    : new HashMap<String, MessageAttributeValue>(attributes);
+            this.sentAt = sentAt;
+        }
+
+        private void received(final long now) {
+            if (receiveCount == 0) {
+                firstReceivedAt = now;
+            }
+            receiveCount++;
+            receiptHandle = id + "#" + receiveCount;
+        }
+
+        private Message toMessage(final List<String> attributeNames, final List<String> messageAttributeNames) {
+            final Message message = new Message().withMessageId(id).withBody(body).withReceiptHandle(receiptHandle);
+            if (attributeNames != null) {
+                final boolean all = attributeNames.contains("All");
+                if (all || attributeNames.contains("SentTimestamp")) {
+                    message.addAttributesEntry("SentTimestamp", Long.toString(sentAt));
+                }
+                if (all || attributeNames.contains("ApproximateReceiveCount")) {
+                    message.addAttributesEntry("ApproximateReceiveCount", Integer.toString(receiveCount));
+                }
+                if (all || attributeNames.contains("ApproximateFirstReceiveTimestamp")) {
+                    message.addAttributesEntry("ApproximateFirstReceiveTimestamp", Long.toString(firstReceivedAt));
+                }
+                if (all || attributeNames.contains("SenderId")) {
+                    message.addAttributesEntry("SenderId", SENDER_ID);
+                }
+            }
+            if (messageAttributeNames != null && !attributes.isEmpty()) {
+                final boolean all = messageAttributeNames.contains("All") || messageAttributeNames.contains(".*");
+                for (final Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+                    if (all || messageAttributeNames.contains(attribute.getKey())) {
+                        message.addMessageAttributesEntry(attribute.getKey(), attribute.getValue());
+                    }
+                }
+            }
+            return message;
+        }
+    }
+}
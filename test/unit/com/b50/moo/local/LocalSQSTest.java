@@ -0,0 +1,209 @@
+package com.b50.moo.local;
+
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException;
+import com.b50.moo.ConsumerOptions;
+import com.b50.moo.ReceiveCallback;
+import com.b50.moo.SQS;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LocalSQSTest {
+
+    @Test
+    public void testReceivedMessageStaysHiddenUntilItsVisibilityTimeoutExpires() throws Exception {
+        ManualClock clock = new ManualClock();
+        LocalSQS sqs = new LocalSQS(clock);
+        String url = sqs.createQueueUrl("test");
+        sqs.sendMessage(url, "hello");
+
+        List<Message> first = receive(sqs, url, 5);
+        assertEquals(1, first.size());
+        assertEquals("hello", first.get(0).getBody());
+        assertEquals("nothing visible while in flight", 0, receive(sqs, url, 5).size());
+
+        clock.advanceSeconds(5);
+        List<Message> second = receive(sqs, url, 5);
+        assertEquals(1, second.size());
+        assertEquals("2", second.get(0).getAttributes().get("ApproximateReceiveCount"));
+        assertEquals(Long.toString(clock.now() - 5000), second.get(0).getAttributes().get("ApproximateFirstReceiveTimestamp"));
+    }
+
+    @Test
+    public void testDeletedMessageIsGoneAndStaleHandlesAreRefused() throws Exception {
+        ManualClock clock = new ManualClock();
+        LocalSQS sqs = new LocalSQS(clock);
+        String url = sqs.createQueueUrl("test");
+        sqs.sendMessage(url, "once");
+
+        String stale = receive(sqs, url, 1).get(0).getReceiptHandle();
+        clock.advanceSeconds(1);
+        String current = receive(sqs, url, 1).get(0).getReceiptHandle();
+
+        DeleteMessageBatchResult result = sqs.deleteMessageBatch(url, Arrays.asList(
+                new DeleteMessageBatchRequestEntry("0", stale), new DeleteMessageBatchRequestEntry("1", current)));
+        assertEquals(1, result.getSuccessful().size());
+        assertEquals("0", result.getFailed().get(0).getId());
+        assertTrue(result.getFailed().get(0).getSenderFault());
+
+        clock.advanceSeconds(60);
+        assertEquals(0, receive(sqs, url, 1).size());
+        try {
+            sqs.deleteMessage(url, current);
+            assertTrue("deleting twice should fail", false);
+        } catch (ReceiptHandleIsInvalidException expected) {
+            assertEquals("ReceiptHandleIsInvalid", expected.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testChangingVisibilityToZeroReleasesTheMessage() throws Exception {
+        LocalSQS sqs = new LocalSQS(new ManualClock());
+        String url = sqs.createQueueUrl("test");
+        sqs.sendMessage(url, "release me");
+
+        Message message = receive(sqs, url, 30).get(0);
+        sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(url, message.getReceiptHandle(), 0));
+        assertEquals(1, receive(sqs, url, 30).size());
+    }
+
+    @Test
+    public void testLongPollReturnsAsSoonAsAMessageArrives() throws Exception {
+        final LocalSQS sqs = new LocalSQS();
+        final String url = sqs.createQueueUrl("test");
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sqs.sendMessage(url, "late");
+            }
+        }).start();
+
+        long start = System.currentTimeMillis();
+        List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(url).withWaitTimeSeconds(10)).getMessages();
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(1, messages.size());
+        assertTrue("long poll waited " + elapsed + "ms", elapsed >= 150 && elapsed < 5000);
+    }
+
+    @Test
+    public void testLongPollEndsWhenTheClockPassesTheWaitTime() throws Exception {
+        final ManualClock clock = new ManualClock();
+        final LocalSQS sqs = new LocalSQS(clock);
+        final String url = sqs.createQueueUrl("test");
+        final CountDownLatch returned = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            public void run() {
+                sqs.receiveMessage(new ReceiveMessageRequest(url).withWaitTimeSeconds(20));
+                returned.countDown();
+            }
+        }).start();
+
+        assertTrue("still waiting on the clock", !returned.await(100, TimeUnit.MILLISECONDS));
+        clock.advanceSeconds(20);
+        assertTrue(returned.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAttributesAreReturnedOnlyWhenAskedFor() throws Exception {
+        ManualClock clock = new ManualClock();
+        LocalSQS sqs = new LocalSQS(clock);
+        String url = sqs.createQueueUrl("test");
+        sqs.sendMessage(new SendMessageRequest(url, "with attributes").addMessageAttributesEntry("trace",
+                new MessageAttributeValue().withDataType("String").withStringValue("abc")));
+
+        Message plain = sqs.receiveMessage(new ReceiveMessageRequest(url).withVisibilityTimeout(0)).getMessages().get(0);
+        assertTrue(plain.getAttributes().isEmpty());
+        assertTrue(plain.getMessageAttributes().isEmpty());
+
+        Message full = sqs.receiveMessage(new ReceiveMessageRequest(url).withAttributeNames("All")
+                .withMessageAttributeNames("All")).getMessages().get(0);
+        assertEquals(Long.toString(clock.now()), full.getAttributes().get("SentTimestamp"));
+        assertEquals(LocalSQS.SENDER_ID, full.getAttributes().get("SenderId"));
+        assertEquals("abc", full.getMessageAttributes().get("trace").getStringValue());
+    }
+
+    @Test
+    public void testDelayedMessageAppearsAfterItsDelay() throws Exception {
+        ManualClock clock = new ManualClock();
+        LocalSQS sqs = new LocalSQS(clock);
+        String url = sqs.createQueueUrl("test");
+        sqs.sendMessage(new SendMessageRequest(url, "later").withDelaySeconds(10));
+
+        assertEquals(0, receive(sqs, url, 30).size());
+        clock.advanceSeconds(10);
+        assertEquals(1, receive(sqs, url, 30).size());
+    }
+
+    @Test(expected = TooManyEntriesInBatchRequestException.class)
+    public void testBatchesAreLimitedToTenEntries() throws Exception {
+        LocalSQS sqs = new LocalSQS();
+        String url = sqs.createQueueUrl("test");
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+        for (int i = 0; i < 11; i++) {
+            entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), "message " + i));
+        }
+        sqs.sendMessageBatch(url, entries);
+    }
+
+    @Test
+    public void testLatencyIsAddedToEveryCall() throws Exception {
+        LocalSQS sqs = new LocalSQS();
+        String url = sqs.createQueueUrl("test");
+        sqs.setLatencyMillis(50);
+        long start = System.currentTimeMillis();
+        sqs.sendMessage(url, "slow");
+        receive(sqs, url, 30);
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(1, sqs.getRequestCount("SendMessage"));
+        assertEquals(1, sqs.getRequestCount("ReceiveMessage"));
+    }
+
+    @Test
+    public void testConsumerDrainsLocalQueue() throws Exception {
+        LocalSQS local = new LocalSQS();
+        String url = local.createQueueUrl("test");
+        SQS sqs = new SQS(local, url);
+        for (int i = 0; i < 50; i++) {
+            sqs.send("message " + i);
+        }
+
+        final CountDownLatch latch = new CountDownLatch(50);
+        sqs.startConsuming(new ReceiveCallback() {
+            @Override
+            public void onReceive(String id, String message) {
+                latch.countDown();
+            }
+        }, new ConsumerOptions().withPollers(2).withProcessingThreads(4).withWaitTimeSeconds(1));
+        assertTrue("not every message was consumed", latch.await(10, TimeUnit.SECONDS));
+        sqs.stop();
+
+        assertEquals("0", local.getQueueAttributes(url, Arrays.asList("All")).getAttributes()
+                .get("ApproximateNumberOfMessagesNotVisible"));
+        assertTrue("deletes should be batched", local.getRequestCount("DeleteMessageBatch") < 50);
+    }
+
+    private List<Message> receive(LocalSQS sqs, String url, int visibilityTimeoutSeconds) {
+        return sqs.receiveMessage(new ReceiveMessageRequest(url).withMaxNumberOfMessages(10)
+                .withVisibilityTimeout(visibilityTimeoutSeconds).withAttributeNames("All")).getMessages();
+    }
+}
@@ -0,0 +1,31 @@
+package com.b50.moo.local;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A clock that only moves when told to, so visibility timeouts and long polls in a {@link LocalSQS} can be driven
+ * deterministically.
+ */
+public class ManualClock implements LocalSQS.Clock {
+    private final AtomicLong now;
+
+    public ManualClock() {
+        this(1383750000000L);
+    }
+
+    public ManualClock(final long startMillis) {
+        this.now = new AtomicLong(startMillis);
+    }
+
+    public long now() {
+        return now.get();
+    }
+
+    public void advance(final long millis) {
+        now.addAndGet(millis);
+    }
+
+    public void advanceSeconds(final int seconds) {
+        advance(seconds * 1000L);
+    }
+}
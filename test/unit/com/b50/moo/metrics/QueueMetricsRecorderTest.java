@@ -0,0 +1,123 @@
+package com.b50.moo.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueueMetricsRecorderTest {
+
+    @Test
+    public void testPercentilesAreWithinBucketPrecision() throws Exception {
+        QueueMetricsRecorder recorder = new QueueMetricsRecorder(60000, 6);
+        for (int i = 1; i <= 1000; i++) {
+            recorder.record(i, 5000);
+        }
+        QueueMetrics metrics = recorder.snapshot(5000);
+        assertEquals(1000, metrics.getCount());
+        assertEquals(1000, metrics.getMaxWaitTime());
+        assertEquals(500.5, metrics.getMeanWaitTime(), 0.001);
+        assertWithin(500, metrics.getP50());
+        assertWithin(900, metrics.getP90());
+        assertWithin(990, metrics.getP99());
+    }
+
+    @Test
+    public void testOldIntervalsFallOutOfTheWindow() throws Exception {
+        QueueMetricsRecorder recorder = new QueueMetricsRecorder(60000, 6);
+        recorder.record(5000, 1000);
+        recorder.record(10, 65000);
+        QueueMetrics metrics = recorder.snapshot(65000);
+        assertEquals("the first wait is over a minute old", 1, metrics.getCount());
+        assertEquals(2, metrics.getTotalCount());
+        assertEquals(10, metrics.getMaxWaitTime());
+
+        recorder.record(20, 125000);
+        metrics = recorder.snapshot(125000);
+        assertEquals(1, metrics.getCount());
+        assertEquals(20, metrics.getP50());
+    }
+
+    @Test
+    public void testRateCoversOnlyTheIntervalsSeen() throws Exception {
+        QueueMetricsRecorder recorder = new QueueMetricsRecorder(60000, 6);
+        for (int i = 0; i < 100; i++) {
+            recorder.record(1, 10000);
+        }
+        assertEquals(10.0, recorder.snapshot(20000).getRatePerSecond(), 0.001);
+    }
+
+    @Test
+    public void testJmxAttributesMatchTheSnapshot() throws Exception {
+        QueueMetricsRecorder recorder = new QueueMetricsRecorder();
+        for (int i = 1; i <= 100; i++) {
+            recorder.record(i);
+        }
+        recorder.recordDeduplication(true);
+        recorder.recordDeduplication(false);
+        recorder.recordDeduplication(false);
+        QueueMetrics metrics = recorder.snapshot();
+        assertEquals(metrics.getCount(), recorder.getCount());
+        assertEquals(metrics.getMaxWaitTime(), recorder.getMaxWaitTime());
+        assertEquals(metrics.getMeanWaitTime(), recorder.getMeanWaitTime(), 0.001);
+        assertEquals(metrics.getP90(), recorder.getP90());
+        assertEquals(1.0 / 3, recorder.getDuplicateRate(), 0.0001);
+        assertEquals(0, new QueueMetricsRecorder().getMaxWaitTime());
+        assertEquals(0, new QueueMetricsRecorder().getDuplicateRate(), 0);
+    }
+
+    @Test
+    public void testEmptySnapshot() throws Exception {
+        QueueMetrics metrics = new QueueMetricsRecorder().snapshot();
+        assertEquals(0, metrics.getCount());
+        assertEquals(0, metrics.getMaxWaitTime());
+        assertEquals(0, metrics.getP99());
+    }
+
+    @Test
+    public void testConcurrentRecordingLosesNothing() throws Exception {
+        final QueueMetricsRecorder recorder = new QueueMetricsRecorder(60000, 6);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 10000; j++) {
+                        recorder.record(j, 1000);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, recorder.snapshot(1000).getCount());
+        assertEquals(9999, recorder.snapshot(1000).getMaxWaitTime());
+    }
+
+    @Test
+    public void testBucketsCoverEveryValue() throws Exception {
+        long[] values = {0, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = WaitTimeHistogram.indexOf(value);
+            assertTrue(index < WaitTimeHistogram.BUCKETS);
+            assertTrue(value + " above its bucket", value <= WaitTimeHistogram.highestValueIn(index));
+            if (index > 0) {
+                assertTrue(value + " below its bucket", value > WaitTimeHistogram.highestValueIn(index - 1));
+            }
+        }
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual, Math.abs(expected - actual) <= expected / 16);
+    }
+}
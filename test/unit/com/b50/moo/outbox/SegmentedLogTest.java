@@ -0,0 +1,124 @@
+package com.b50.moo.outbox;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SegmentedLogTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("moo-outbox", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRecordsReadBackInOrder() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 1024);
+        long first = log.append(bytes("moo"));
+        long second = log.append(bytes("cow"));
+
+        SegmentedLog.Record record = log.read(first);
+        assertArrayEquals(bytes("moo"), record.getData());
+        assertEquals(second, record.getNextOffset());
+        record = log.read(record.getNextOffset());
+        assertArrayEquals(bytes("cow"), record.getData());
+        assertNull(log.read(record.getNextOffset()));
+        assertEquals(2 * (SegmentedLog.HEADER + 3), log.getUnconsumedBytes());
+        log.close();
+    }
+
+    @Test
+    public void testSegmentsRollAndAreDeletedOnceConsumed() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 64);
+        long offset = 0;
+        for (int i = 0; i < 10; i++) {
+            offset = log.append(bytes("record-" + i));
+        }
+        assertEquals(3, log.getSegmentCount());
+
+        long cursor = log.getCheckpoint();
+        for (int i = 0; i < 10; i++) {
+            SegmentedLog.Record record = log.read(cursor);
+            assertArrayEquals(bytes("record-" + i), record.getData());
+            cursor = record.getNextOffset();
+        }
+        log.checkpoint(offset);
+        assertEquals(1, log.getSegmentCount());
+        assertEquals(1, directory.listFiles().length - 2);
+        assertArrayEquals(bytes("record-9"), log.read(log.getCheckpoint()).getData());
+        log.close();
+    }
+
+    @Test
+    public void testReopeningResumesFromTheCheckpoint() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 64);
+        log.append(bytes("sent-0"));
+        long unsent = log.append(bytes("unsent-1"));
+        log.append(bytes("unsent-2"));
+        log.checkpoint(unsent);
+        log.close();
+
+        log = new SegmentedLog(directory, 64);
+        assertEquals(unsent, log.getCheckpoint());
+        SegmentedLog.Record record = log.read(log.getCheckpoint());
+        assertArrayEquals(bytes("unsent-1"), record.getData());
+        assertArrayEquals(bytes("unsent-2"), log.read(record.getNextOffset()).getData());
+        long appended = log.append(bytes("after"));
+        assertArrayEquals(bytes("after"), log.read(appended).getData());
+        log.close();
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 1024);
+        log.append(bytes("whole"));
+        long torn = log.append(bytes("torn"));
+        log.close();
+        RandomAccessFile segment = new RandomAccessFile(new File(directory, String.format("%020d.log", 0)), "rw");
+        segment.seek(torn + SegmentedLog.HEADER);
+        segment.write('x');
+        segment.close();
+
+        log = new SegmentedLog(directory, 1024);
+        assertEquals(torn, log.getWriteOffset());
+        assertNull(log.read(torn));
+        log.append(bytes("next"));
+        assertArrayEquals(bytes("next"), log.read(torn).getData());
+        log.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testDirectoryIsOpenedOnlyOnce() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 1024);
+        try {
+            new SegmentedLog(directory, 1024);
+        } finally {
+            log.close();
+        }
+    }
+
+    private static byte[] bytes(String text) throws IOException {
+        return text.getBytes("UTF-8");
+    }
+}
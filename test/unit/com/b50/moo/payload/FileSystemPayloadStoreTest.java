@@ -0,0 +1,77 @@
+package com.b50.moo.payload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FileSystemPayloadStoreTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("moo-payloads", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testStoreReadAndDelete() throws Exception {
+        FileSystemPayloadStore store = new FileSystemPayloadStore(directory);
+        String payload = "<elem>\u00e9\u4e2d\ud83d\ude00</elem>";
+        String pointer = store.store(payload);
+        assertEquals(payload, store.read(pointer));
+        store.delete(pointer);
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testOpenStreamsPayload() throws Exception {
+        FileSystemPayloadStore store = new FileSystemPayloadStore(directory);
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 1000000) {
+            builder.append("line ").append(builder.length()).append('\n');
+        }
+        String pointer = store.store(builder.toString());
+
+        Reader reader = store.open(pointer);
+        StringBuilder read = new StringBuilder();
+        char[] buffer = new char[4096];
+        int count;
+        while ((count = reader.read(buffer)) > 0) {
+            read.append(buffer, 0, count);
+        }
+        reader.close();
+        assertEquals(builder.toString(), read.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void testPointerCannotEscapeDirectory() throws Exception {
+        new FileSystemPayloadStore(directory).read("../etc/passwd");
+    }
+
+    @Test
+    public void testNoTemporaryFilesLeftBehind() throws Exception {
+        FileSystemPayloadStore store = new FileSystemPayloadStore(directory);
+        store.store("x");
+        for (File file : directory.listFiles()) {
+            assertFalse(file.getName().endsWith(".tmp"));
+        }
+    }
+}